@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Runs the lookups of the asynchronous PaymentRetriesApi methods. If the returned future is cancelled or times out
+// before the lookup completes, the lookup thread is interrupted. Threads are daemon and time out when idle; whoever
+// creates the executor should still shut it down when done with it.
+public class AsyncLookupExecutor {
+
+    public static final int DEFAULT_NB_THREADS = 16;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timeoutExecutor;
+
+    public AsyncLookupExecutor() {
+        this(DEFAULT_NB_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    public AsyncLookupExecutor(final int nbThreads, final int queueSize) {
+        this.executor = new ThreadPoolExecutor(nbThreads,
+                                               nbThreads,
+                                               60L,
+                                               TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(queueSize),
+                                               new ThreadFactoryBuilder().setNameFormat("payment-retries-async-%d")
+                                                                         .setDaemon(true)
+                                                                         .build());
+        // Idle threads go away, the pool is mostly used in bursts
+        this.executor.allowCoreThreadTimeOut(true);
+        final ScheduledThreadPoolExecutor timeoutExecutor = new ScheduledThreadPoolExecutor(1,
+                                                                                            new ThreadFactoryBuilder().setNameFormat("payment-retries-async-timeout-%d")
+                                                                                                                      .setDaemon(true)
+                                                                                                                      .build());
+        // Timeouts are cancelled as soon as the lookup completes: drop them right away, so that the thread can time out too
+        timeoutExecutor.setRemoveOnCancelPolicy(true);
+        timeoutExecutor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        timeoutExecutor.allowCoreThreadTimeOut(true);
+        this.timeoutExecutor = timeoutExecutor;
+    }
+
+    // A zero or negative timeout means no timeout. If the pool is saturated, the future fails with a RejectedExecutionException.
+    public <V> CompletableFuture<V> submit(final Callable<V> callable, final long timeout, final TimeUnit timeUnit) {
+        final CompletableFuture<V> result = new CompletableFuture<V>();
+
+        final Future<?> lookup;
+        try {
+            lookup = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isDone()) {
+                        // Cancelled or timed out while queued
+                        return;
+                    }
+                    try {
+                        result.complete(callable.call());
+                    } catch (final Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        final ScheduledFuture<?> timeoutTask;
+        if (timeout > 0) {
+            timeoutTask = timeoutExecutor.schedule(new Runnable() {
+                                                       @Override
+                                                       public void run() {
+                                                           result.completeExceptionally(new TimeoutException("Lookup timed out after " + timeout + " " + timeUnit));
+                                                       }
+                                                   },
+                                                   timeout,
+                                                   timeUnit);
+        } else {
+            timeoutTask = null;
+        }
+
+        result.whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(final V value, final Throwable throwable) {
+                if (timeoutTask != null) {
+                    timeoutTask.cancel(false);
+                }
+                if (throwable != null) {
+                    // No-op if the lookup itself failed
+                    lookup.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    // Pending lookups and timeouts still run, so that no returned future is left incomplete
+    public void shutdown() {
+        executor.shutdown();
+        timeoutExecutor.shutdown();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+// Last failed authorization decline code, per (tenant, account, payment method). Kept current by PaymentRetriesEventHandler.
+public class AuthorizationDeclineCodeCache {
+
+    public static final long DEFAULT_MAX_ACCOUNTS = 100000L;
+    // Bus events are only dispatched on one node of the cluster: the TTL bounds staleness on the other ones
+    public static final long DEFAULT_TTL_SECONDS = 600L;
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthorizationDeclineCodeCache.class);
+
+    // Entries are grouped per account, so that a single bus event invalidates all payment methods at once. A lookup
+    // racing with an invalidation writes into the detached per-account map and is never visible afterwards.
+    private final Cache<AccountKey, ConcurrentMap<UUID, Optional<AuthorizationDeclineCode>>> declineCodesPerAccount;
+
+    public AuthorizationDeclineCodeCache() {
+        this(DEFAULT_MAX_ACCOUNTS, DEFAULT_TTL_SECONDS);
+    }
+
+    public AuthorizationDeclineCodeCache(final long maxAccounts, final long ttlSeconds) {
+        this.declineCodesPerAccount = CacheBuilder.newBuilder()
+                                                  .maximumSize(maxAccounts)
+                                                  .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                                  .build();
+    }
+
+    public AuthorizationDeclineCode get(final UUID accountId, final UUID paymentMethodId, final UUID tenantId, final Callable<AuthorizationDeclineCode> loader) {
+        final ConcurrentMap<UUID, Optional<AuthorizationDeclineCode>> accountDeclineCodes;
+        try {
+            accountDeclineCodes = declineCodesPerAccount.get(new AccountKey(accountId, tenantId),
+                                                             new Callable<ConcurrentMap<UUID, Optional<AuthorizationDeclineCode>>>() {
+                                                                 @Override
+                                                                 public ConcurrentMap<UUID, Optional<AuthorizationDeclineCode>> call() {
+                                                                     return new ConcurrentHashMap<UUID, Optional<AuthorizationDeclineCode>>();
+                                                                 }
+                                                             });
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final Optional<AuthorizationDeclineCode> cachedDeclineCode = accountDeclineCodes.get(paymentMethodId);
+        if (cachedDeclineCode != null) {
+            return cachedDeclineCode.orElse(null);
+        }
+
+        final AuthorizationDeclineCode authorizationDeclineCode;
+        try {
+            authorizationDeclineCode = loader.call();
+        } catch (final Exception e) {
+            // Don't cache lookup failures
+            logger.warn("Unable to compute decline code for accountId='{}', paymentMethodId='{}'", accountId, paymentMethodId, e);
+            return null;
+        }
+        accountDeclineCodes.put(paymentMethodId, Optional.ofNullable(authorizationDeclineCode));
+        return authorizationDeclineCode;
+    }
+
+    public void invalidateAccount(final UUID accountId, final UUID tenantId) {
+        declineCodesPerAccount.invalidate(new AccountKey(accountId, tenantId));
+    }
+
+    // The cached decline codes were computed with the previous rules (see RulesFileReloader)
+    public void invalidateAll() {
+        declineCodesPerAccount.invalidateAll();
+    }
+
+    public long size() {
+        return declineCodesPerAccount.size();
+    }
+
+    private static final class AccountKey {
+
+        private final UUID accountId;
+        private final UUID tenantId;
+
+        private AccountKey(final UUID accountId, final UUID tenantId) {
+            this.accountId = accountId;
+            this.tenantId = tenantId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final AccountKey that = (AccountKey) o;
+            return accountId.equals(that.accountId) && (tenantId != null ? tenantId.equals(that.tenantId) : that.tenantId == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * accountId.hashCode() + (tenantId != null ? tenantId.hashCode() : 0);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.api.ErrorMessage;
+import org.killbill.billing.plugin.payment.retries.api.PaymentRetriesApi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+// Serialized /configuration responses, per (retryable, errorMessage) filter. The rule tables don't change between
+// deployments, so each combination is serialized once; the cache is dropped if the API returns new tables.
+public class ConfigurationResponseCache {
+
+    // Key for unknown errorMessage filters, which match no decline code
+    private static final String NO_MATCH = "?";
+    private static final String ANY_ERROR_MESSAGE = "*";
+
+    private final PaymentRetriesApi paymentRetriesApi;
+    private final ObjectMapper jsonMapper;
+
+    private volatile Snapshot snapshot;
+
+    public ConfigurationResponseCache(final PaymentRetriesApi paymentRetriesApi, final ObjectMapper jsonMapper) {
+        this.paymentRetriesApi = paymentRetriesApi;
+        this.jsonMapper = jsonMapper;
+    }
+
+    public ConfigurationResponse get(final boolean retryable, @Nullable final String errorMessage) throws IOException {
+        final Map<String, Map<Integer, AuthorizationDeclineCode>> perPluginDeclineCodes = paymentRetriesApi.getPerPluginDeclineCodes();
+        Snapshot currentSnapshot = snapshot;
+        if (currentSnapshot == null || currentSnapshot.perPluginDeclineCodes != perPluginDeclineCodes) {
+            currentSnapshot = new Snapshot(perPluginDeclineCodes);
+            snapshot = currentSnapshot;
+        }
+
+        final ErrorMessage errorMessageFilter = toErrorMessage(errorMessage);
+        final String key = retryable + "/" + (errorMessage == null ? ANY_ERROR_MESSAGE : (errorMessageFilter == null ? NO_MATCH : errorMessageFilter.name()));
+        final ConfigurationResponse cachedResponse = currentSnapshot.responses.get(key);
+        if (cachedResponse != null) {
+            return cachedResponse;
+        }
+
+        final ConfigurationResponse newResponse = new ConfigurationResponse(serialize(perPluginDeclineCodes, retryable, errorMessage == null, errorMessageFilter));
+        final ConfigurationResponse existingResponse = currentSnapshot.responses.putIfAbsent(key, newResponse);
+        return existingResponse == null ? newResponse : existingResponse;
+    }
+
+    private byte[] serialize(final Map<String, Map<Integer, AuthorizationDeclineCode>> perPluginDeclineCodes,
+                             final boolean retryable,
+                             final boolean anyErrorMessage,
+                             @Nullable final ErrorMessage errorMessageFilter) throws IOException {
+        final Map<String, Map<Integer, AuthorizationDeclineCode>> returnedMap = new TreeMap<String, Map<Integer, AuthorizationDeclineCode>>();
+        for (final String pluginName : perPluginDeclineCodes.keySet()) {
+            returnedMap.put(pluginName,
+                            Maps.<Integer, AuthorizationDeclineCode>filterValues(perPluginDeclineCodes.get(pluginName),
+                                                                                 new Predicate<AuthorizationDeclineCode>() {
+                                                                                     @Override
+                                                                                     public boolean apply(final AuthorizationDeclineCode authorizationDeclineCode) {
+                                                                                         return retryable == authorizationDeclineCode.isRetryable() &&
+                                                                                                (anyErrorMessage || authorizationDeclineCode.getErrorMessage() == errorMessageFilter);
+                                                                                     }
+                                                                                 }));
+        }
+        return jsonMapper.writeValueAsBytes(returnedMap);
+    }
+
+    private static ErrorMessage toErrorMessage(@Nullable final String errorMessage) {
+        if (errorMessage == null) {
+            return null;
+        }
+        for (final ErrorMessage candidate : ErrorMessage.values()) {
+            if (candidate.name().equalsIgnoreCase(errorMessage)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    public static final class ConfigurationResponse {
+
+        private final byte[] body;
+        private final String etag;
+
+        private ConfigurationResponse(final byte[] body) {
+            this.body = body;
+            this.etag = '"' + Hashing.murmur3_128().hashBytes(body).toString() + '"';
+        }
+
+        // Not copied: callers must not modify it
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public boolean matches(@Nullable final String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (final String candidate : ifNoneMatch.split(",")) {
+                final String trimmedCandidate = candidate.trim();
+                if ("*".equals(trimmedCandidate) || etag.equals(trimmedCandidate) || ("W/" + etag).equals(trimmedCandidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final Map<String, Map<Integer, AuthorizationDeclineCode>> perPluginDeclineCodes;
+        // At most 2 * (ErrorMessage.values().length + 2) entries
+        private final ConcurrentMap<String, ConfigurationResponse> responses = new ConcurrentHashMap<String, ConfigurationResponse>();
+
+        private Snapshot(final Map<String, Map<Integer, AuthorizationDeclineCode>> perPluginDeclineCodes) {
+            this.perPluginDeclineCodes = perPluginDeclineCodes;
+        }
+    }
+}
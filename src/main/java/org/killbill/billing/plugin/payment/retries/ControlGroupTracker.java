@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+// Retries from the control group, per attempt id, until their outcome is known. Attempts which never complete
+// (node crash, aborted plugin chain, pending transaction, ...) are expired and counted as unknown outcomes.
+public class ControlGroupTracker {
+
+    public static final long DEFAULT_MAX_ATTEMPTS = 100000L;
+    public static final long DEFAULT_TTL_SECONDS = 3600L;
+
+    private static final Logger logger = LoggerFactory.getLogger(ControlGroupTracker.class);
+
+    private final LongAdder nbOfExpiredAttempts = new LongAdder();
+    private final LongAdder nbOfEvictedAttempts = new LongAdder();
+
+    private final Cache<UUID, TrackedAttempt> controlGroup;
+
+    public ControlGroupTracker(final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry) {
+        this(paymentRetriesStatsRegistry, DEFAULT_MAX_ATTEMPTS, DEFAULT_TTL_SECONDS);
+    }
+
+    public ControlGroupTracker(final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry, final long maxAttempts, final long ttlSeconds) {
+        this(paymentRetriesStatsRegistry, maxAttempts, ttlSeconds, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    ControlGroupTracker(final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry, final long maxAttempts, final long ttlSeconds, final Ticker ticker) {
+        this.controlGroup = CacheBuilder.newBuilder()
+                                        .maximumSize(maxAttempts)
+                                        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                        .ticker(ticker)
+                                        .removalListener(new RemovalListener<UUID, TrackedAttempt>() {
+                                            @Override
+                                            public void onRemoval(final RemovalNotification<UUID, TrackedAttempt> notification) {
+                                                switch (notification.getCause()) {
+                                                    case EXPIRED:
+                                                        nbOfExpiredAttempts.increment();
+                                                        break;
+                                                    case SIZE:
+                                                        nbOfEvictedAttempts.increment();
+                                                        break;
+                                                    default:
+                                                        // Outcome recorded by the caller
+                                                        return;
+                                                }
+                                                final TrackedAttempt trackedAttempt = notification.getValue();
+                                                final long nbOfUnknownOutcomes = paymentRetriesStatsRegistry.get(trackedAttempt.tenantId).markRetryOutcomeAsUnknown(trackedAttempt.authorizationDeclineCode);
+                                                logger.info("Unknown retry outcome attemptPaymentId='{}', cause='{}', nbOfUnknownOutcomes='{}', processorMessage='{}', processorCode='{}'",
+                                                            notification.getKey(), notification.getCause(), nbOfUnknownOutcomes, trackedAttempt.authorizationDeclineCode.getMessage(), trackedAttempt.authorizationDeclineCode.getCode());
+                                            }
+                                        })
+                                        .build();
+    }
+
+    public void track(final UUID attemptPaymentId, final UUID tenantId, final AuthorizationDeclineCode authorizationDeclineCode) {
+        controlGroup.put(attemptPaymentId, new TrackedAttempt(tenantId, authorizationDeclineCode));
+    }
+
+    // Returns null if the attempt isn't part of the control group, or has expired
+    public AuthorizationDeclineCode remove(final UUID attemptPaymentId) {
+        final TrackedAttempt trackedAttempt = controlGroup.asMap().remove(attemptPaymentId);
+        return trackedAttempt == null ? null : trackedAttempt.authorizationDeclineCode;
+    }
+
+    public long size() {
+        // Expire stale entries first, so that the occupancy doesn't include them
+        controlGroup.cleanUp();
+        return controlGroup.size();
+    }
+
+    public long getNbOfExpiredAttempts() {
+        return nbOfExpiredAttempts.sum();
+    }
+
+    public long getNbOfEvictedAttempts() {
+        return nbOfEvictedAttempts.sum();
+    }
+
+    private static final class TrackedAttempt {
+
+        private final UUID tenantId;
+        private final AuthorizationDeclineCode authorizationDeclineCode;
+
+        private TrackedAttempt(final UUID tenantId, final AuthorizationDeclineCode authorizationDeclineCode) {
+            this.tenantId = tenantId;
+            this.authorizationDeclineCode = authorizationDeclineCode;
+        }
+    }
+}
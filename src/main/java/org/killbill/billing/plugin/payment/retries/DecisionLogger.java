@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Decision logs, formatted and written by a background thread: payment threads only copy a few fields into a preallocated
+// ring buffer slot. Events are sampled per tenant, and dropped (and counted) when the buffer is full, payment threads
+// never wait for the logger. A synchronous logger (see synchronous()) writes the events on the calling thread instead,
+// for callers which don't manage its lifecycle.
+public class DecisionLogger {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    public enum EventType {
+        PREVENTED_RETRY,
+        SUCCESSFUL_RETRY,
+        FAILED_RETRY,
+        DECLINE_CODE
+    }
+
+    public interface SamplingRates {
+
+        // Percentage of the events of that tenant to log, between 0 and 100
+        double getSamplingPct(UUID tenantId);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DecisionLogger.class);
+
+    private static final SamplingRates LOG_ALL = new SamplingRates() {
+        @Override
+        public double getSamplingPct(final UUID tenantId) {
+            return 100.0;
+        }
+    };
+
+    // The draining thread backs off exponentially while there is nothing to write
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(64);
+    private static final long STOP_TIMEOUT_SECONDS = 5L;
+
+    private final Event[] ring;
+    private final int mask;
+    private final SamplingRates samplingRates;
+    private final boolean synchronous;
+
+    // Next sequence to claim by the producers
+    private final AtomicLong claimedSequence = new AtomicLong();
+    // Next sequence to drain, only written by the draining thread
+    private volatile long drainedSequence = 0L;
+
+    private final LongAdder nbOfWrittenEvents = new LongAdder();
+    private final LongAdder nbOfDroppedEvents = new LongAdder();
+    private long nbOfReportedDroppedEvents = 0L;
+
+    private ExecutorService executor;
+    private volatile Thread drainingThread;
+    private volatile boolean running;
+
+    // Events are only written once started
+    public DecisionLogger() {
+        this(DEFAULT_CAPACITY, LOG_ALL);
+    }
+
+    public DecisionLogger(final int capacity, final SamplingRates samplingRates) {
+        this(capacity, samplingRates, false);
+    }
+
+    private DecisionLogger(final int capacity, final SamplingRates samplingRates, final boolean synchronous) {
+        // Rounded up to a power of two, to map sequences to slots with a mask
+        final int ringSize = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.ring = new Event[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = ringSize - 1;
+        this.samplingRates = samplingRates;
+        this.synchronous = synchronous;
+    }
+
+    // Logs all events, on the calling thread: doesn't need to be started nor stopped
+    public static DecisionLogger synchronous() {
+        return new DecisionLogger(1, LOG_ALL, true);
+    }
+
+    public void start() {
+        if (synchronous) {
+            return;
+        }
+
+        running = true;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("payment-retries-decision-logger-%d")
+                                                                               .setDaemon(true)
+                                                                               .build());
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                drainingThread = Thread.currentThread();
+                long idleParkNanos = MIN_IDLE_PARK_NANOS;
+                while (running) {
+                    if (drain() > 0) {
+                        idleParkNanos = MIN_IDLE_PARK_NANOS;
+                    } else {
+                        LockSupport.parkNanos(idleParkNanos);
+                        idleParkNanos = Math.min(2 * idleParkNanos, MAX_IDLE_PARK_NANOS);
+                    }
+                }
+            }
+        });
+    }
+
+    public void stop() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+
+        running = false;
+        // Don't wait for the current back-off to expire
+        LockSupport.unpark(drainingThread);
+        executor.shutdown();
+        if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warn("Timeout while waiting for the decision logger to stop");
+            return;
+        }
+        // Last events, on the calling thread since the executor is gone
+        drain();
+    }
+
+    // Callers should check it before gathering the fields of an event
+    public boolean isSampled(final UUID tenantId) {
+        final double samplingPct = samplingRates.getSamplingPct(tenantId);
+        return samplingPct >= 100.0 || (samplingPct > 0 && ThreadLocalRandom.current().nextDouble(100.0) < samplingPct);
+    }
+
+    // PREVENTED_RETRY (count: aborted retries, total: attempted retries), SUCCESSFUL_RETRY or FAILED_RETRY (count: successful
+    // or failed retries, total: retries with an outcome)
+    public void logRetry(final EventType type, final UUID attemptPaymentId, final long count, final long total, final AuthorizationDeclineCode authorizationDeclineCode, final boolean isRetryable) {
+        final long sequence = claim();
+        if (sequence < 0) {
+            return;
+        }
+
+        final Event event = synchronous ? new Event() : ring[(int) (sequence & mask)];
+        event.type = type;
+        event.paymentId = attemptPaymentId;
+        event.count = count;
+        event.total = total;
+        event.authorizationDeclineCode = authorizationDeclineCode;
+        event.isRetryable = isRetryable;
+        publish(event, sequence);
+    }
+
+    public void logDeclineCode(final PaymentTransaction failedAuthorization, final AuthorizationDeclineCode authorizationDeclineCode) {
+        final long sequence = claim();
+        if (sequence < 0) {
+            return;
+        }
+
+        final Event event = synchronous ? new Event() : ring[(int) (sequence & mask)];
+        event.type = EventType.DECLINE_CODE;
+        event.paymentId = failedAuthorization.getId();
+        event.paymentTransactionExternalKey = failedAuthorization.getExternalKey();
+        event.gatewayErrorCode = failedAuthorization.getGatewayErrorCode();
+        event.gatewayErrorMsg = failedAuthorization.getGatewayErrorMsg();
+        event.authorizationDeclineCode = authorizationDeclineCode;
+        event.isRetryable = authorizationDeclineCode.isRetryable();
+        publish(event, sequence);
+    }
+
+    @VisibleForTesting
+    long getNbOfWrittenEvents() {
+        return nbOfWrittenEvents.sum();
+    }
+
+    public long getNbOfDroppedEvents() {
+        return nbOfDroppedEvents.sum();
+    }
+
+    // Writes the published events, returns how many
+    @VisibleForTesting
+    synchronized int drain() {
+        int nbOfDrainedEvents = 0;
+        long sequence = drainedSequence;
+        while (true) {
+            final Event event = ring[(int) (sequence & mask)];
+            if (event.publishedSequence != sequence) {
+                // Empty, or the producer is still filling that slot
+                break;
+            }
+
+            write(event);
+            nbOfWrittenEvents.increment();
+            event.clear();
+            sequence++;
+            // Frees the slot for the producers
+            drainedSequence = sequence;
+            nbOfDrainedEvents++;
+        }
+
+        final long dropped = nbOfDroppedEvents.sum();
+        if (dropped != nbOfReportedDroppedEvents) {
+            logger.warn("Decision log buffer full, dropped nbOfEvents='{}'", dropped - nbOfReportedDroppedEvents);
+            nbOfReportedDroppedEvents = dropped;
+        }
+        return nbOfDrainedEvents;
+    }
+
+    // Returns -1 if the buffer is full
+    private long claim() {
+        if (synchronous) {
+            // No slot needed
+            return 0L;
+        }
+
+        while (true) {
+            final long sequence = claimedSequence.get();
+            if (sequence - drainedSequence >= ring.length) {
+                nbOfDroppedEvents.increment();
+                return -1;
+            }
+            if (claimedSequence.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    private void publish(final Event event, final long sequence) {
+        if (synchronous) {
+            write(event);
+            nbOfWrittenEvents.increment();
+        } else {
+            // Last: the draining thread can now read the slot
+            event.publishedSequence = sequence;
+        }
+    }
+
+    private void write(final Event event) {
+        final AuthorizationDeclineCode authorizationDeclineCode = event.authorizationDeclineCode;
+        switch (event.type) {
+            case PREVENTED_RETRY:
+                logger.info("Prevented retry attemptPaymentId='{}', totalAborted='{}', nbOfAttemptedRetries='{}', totalAbortedPct='{}', processorMessage='{}', processorCode='{}', isRetryable='{}'",
+                            event.paymentId, event.count, event.total, pct(event.count, event.total), authorizationDeclineCode.getMessage(), authorizationDeclineCode.getCode(), event.isRetryable);
+                break;
+            case SUCCESSFUL_RETRY:
+                logger.info("Successful retry attemptPaymentId='{}', nbOfSuccessfulRetries='{}', nbOfRetries='{}', totalSuccessesPct='{}', processorMessage='{}', processorCode='{}', isRetryable='{}'",
+                            event.paymentId, event.count, event.total, pct(event.count, event.total), authorizationDeclineCode.getMessage(), authorizationDeclineCode.getCode(), event.isRetryable);
+                break;
+            case FAILED_RETRY:
+                logger.info("Failed retry attemptPaymentId='{}', nbOfFailedRetries='{}', nbOfRetries='{}', totalFailedPct='{}', processorMessage='{}', processorCode='{}', isRetryable='{}'",
+                            event.paymentId, event.count, event.total, pct(event.count, event.total), authorizationDeclineCode.getMessage(), authorizationDeclineCode.getCode(), event.isRetryable);
+                break;
+            case DECLINE_CODE:
+                logger.info("PaymentRetriesApi paymentTransactionId='{}', paymentTransactionExternalKey='{}', gatewayErrorCode='{}', gatewayErrorMsg='{}', processorMessage='{}', processorCode='{}', isRetryable='{}'",
+                            event.paymentId, event.paymentTransactionExternalKey, event.gatewayErrorCode, event.gatewayErrorMsg, authorizationDeclineCode.getMessage(), authorizationDeclineCode.getCode(), event.isRetryable);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static double pct(final long count, final long total) {
+        return Math.floor(100.0 * count / total);
+    }
+
+    // Ring buffer slot, reused
+    private static final class Event {
+
+        private EventType type;
+        private UUID paymentId;
+        private long count;
+        private long total;
+        private AuthorizationDeclineCode authorizationDeclineCode;
+        private boolean isRetryable;
+        private String paymentTransactionExternalKey;
+        private String gatewayErrorCode;
+        private String gatewayErrorMsg;
+        // Written last by the producer: the slot is ready once it matches the sequence being drained
+        private volatile long publishedSequence = -1L;
+
+        // Don't retain the payment objects
+        private void clear() {
+            paymentId = null;
+            authorizationDeclineCode = null;
+            paymentTransactionExternalKey = null;
+            gatewayErrorCode = null;
+            gatewayErrorMsg = null;
+        }
+    }
+}
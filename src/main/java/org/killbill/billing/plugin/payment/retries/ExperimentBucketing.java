@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+
+// Stable assignment of accounts (or payment methods) to experiment buckets: hashing the ids with the salt of the
+// experiment, so that all retries of an account land in the same group and each experiment gets its own population.
+// Hashing only uses primitive arithmetic (no allocation on the priorCall path).
+public final class ExperimentBucketing {
+
+    public static final int NB_BUCKETS = 100;
+
+    private ExperimentBucketing() {}
+
+    // Whether the id is part of the first trafficPct buckets of that experiment
+    public static boolean isInExperiment(final UUID tenantId, final UUID id, final long salt, final int trafficPct) {
+        return getBucket(tenantId, id, salt) < trafficPct;
+    }
+
+    // Between 0 and NB_BUCKETS - 1
+    public static int getBucket(final UUID tenantId, final UUID id, final long salt) {
+        long hash = mix(salt);
+        if (tenantId != null) {
+            hash = mix(hash ^ tenantId.getMostSignificantBits());
+            hash = mix(hash ^ tenantId.getLeastSignificantBits());
+        }
+        hash = mix(hash ^ id.getMostSignificantBits());
+        hash = mix(hash ^ id.getLeastSignificantBits());
+        // Math.abs would return a negative value for Long.MIN_VALUE
+        return (int) Math.floorMod(hash, (long) NB_BUCKETS);
+    }
+
+    // Finalizer of MurmurHash3 (64-bit): each input bit affects all output bits
+    private static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
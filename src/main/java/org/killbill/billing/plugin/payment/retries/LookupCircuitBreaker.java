@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+// Per-tenant circuit breaker around the decline code lookup of priorCall: after too many consecutive timeouts or failures,
+// lookups are skipped for a while. Once that period is over, a single lookup is let through to probe the backend.
+public class LookupCircuitBreaker {
+
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final Ticker ticker;
+    private final ConcurrentMap<UUID, TenantState> statePerTenant = new ConcurrentHashMap<UUID, TenantState>();
+
+    public LookupCircuitBreaker() {
+        this(Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    LookupCircuitBreaker(final Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    public boolean allowLookup(@Nullable final UUID tenantId) {
+        final TenantState state = statePerTenant.get(toTenantKey(tenantId));
+        if (state == null) {
+            return true;
+        }
+
+        final long openUntilNanos = state.openUntilNanos.get();
+        if (openUntilNanos == CLOSED) {
+            return true;
+        } else if (ticker.read() - openUntilNanos < 0) {
+            return false;
+        } else {
+            // Half-open
+            return state.probeInFlight.compareAndSet(false, true);
+        }
+    }
+
+    public void recordSuccess(@Nullable final UUID tenantId) {
+        final TenantState state = statePerTenant.get(toTenantKey(tenantId));
+        if (state == null) {
+            return;
+        }
+
+        state.consecutiveFailures.set(0);
+        state.openUntilNanos.set(CLOSED);
+        state.probeInFlight.set(false);
+    }
+
+    // A zero or negative threshold disables the circuit breaker
+    public void recordFailure(@Nullable final UUID tenantId, final int failureThreshold, final long openSeconds) {
+        if (failureThreshold <= 0) {
+            return;
+        }
+
+        final TenantState state = getState(tenantId);
+        final int consecutiveFailures = state.consecutiveFailures.incrementAndGet();
+        // A failed probe re-opens the circuit right away
+        if (consecutiveFailures >= failureThreshold || state.probeInFlight.get()) {
+            state.openUntilNanos.set(ticker.read() + TimeUnit.SECONDS.toNanos(openSeconds));
+            state.probeInFlight.set(false);
+        }
+    }
+
+    public boolean isOpen(@Nullable final UUID tenantId) {
+        final TenantState state = statePerTenant.get(toTenantKey(tenantId));
+        return state != null && state.openUntilNanos.get() != CLOSED;
+    }
+
+    private TenantState getState(@Nullable final UUID tenantId) {
+        final UUID tenantKey = toTenantKey(tenantId);
+        final TenantState state = statePerTenant.get(tenantKey);
+        if (state != null) {
+            return state;
+        }
+
+        final TenantState newState = new TenantState();
+        final TenantState existingState = statePerTenant.putIfAbsent(tenantKey, newState);
+        return existingState == null ? newState : existingState;
+    }
+
+    private static UUID toTenantKey(@Nullable final UUID tenantId) {
+        return tenantId == null ? PaymentRetriesStatsRegistry.NO_TENANT_ID : tenantId;
+    }
+
+    private static final class TenantState {
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong openUntilNanos = new AtomicLong(CLOSED);
+        private final AtomicBoolean probeInFlight = new AtomicBoolean();
+    }
+}
@@ -18,7 +18,6 @@
 package org.killbill.billing.plugin.payment.retries;
 
 import java.math.BigDecimal;
-import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -32,25 +31,31 @@ import org.killbill.billing.payment.api.PaymentTransaction;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.payment.api.TransactionStatus;
 import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.api.PluginTenantContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 
 public class OSGIKillbillAPIWrapper {
 
     private static final Logger logger = LoggerFactory.getLogger(OSGIKillbillAPIWrapper.class);
 
+    // Long-lived accounts can have thousands of payments: only look at the most recent ones
+    public static final int DEFAULT_MAX_PAYMENTS_TO_SCAN = 100;
+
     private final OSGIKillbillAPI killbillAPI;
+    private final int maxPaymentsToScan;
 
     public OSGIKillbillAPIWrapper(final OSGIKillbillAPI killbillAPI) {
+        this(killbillAPI, DEFAULT_MAX_PAYMENTS_TO_SCAN);
+    }
+
+    public OSGIKillbillAPIWrapper(final OSGIKillbillAPI killbillAPI, final int maxPaymentsToScan) {
         this.killbillAPI = killbillAPI;
+        this.maxPaymentsToScan = maxPaymentsToScan;
     }
 
     public Payment getPayment(final String paymentExternalKey, final UUID tenantId) {
@@ -58,8 +63,9 @@ public class OSGIKillbillAPIWrapper {
 
         try {
             final PaymentApi paymentApi = killbillAPI.getPaymentApi();
+            // Plugin info is fetched on demand, see getPaymentTransactionInfoPlugin
             return paymentApi.getPaymentByExternalKey(paymentExternalKey,
-                                                      true,
+                                                      false,
                                                       false,
                                                       ImmutableList.<PluginProperty>of(),
                                                       tenantContext);
@@ -92,16 +98,8 @@ public class OSGIKillbillAPIWrapper {
     }
 
     public PaymentTransaction getLastAuthorizationIfFailed(final UUID accountId, final UUID paymentMethodId, final UUID tenantId) {
-        final TenantContext tenantContext = new PluginTenantContext(tenantId);
-
         try {
-            final PaymentApi paymentApi = killbillAPI.getPaymentApi();
-            final List<Payment> payments = paymentApi.getAccountPayments(accountId,
-                                                                         true,
-                                                                         false,
-                                                                         ImmutableList.<PluginProperty>of(),
-                                                                         tenantContext);
-            return getLastAuthorizationIfFailed(payments, paymentMethodId);
+            return getLastAuthorizationIfFailedOrThrow(accountId, paymentMethodId, tenantId);
         } catch (final OSGIServiceNotAvailable e) {
             logger.warn("Unable to retrieve payments for accountId='{}'", accountId, e);
             return null;
@@ -111,48 +109,79 @@ public class OSGIKillbillAPIWrapper {
         }
     }
 
+    // Same as getLastAuthorizationIfFailed, but lets the caller tell a lookup failure from the absence of a failed authorization
+    public PaymentTransaction getLastAuthorizationIfFailedOrThrow(final UUID accountId, final UUID paymentMethodId, final UUID tenantId) throws PaymentApiException {
+        return getLastAuthorizationIfFailed(getAccountPayments(accountId, tenantId), paymentMethodId);
+    }
+
+    public List<Payment> getAccountPayments(final UUID accountId, final UUID tenantId) throws PaymentApiException {
+        final TenantContext tenantContext = new PluginTenantContext(tenantId);
+
+        final PaymentApi paymentApi = killbillAPI.getPaymentApi();
+        // Plugin info is fetched on demand, see getPaymentTransactionInfoPlugin
+        return paymentApi.getAccountPayments(accountId,
+                                             false,
+                                             false,
+                                             ImmutableList.<PluginProperty>of(),
+                                             tenantContext);
+    }
+
+    // Second phase of the lookup: only the transaction being classified needs a round trip to the gateway plugin
+    public PaymentTransactionInfoPlugin getPaymentTransactionInfoPlugin(final PaymentTransaction paymentTransaction, final UUID tenantId) throws PaymentApiException {
+        if (paymentTransaction.getPaymentInfoPlugin() != null) {
+            return paymentTransaction.getPaymentInfoPlugin();
+        }
+
+        final TenantContext tenantContext = new PluginTenantContext(tenantId);
+
+        final PaymentApi paymentApi = killbillAPI.getPaymentApi();
+        final Payment payment = paymentApi.getPayment(paymentTransaction.getPaymentId(),
+                                                      true,
+                                                      false,
+                                                      ImmutableList.<PluginProperty>of(),
+                                                      tenantContext);
+        for (final PaymentTransaction transactionWithPluginInfo : payment.getTransactions()) {
+            if (paymentTransaction.getId().equals(transactionWithPluginInfo.getId())) {
+                return transactionWithPluginInfo.getPaymentInfoPlugin();
+            }
+        }
+        return null;
+    }
+
     public PaymentTransaction getLastAuthorizationIfFailed(final Payment payment) {
         return getLastAuthorizationIfFailed(ImmutableList.<Payment>of(payment), payment.getPaymentMethodId());
     }
 
-    @VisibleForTesting
-    PaymentTransaction getLastAuthorizationIfFailed(final Collection<Payment> payments, final UUID paymentMethodId) {
-        if (payments.isEmpty()) {
-            // First payment for this account
-            return null;
+    public PaymentTransaction getLastAuthorizationIfFailed(final List<Payment> payments, final UUID paymentMethodId) {
+        // Payments are returned oldest first: walk them backwards and stop at the most recent one for this payment method
+        Payment lastPayment = null;
+        final int lowestIndex = Math.max(0, payments.size() - maxPaymentsToScan);
+        for (int i = payments.size() - 1; i >= lowestIndex; i--) {
+            final Payment payment = payments.get(i);
+            if (paymentMethodId.equals(payment.getPaymentMethodId())) {
+                lastPayment = payment;
+                break;
+            }
         }
-
-        final Collection<Payment> paymentsForCurrentPaymentMethod = Collections2.<Payment>filter(payments,
-                                                                                                 new Predicate<Payment>() {
-                                                                                                     @Override
-                                                                                                     public boolean apply(final Payment payment) {
-                                                                                                         return paymentMethodId.equals(payment.getPaymentMethodId());
-                                                                                                     }
-                                                                                                 });
-        if (paymentsForCurrentPaymentMethod.isEmpty()) {
-            // First payment for this payment method
+        if (lastPayment == null) {
+            // First payment for this payment method (or none recent enough)
             return null;
         }
 
-        final Payment lastPayment = Iterables.getLast(paymentsForCurrentPaymentMethod);
         // Non-zero auth or auth voided means the authorization was successful
         if ((lastPayment.getAuthAmount() != null && BigDecimal.ZERO.compareTo(lastPayment.getAuthAmount()) != 0) ||
             lastPayment.isAuthVoided()) {
             return null;
         }
 
-        final Collection<PaymentTransaction> failedAuthorizations = Collections2.<PaymentTransaction>filter(lastPayment.getTransactions(),
-                                                                                                            new Predicate<PaymentTransaction>() {
-                                                                                                                @Override
-                                                                                                                public boolean apply(final PaymentTransaction paymentTransaction) {
-                                                                                                                    return paymentTransaction.getTransactionType() == TransactionType.AUTHORIZE ||
-                                                                                                                           paymentTransaction.getTransactionStatus() == TransactionStatus.PAYMENT_FAILURE;
-                                                                                                                }
-                                                                                                            });
-        if (failedAuthorizations.isEmpty()) {
-            return null;
-        } else {
-            return Iterables.getLast(failedAuthorizations);
+        final List<PaymentTransaction> transactions = lastPayment.getTransactions();
+        for (int i = transactions.size() - 1; i >= 0; i--) {
+            final PaymentTransaction paymentTransaction = transactions.get(i);
+            if (paymentTransaction.getTransactionType() == TransactionType.AUTHORIZE ||
+                paymentTransaction.getTransactionStatus() == TransactionStatus.PAYMENT_FAILURE) {
+                return paymentTransaction;
+            }
         }
+        return null;
     }
 }
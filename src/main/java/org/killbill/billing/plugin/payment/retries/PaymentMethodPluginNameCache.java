@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.payment.api.PaymentMethod;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+// Plugin name per payment method: it is set when the payment method is created and never changes
+public class PaymentMethodPluginNameCache {
+
+    public static final long DEFAULT_MAX_PAYMENT_METHODS = 100000L;
+    public static final long DEFAULT_TTL_SECONDS = 3600L;
+
+    private final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper;
+    private final Cache<PaymentMethodKey, String> pluginNames;
+
+    public PaymentMethodPluginNameCache(final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper) {
+        this(osgiKillbillAPIWrapper, DEFAULT_MAX_PAYMENT_METHODS, DEFAULT_TTL_SECONDS);
+    }
+
+    public PaymentMethodPluginNameCache(final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper, final long maxPaymentMethods, final long ttlSeconds) {
+        this.osgiKillbillAPIWrapper = osgiKillbillAPIWrapper;
+        this.pluginNames = CacheBuilder.newBuilder()
+                                       .maximumSize(maxPaymentMethods)
+                                       .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                       .recordStats()
+                                       .build();
+    }
+
+    // Concurrent lookups of the same payment method (e.g. within a batch) share a single call to Kill Bill
+    public String getPluginName(final UUID paymentMethodId, final UUID tenantId) {
+        try {
+            return pluginNames.get(new PaymentMethodKey(paymentMethodId, tenantId),
+                                   new Callable<String>() {
+                                       @Override
+                                       public String call() {
+                                           final PaymentMethod paymentMethod = osgiKillbillAPIWrapper.getPaymentMethod(paymentMethodId, tenantId);
+                                           // Null isn't cached (InvalidCacheLoadException): the payment method may not be visible yet
+                                           return paymentMethod == null ? null : paymentMethod.getPluginName();
+                                       }
+                                   });
+        } catch (final InvalidCacheLoadException e) {
+            return null;
+        } catch (final UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public long getHitCount() {
+        return pluginNames.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return pluginNames.stats().missCount();
+    }
+
+    public long size() {
+        return pluginNames.size();
+    }
+
+    private static boolean sameTenant(final UUID tenantId, final UUID otherTenantId) {
+        return tenantId != null ? tenantId.equals(otherTenantId) : otherTenantId == null;
+    }
+
+    private static final class PaymentMethodKey {
+
+        private final UUID paymentMethodId;
+        private final UUID tenantId;
+
+        private PaymentMethodKey(final UUID paymentMethodId, final UUID tenantId) {
+            this.paymentMethodId = paymentMethodId;
+            this.tenantId = tenantId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final PaymentMethodKey that = (PaymentMethodKey) o;
+            return paymentMethodId.equals(that.paymentMethodId) && sameTenant(tenantId, that.tenantId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * paymentMethodId.hashCode() + (tenantId != null ? tenantId.hashCode() : 0);
+        }
+    }
+}
@@ -17,8 +17,12 @@
 
 package org.killbill.billing.plugin.payment.retries;
 
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.UUID;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServlet;
@@ -31,13 +35,25 @@ import org.killbill.billing.plugin.payment.retries.api.PaymentRetriesApi;
 import org.killbill.billing.plugin.payment.retries.config.DefaultPaymentRetriesApi;
 import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesConfiguration;
 import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesConfigurationHandler;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsDao;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics;
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
 import org.osgi.framework.BundleContext;
 
 public class PaymentRetriesActivator extends KillbillActivatorBase {
 
     public static final String PLUGIN_NAME = "payment-retries-plugin";
 
+    private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.payment.retries.";
+
     private PaymentRetriesConfigurationHandler paymentRetriesConfigurationHandler;
+    private AuthorizationDeclineCodeCache authorizationDeclineCodeCache;
+    private PaymentMethodPluginNameCache paymentMethodPluginNameCache;
+    private PaymentRetriesStatsFlusher paymentRetriesStatsFlusher;
+    private TenantAwareExecutor tenantAwareExecutor;
+    private AsyncLookupExecutor asyncLookupExecutor;
+    private RulesFileReloader rulesFileReloader;
+    private DecisionLogger decisionLogger;
 
     @Override
     public void start(final BundleContext context) throws Exception {
@@ -48,26 +64,116 @@ public class PaymentRetriesActivator extends KillbillActivatorBase {
         final PaymentRetriesConfiguration globalConfigurable = paymentRetriesConfigurationHandler.createConfigurable(configProperties.getProperties());
         paymentRetriesConfigurationHandler.setDefaultConfigurable(globalConfigurable);
 
-        final PaymentRetriesApi paymentRetriesApi = new DefaultPaymentRetriesApi(killbillAPI);
+        authorizationDeclineCodeCache = new AuthorizationDeclineCodeCache(getLongProperty("declineCodeCache.maxAccounts", AuthorizationDeclineCodeCache.DEFAULT_MAX_ACCOUNTS),
+                                                                          getLongProperty("declineCodeCache.ttlSeconds", AuthorizationDeclineCodeCache.DEFAULT_TTL_SECONDS));
+
+        final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper = new OSGIKillbillAPIWrapper(killbillAPI,
+                                                                                     (int) getLongProperty("maxPaymentsToScan", OSGIKillbillAPIWrapper.DEFAULT_MAX_PAYMENTS_TO_SCAN));
+        paymentMethodPluginNameCache = new PaymentMethodPluginNameCache(osgiKillbillAPIWrapper,
+                                                                        getLongProperty("paymentMethodCache.maxPaymentMethods", PaymentMethodPluginNameCache.DEFAULT_MAX_PAYMENT_METHODS),
+                                                                        getLongProperty("paymentMethodCache.ttlSeconds", PaymentMethodPluginNameCache.DEFAULT_TTL_SECONDS));
+        final PaymentRetriesMetrics paymentRetriesMetrics = new PaymentRetriesMetrics();
+        tenantAwareExecutor = new TenantAwareExecutor((int) getLongProperty("lookups.nbThreads", TenantAwareExecutor.DEFAULT_NB_THREADS),
+                                                      (int) getLongProperty("lookups.maxConcurrencyPerTenant", TenantAwareExecutor.DEFAULT_MAX_CONCURRENCY_PER_TENANT),
+                                                      (int) getLongProperty("lookups.queueSize", TenantAwareExecutor.DEFAULT_QUEUE_SIZE));
+        asyncLookupExecutor = new AsyncLookupExecutor((int) getLongProperty("asyncLookups.nbThreads", AsyncLookupExecutor.DEFAULT_NB_THREADS),
+                                                      (int) getLongProperty("asyncLookups.queueSize", AsyncLookupExecutor.DEFAULT_QUEUE_SIZE));
+        final RulesComputer rulesComputer = new RulesComputer();
+        final String rulesFile = configProperties.getString(PROPERTY_PREFIX + "rules.file");
+        if (rulesFile != null) {
+            rulesFileReloader = new RulesFileReloader(rulesComputer,
+                                                      authorizationDeclineCodeCache,
+                                                      new File(rulesFile),
+                                                      getLongProperty("rules.pollIntervalSeconds", RulesFileReloader.DEFAULT_POLL_INTERVAL_SECONDS));
+            rulesFileReloader.start();
+        }
+        decisionLogger = new DecisionLogger((int) getLongProperty("decisionLog.bufferSize", DecisionLogger.DEFAULT_CAPACITY),
+                                            new DecisionLogger.SamplingRates() {
+                                                @Override
+                                                public double getSamplingPct(final UUID tenantId) {
+                                                    return paymentRetriesConfigurationHandler.getConfigurable(tenantId).getPolicy().getDecisionLogSamplingPct();
+                                                }
+                                            });
+        decisionLogger.start();
+        final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry = new PaymentRetriesStatsRegistry(rulesComputer, clock.getClock());
+        final PaymentRetriesApi paymentRetriesApi = new DefaultPaymentRetriesApi(osgiKillbillAPIWrapper,
+                                                                                 authorizationDeclineCodeCache,
+                                                                                 paymentMethodPluginNameCache,
+                                                                                 rulesComputer,
+                                                                                 paymentRetriesMetrics,
+                                                                                 tenantAwareExecutor,
+                                                                                 asyncLookupExecutor,
+                                                                                 decisionLogger,
+                                                                                 paymentRetriesStatsRegistry);
         registrar.registerService(context, PaymentRetriesApi.class, paymentRetriesApi, new Hashtable());
 
+        final PaymentRetriesStatsDao paymentRetriesStatsDao = new PaymentRetriesStatsDao(dataSource.getDataSource());
+        final PaymentRetriesClusterStats paymentRetriesClusterStats = new PaymentRetriesClusterStats(getNodeId(), paymentRetriesStatsRegistry, paymentRetriesStatsDao);
+        paymentRetriesStatsFlusher = new PaymentRetriesStatsFlusher(paymentRetriesStatsRegistry,
+                                                                    paymentRetriesClusterStats,
+                                                                    paymentRetriesStatsDao,
+                                                                    clock.getClock(),
+                                                                    getLongProperty("stats.flushIntervalSeconds", PaymentRetriesStatsFlusher.DEFAULT_FLUSH_INTERVAL_SECONDS));
+        paymentRetriesStatsFlusher.start();
+
+        final ControlGroupTracker controlGroupTracker = new ControlGroupTracker(paymentRetriesStatsRegistry,
+                                                                                getLongProperty("controlGroup.maxAttempts", ControlGroupTracker.DEFAULT_MAX_ATTEMPTS),
+                                                                                getLongProperty("controlGroup.ttlSeconds", ControlGroupTracker.DEFAULT_TTL_SECONDS));
         final PaymentControlPluginApi paymentControlPluginApi = new PaymentRetriesPaymentControlPluginApi(paymentRetriesConfigurationHandler,
                                                                                                           paymentRetriesApi,
+                                                                                                          paymentRetriesStatsRegistry,
+                                                                                                          paymentRetriesClusterStats,
+                                                                                                          controlGroupTracker,
+                                                                                                          paymentRetriesMetrics,
+                                                                                                          new LookupCircuitBreaker(),
+                                                                                                          decisionLogger,
                                                                                                           killbillAPI,
                                                                                                           configProperties,
                                                                                                           logService,
                                                                                                           clock.getClock());
         registerPaymentControlPluginApi(context, paymentControlPluginApi);
 
-        final PaymentRetriesServlet analyticsServlet = new PaymentRetriesServlet(paymentRetriesApi);
+        final PaymentRetriesServlet analyticsServlet = new PaymentRetriesServlet(paymentRetriesApi, paymentRetriesClusterStats, paymentRetriesMetrics, controlGroupTracker, paymentMethodPluginNameCache, rulesComputer, tenantAwareExecutor, decisionLogger);
         registerServlet(context, analyticsServlet);
 
         registerEventHandler();
     }
 
+    @Override
+    public void stop(final BundleContext context) throws Exception {
+        if (rulesFileReloader != null) {
+            rulesFileReloader.stop();
+        }
+        if (paymentRetriesStatsFlusher != null) {
+            paymentRetriesStatsFlusher.stop();
+        }
+        if (tenantAwareExecutor != null) {
+            tenantAwareExecutor.shutdown();
+        }
+        if (asyncLookupExecutor != null) {
+            asyncLookupExecutor.shutdown();
+        }
+        if (decisionLogger != null) {
+            decisionLogger.stop();
+        }
+        super.stop(context);
+    }
+
     private void registerEventHandler() {
         final PluginConfigurationEventHandler eventHandler = new PluginConfigurationEventHandler(paymentRetriesConfigurationHandler);
-        dispatcher.registerEventHandlers(eventHandler);
+        final PaymentRetriesEventHandler paymentRetriesEventHandler = new PaymentRetriesEventHandler(authorizationDeclineCodeCache);
+        dispatcher.registerEventHandlers(eventHandler, paymentRetriesEventHandler);
+    }
+
+    // Identifies the rows of this node in the stats table
+    private String getNodeId() throws UnknownHostException {
+        final String nodeId = configProperties.getString(PROPERTY_PREFIX + "nodeId");
+        return nodeId == null ? InetAddress.getLocalHost().getHostName() : nodeId;
+    }
+
+    private long getLongProperty(final String propertyName, final long defaultValue) {
+        final String value = configProperties.getString(PROPERTY_PREFIX + propertyName);
+        return value == null ? defaultValue : Long.valueOf(value);
     }
 
     private void registerServlet(final BundleContext context, final HttpServlet servlet) {
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.CodeCountsVisitor;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.CountVisitor;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Outcome;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsDao;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+// Cluster-wide view of the stats: live counters of this node, plus the counts persisted by the other nodes (refreshed periodically)
+public class PaymentRetriesClusterStats {
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentRetriesClusterStats.class);
+
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    private final String nodeId;
+    private final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry;
+    private final PaymentRetriesStatsDao paymentRetriesStatsDao;
+
+    private volatile Map<UUID, TenantCounts> otherNodesCounts = ImmutableMap.<UUID, TenantCounts>of();
+
+    public PaymentRetriesClusterStats(final String nodeId,
+                                      final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry,
+                                      final PaymentRetriesStatsDao paymentRetriesStatsDao) {
+        this.nodeId = nodeId;
+        this.paymentRetriesStatsRegistry = paymentRetriesStatsRegistry;
+        this.paymentRetriesStatsDao = paymentRetriesStatsDao;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void refresh() {
+        final List<PaymentRetriesStatsRecord> records;
+        try {
+            records = paymentRetriesStatsDao.getCountsFromOtherNodes(nodeId);
+        } catch (final SQLException | RuntimeException e) {
+            // Keep the previous view
+            logger.warn("Unable to refresh the cluster retry stats", e);
+            return;
+        }
+
+        final Map<UUID, TenantCounts> newCounts = new HashMap<UUID, TenantCounts>();
+        for (final PaymentRetriesStatsRecord record : records) {
+            final Outcome outcome;
+            try {
+                outcome = Outcome.valueOf(record.getOutcome());
+            } catch (final IllegalArgumentException e) {
+                continue;
+            }
+
+            TenantCounts tenantCounts = newCounts.get(record.getTenantId());
+            if (tenantCounts == null) {
+                tenantCounts = new TenantCounts();
+                newCounts.put(record.getTenantId(), tenantCounts);
+            }
+            tenantCounts.add(record.getProcessor(), record.getCode(), outcome, record.getCount());
+        }
+        otherNodesCounts = ImmutableMap.<UUID, TenantCounts>copyOf(newCounts);
+    }
+
+    // Live counters of this node only
+    public PaymentRetriesStats getLocalStats(final UUID tenantId) {
+        return paymentRetriesStatsRegistry.get(tenantId);
+    }
+
+    public long getNbOfRetries(final UUID tenantId) {
+        final TenantCounts tenantCounts = otherNodesCounts.get(toTenantKey(tenantId));
+        return paymentRetriesStatsRegistry.get(tenantId).getNbOfRetries() + (tenantCounts == null ? 0 : tenantCounts.nbOfRetries);
+    }
+
+    public long getNbOfAbortedRetries(final UUID tenantId) {
+        final TenantCounts tenantCounts = otherNodesCounts.get(toTenantKey(tenantId));
+        return paymentRetriesStatsRegistry.get(tenantId).getNbOfAbortedRetries() + (tenantCounts == null ? 0 : tenantCounts.nbOfAbortedRetries);
+    }
+
+    // Number of retries from the control group with a known outcome
+    public long getNbOfRetries(final UUID tenantId, final AuthorizationDeclineCode authorizationDeclineCode) {
+        return get(tenantId, authorizationDeclineCode, Outcome.SUCCESS) + get(tenantId, authorizationDeclineCode, Outcome.FAILURE);
+    }
+
+    public long get(final UUID tenantId, final AuthorizationDeclineCode authorizationDeclineCode, final Outcome outcome) {
+        final long localCount = paymentRetriesStatsRegistry.get(tenantId).get(authorizationDeclineCode, outcome);
+        final TenantCounts tenantCounts = otherNodesCounts.get(toTenantKey(tenantId));
+        return localCount + (tenantCounts == null ? 0 : tenantCounts.get(toProcessorKey(authorizationDeclineCode.getProcessor()), authorizationDeclineCode.getCode(), outcome));
+    }
+
+    // Visits all non-zero cluster-wide counters of that tenant
+    public void visitCounts(final UUID tenantId, final CountVisitor visitor) {
+        final TenantCounts mergedCounts = new TenantCounts();
+        final TenantCounts tenantCounts = otherNodesCounts.get(toTenantKey(tenantId));
+        if (tenantCounts != null) {
+            mergedCounts.addAll(tenantCounts);
+        }
+        paymentRetriesStatsRegistry.get(tenantId).visitCounts(new CountVisitor() {
+            @Override
+            public void visit(final String processor, final int code, final Outcome outcome, final long count) {
+                mergedCounts.add(processor, code, outcome, count);
+            }
+        });
+        mergedCounts.visitCounts(visitor);
+    }
+
+    // Visits the cluster-wide counts of all codes of that tenant with at least one non-zero count. Local codes are visited
+    // first, processor by processor, then the codes only seen by the other nodes.
+    public void visitCodeCounts(final UUID tenantId, final CodeCountsVisitor visitor) {
+        final PaymentRetriesStats localStats = paymentRetriesStatsRegistry.get(tenantId);
+        final TenantCounts tenantCounts = otherNodesCounts.get(toTenantKey(tenantId));
+        final long[] mergedCounts = new long[OUTCOMES.length];
+        localStats.visitCodeCounts(new CodeCountsVisitor() {
+            @Override
+            public void visit(final String processor, final int code, final long[] counts) {
+                final long[] otherNodesCodeCounts = tenantCounts == null ? null : tenantCounts.getCounts(processor, code);
+                boolean hasCounts = false;
+                for (int i = 0; i < OUTCOMES.length; i++) {
+                    mergedCounts[i] = counts[i] + (otherNodesCodeCounts == null ? 0 : otherNodesCodeCounts[i]);
+                    hasCounts = hasCounts || mergedCounts[i] != 0;
+                }
+                if (hasCounts) {
+                    visitor.visit(processor, code, mergedCounts);
+                }
+            }
+        });
+
+        if (tenantCounts != null) {
+            tenantCounts.visitCodeCounts(new CodeCountsVisitor() {
+                @Override
+                public void visit(final String processor, final int code, final long[] counts) {
+                    if (!localStats.isTracked(processor, code)) {
+                        System.arraycopy(counts, 0, mergedCounts, 0, OUTCOMES.length);
+                        visitor.visit(processor, code, mergedCounts);
+                    }
+                }
+            });
+        }
+    }
+
+    private static UUID toTenantKey(final UUID tenantId) {
+        return tenantId == null ? PaymentRetriesStatsRegistry.NO_TENANT_ID : tenantId;
+    }
+
+    private static String toProcessorKey(final String processor) {
+        return processor == null ? PaymentRetriesStats.UNKNOWN_PROCESSOR : processor;
+    }
+
+    // Counts are additive, so that the views of several nodes can be merged
+    private static final class TenantCounts {
+
+        private final Map<String, Map<Integer, long[]>> countsPerProcessor = new HashMap<String, Map<Integer, long[]>>();
+        private long nbOfRetries = 0;
+        private long nbOfAbortedRetries = 0;
+
+        private void add(final String processor, final int code, final Outcome outcome, final long count) {
+            Map<Integer, long[]> countsPerCode = countsPerProcessor.get(processor);
+            if (countsPerCode == null) {
+                countsPerCode = new HashMap<Integer, long[]>();
+                countsPerProcessor.put(processor, countsPerCode);
+            }
+            long[] counts = countsPerCode.get(code);
+            if (counts == null) {
+                counts = new long[OUTCOMES.length];
+                countsPerCode.put(code, counts);
+            }
+            counts[outcome.ordinal()] += count;
+
+            if (outcome == Outcome.ATTEMPTED) {
+                nbOfRetries += count;
+            } else if (outcome == Outcome.ABORTED) {
+                nbOfAbortedRetries += count;
+            }
+        }
+
+        private void addAll(final TenantCounts other) {
+            other.visitCounts(new CountVisitor() {
+                @Override
+                public void visit(final String processor, final int code, final Outcome outcome, final long count) {
+                    add(processor, code, outcome, count);
+                }
+            });
+        }
+
+        private long get(final String processor, final int code, final Outcome outcome) {
+            final long[] counts = getCounts(processor, code);
+            return counts == null ? 0 : counts[outcome.ordinal()];
+        }
+
+        private long[] getCounts(final String processor, final int code) {
+            final Map<Integer, long[]> countsPerCode = countsPerProcessor.get(processor);
+            return countsPerCode == null ? null : countsPerCode.get(code);
+        }
+
+        private void visitCodeCounts(final CodeCountsVisitor visitor) {
+            for (final Map.Entry<String, Map<Integer, long[]>> processorEntry : countsPerProcessor.entrySet()) {
+                for (final Map.Entry<Integer, long[]> codeEntry : processorEntry.getValue().entrySet()) {
+                    visitor.visit(processorEntry.getKey(), codeEntry.getKey(), codeEntry.getValue());
+                }
+            }
+        }
+
+        private void visitCounts(final CountVisitor visitor) {
+            for (final Map.Entry<String, Map<Integer, long[]>> processorEntry : countsPerProcessor.entrySet()) {
+                for (final Map.Entry<Integer, long[]> codeEntry : processorEntry.getValue().entrySet()) {
+                    for (final Outcome outcome : OUTCOMES) {
+                        final long count = codeEntry.getValue()[outcome.ordinal()];
+                        if (count != 0) {
+                            visitor.visit(processorEntry.getKey(), codeEntry.getKey(), outcome, count);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+
+public class PaymentRetriesEventHandler implements OSGIKillbillEventHandler {
+
+    private final AuthorizationDeclineCodeCache authorizationDeclineCodeCache;
+
+    public PaymentRetriesEventHandler(final AuthorizationDeclineCodeCache authorizationDeclineCodeCache) {
+        this.authorizationDeclineCodeCache = authorizationDeclineCodeCache;
+    }
+
+    @Override
+    public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        if (killbillEvent.getAccountId() == null) {
+            return;
+        }
+
+        switch (killbillEvent.getEventType()) {
+            case PAYMENT_SUCCESS:
+            case PAYMENT_FAILED:
+                // A new payment on the account: its last authorization may have changed
+                authorizationDeclineCodeCache.invalidateAccount(killbillEvent.getAccountId(), killbillEvent.getTenantId());
+                break;
+            case ACCOUNT_CHANGE:
+                // There are no payment method events on the bus: default payment method changes are reported as account changes
+                authorizationDeclineCodeCache.invalidateAccount(killbillEvent.getAccountId(), killbillEvent.getTenantId());
+                break;
+            default:
+                break;
+        }
+    }
+}
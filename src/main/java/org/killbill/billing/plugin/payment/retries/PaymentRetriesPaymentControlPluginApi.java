@@ -17,11 +17,12 @@
 
 package org.killbill.billing.plugin.payment.retries;
 
-import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.killbill.billing.control.plugin.api.OnFailurePaymentControlResult;
 import org.killbill.billing.control.plugin.api.OnSuccessPaymentControlResult;
@@ -34,9 +35,16 @@ import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.plugin.api.control.PluginPaymentControlPluginApi;
 import org.killbill.billing.plugin.api.control.PluginPriorPaymentControlResult;
+import org.killbill.billing.plugin.payment.retries.DecisionLogger.EventType;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Outcome;
 import org.killbill.billing.plugin.payment.retries.api.PaymentRetriesApi;
 import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesConfiguration;
 import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesConfigurationHandler;
+import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesPolicy;
+import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesPolicy.ProcessorPolicy;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Decision;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Stage;
 import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
 import org.killbill.clock.Clock;
 import org.slf4j.Logger;
@@ -46,17 +54,23 @@ public class PaymentRetriesPaymentControlPluginApi extends PluginPaymentControlP
 
     private static final Logger logger = LoggerFactory.getLogger(PaymentRetriesPaymentControlPluginApi.class);
 
-    private final Map<UUID, AuthorizationDeclineCode> controlGroup = new ConcurrentHashMap<UUID, AuthorizationDeclineCode>();
-    private final AtomicLong nbOfRetries = new AtomicLong(0L);
-    private final AtomicLong nbOfAbortedRetries = new AtomicLong(0L);
-
-    private final PaymentRetriesStats paymentRetriesStats = new PaymentRetriesStats();
-
     private final PaymentRetriesConfigurationHandler paymentRetriesConfigurationHandler;
     private final PaymentRetriesApi paymentRetriesApi;
+    private final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry;
+    private final PaymentRetriesClusterStats paymentRetriesClusterStats;
+    private final ControlGroupTracker controlGroupTracker;
+    private final PaymentRetriesMetrics paymentRetriesMetrics;
+    private final LookupCircuitBreaker lookupCircuitBreaker;
+    private final DecisionLogger decisionLogger;
 
     public PaymentRetriesPaymentControlPluginApi(final PaymentRetriesConfigurationHandler paymentRetriesConfigurationHandler,
                                                  final PaymentRetriesApi paymentRetriesApi,
+                                                 final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry,
+                                                 final PaymentRetriesClusterStats paymentRetriesClusterStats,
+                                                 final ControlGroupTracker controlGroupTracker,
+                                                 final PaymentRetriesMetrics paymentRetriesMetrics,
+                                                 final LookupCircuitBreaker lookupCircuitBreaker,
+                                                 final DecisionLogger decisionLogger,
                                                  final OSGIKillbillAPI killbillAPI,
                                                  final OSGIConfigPropertiesService configProperties,
                                                  final OSGIKillbillLogService logService,
@@ -64,46 +78,109 @@ public class PaymentRetriesPaymentControlPluginApi extends PluginPaymentControlP
         super(killbillAPI, configProperties, logService, clock);
         this.paymentRetriesConfigurationHandler = paymentRetriesConfigurationHandler;
         this.paymentRetriesApi = paymentRetriesApi;
+        this.paymentRetriesStatsRegistry = paymentRetriesStatsRegistry;
+        this.paymentRetriesClusterStats = paymentRetriesClusterStats;
+        this.controlGroupTracker = controlGroupTracker;
+        this.paymentRetriesMetrics = paymentRetriesMetrics;
+        this.lookupCircuitBreaker = lookupCircuitBreaker;
+        this.decisionLogger = decisionLogger;
     }
 
     @Override
     public PriorPaymentControlResult priorCall(final PaymentControlContext context, final Iterable<PluginProperty> properties) throws PaymentControlApiException {
-        final AuthorizationDeclineCode authorizationDeclineCode = paymentRetriesApi.getAuthorizationDeclineCode(context.getAccountId(), context.getPaymentMethodId(), context.getTenantId());
+        final long startNanos = System.nanoTime();
+        final PaymentRetriesConfiguration paymentRetriesConfiguration = getConfiguration(context.getTenantId());
+
+        final AuthorizationDeclineCode authorizationDeclineCode;
+        if (paymentRetriesConfiguration.getLookupTimeoutMillis() <= 0) {
+            authorizationDeclineCode = paymentRetriesApi.getAuthorizationDeclineCode(context.getAccountId(), context.getPaymentMethodId(), context.getTenantId());
+        } else if (!lookupCircuitBreaker.allowLookup(context.getTenantId())) {
+            // Backend degraded: don't even try
+            return failOpen(context, properties, Decision.CIRCUIT_OPEN, startNanos);
+        } else {
+            final CompletableFuture<AuthorizationDeclineCode> lookup = paymentRetriesApi.getAuthorizationDeclineCodeAsync(context.getAccountId(), context.getPaymentMethodId(), context.getTenantId(), 0, TimeUnit.MILLISECONDS);
+            try {
+                authorizationDeclineCode = lookup.get(paymentRetriesConfiguration.getLookupTimeoutMillis(), TimeUnit.MILLISECONDS);
+                lookupCircuitBreaker.recordSuccess(context.getTenantId());
+            } catch (final TimeoutException e) {
+                lookup.cancel(true);
+                logger.warn("Decline code lookup timed out for attemptPaymentId='{}', lookupTimeoutMillis='{}'", context.getAttemptPaymentId(), paymentRetriesConfiguration.getLookupTimeoutMillis());
+                lookupCircuitBreaker.recordFailure(context.getTenantId(), paymentRetriesConfiguration.getCircuitBreakerFailureThreshold(), paymentRetriesConfiguration.getCircuitBreakerOpenSeconds());
+                return failOpen(context, properties, Decision.LOOKUP_TIMEOUT, startNanos);
+            } catch (final ExecutionException e) {
+                logger.warn("Decline code lookup failed for attemptPaymentId='{}'", context.getAttemptPaymentId(), e.getCause());
+                lookupCircuitBreaker.recordFailure(context.getTenantId(), paymentRetriesConfiguration.getCircuitBreakerFailureThreshold(), paymentRetriesConfiguration.getCircuitBreakerOpenSeconds());
+                return failOpen(context, properties, Decision.LOOKUP_FAILURE, startNanos);
+            } catch (final InterruptedException e) {
+                lookup.cancel(true);
+                Thread.currentThread().interrupt();
+                lookupCircuitBreaker.recordFailure(context.getTenantId(), paymentRetriesConfiguration.getCircuitBreakerFailureThreshold(), paymentRetriesConfiguration.getCircuitBreakerOpenSeconds());
+                return failOpen(context, properties, Decision.LOOKUP_FAILURE, startNanos);
+            }
+        }
+
         if (authorizationDeclineCode == null) {
+            paymentRetriesMetrics.increment(context.getTenantId(), null, Decision.NO_DECLINE);
+            paymentRetriesMetrics.recordLatency(context.getTenantId(), null, Stage.PRIOR_CALL, System.nanoTime() - startNanos);
             return super.priorCall(context, properties);
         }
 
+        final ProcessorPolicy processorPolicy = paymentRetriesConfiguration.getPolicy().getProcessorPolicy(authorizationDeclineCode.getProcessor());
+        if (processorPolicy.isDisabled()) {
+            paymentRetriesMetrics.increment(context.getTenantId(), authorizationDeclineCode.getProcessor(), Decision.PROCESSOR_DISABLED);
+            paymentRetriesMetrics.recordLatency(context.getTenantId(), authorizationDeclineCode.getProcessor(), Stage.PRIOR_CALL, System.nanoTime() - startNanos);
+            return super.priorCall(context, properties);
+        }
+
+        final PaymentRetriesStats paymentRetriesStats = paymentRetriesStatsRegistry.get(context.getTenantId());
+        final boolean isRetryable = processorPolicy.isRetryable(authorizationDeclineCode);
         final boolean isAborted;
-        if (shouldBeFiltered(context.getTenantId())) {
-            isAborted = authorizationDeclineCode.isRetryable();
+        if (shouldBeFiltered(context, paymentRetriesConfiguration, processorPolicy)) {
+            if (isRetryable) {
+                isAborted = true;
+                paymentRetriesMetrics.increment(context.getTenantId(), authorizationDeclineCode.getProcessor(), Decision.ABORTED);
+            } else if (paymentRetriesConfiguration.getPolicy().isAdaptiveAbortEnabled() &&
+                       paymentRetriesConfiguration.getPolicy().isHopeless(paymentRetriesStats.getSuccessRateUpperBound(authorizationDeclineCode))) {
+                // The control group keeps retrying that code, so the success rate is still measured
+                isAborted = true;
+                paymentRetriesMetrics.increment(context.getTenantId(), authorizationDeclineCode.getProcessor(), Decision.ADAPTIVE_ABORTED);
+            } else {
+                isAborted = false;
+                paymentRetriesMetrics.increment(context.getTenantId(), authorizationDeclineCode.getProcessor(), Decision.ALLOWED);
+            }
         } else {
             // Gradual ramp-up to verify the rules
             isAborted = false;
-            controlGroup.put(context.getAttemptPaymentId(), authorizationDeclineCode);
+            controlGroupTracker.track(context.getAttemptPaymentId(), context.getTenantId(), authorizationDeclineCode);
+            paymentRetriesMetrics.increment(context.getTenantId(), authorizationDeclineCode.getProcessor(), Decision.CONTROL);
         }
 
         // Log the stats from the Experiment Group to monitor the rules
-        final long nbOfAttemptedRetries = nbOfRetries.incrementAndGet();
+        paymentRetriesStats.incrementNbOfRetries(authorizationDeclineCode);
         if (isAborted) {
-            final Long totalAborted = nbOfAbortedRetries.incrementAndGet();
-            final double totalAbortedPct = Math.floor(totalAborted / nbOfAttemptedRetries * 100.0);
-            logger.info("Prevented retry attemptPaymentId='{}', totalAborted='{}', nbOfAttemptedRetries='{}', totalAbortedPct='{}', processorMessage='{}', processorCode='{}', isRetryable='{}'",
-                        context.getAttemptPaymentId(), totalAborted, nbOfAttemptedRetries, totalAbortedPct, authorizationDeclineCode.getMessage(), authorizationDeclineCode.getCode(), authorizationDeclineCode.isRetryable());
+            paymentRetriesStats.markRetryAsAborted(authorizationDeclineCode);
+            if (decisionLogger.isSampled(context.getTenantId())) {
+                // Cluster-wide stats
+                decisionLogger.logRetry(EventType.PREVENTED_RETRY,
+                                        context.getAttemptPaymentId(),
+                                        paymentRetriesClusterStats.getNbOfAbortedRetries(context.getTenantId()),
+                                        paymentRetriesClusterStats.getNbOfRetries(context.getTenantId()),
+                                        authorizationDeclineCode,
+                                        isRetryable);
+            }
         }
 
+        paymentRetriesMetrics.recordLatency(context.getTenantId(), authorizationDeclineCode.getProcessor(), Stage.PRIOR_CALL, System.nanoTime() - startNanos);
         return new PluginPriorPaymentControlResult(isAborted, context);
     }
 
     @Override
     public OnSuccessPaymentControlResult onSuccessCall(final PaymentControlContext context, final Iterable<PluginProperty> properties) throws PaymentControlApiException {
-        final AuthorizationDeclineCode authorizationDeclineCode = controlGroup.remove(context.getAttemptPaymentId());
+        final AuthorizationDeclineCode authorizationDeclineCode = controlGroupTracker.remove(context.getAttemptPaymentId());
         if (authorizationDeclineCode != null) {
             // Log the stats from the Control Group to tweak the rules
-            final long nbOfSuccessfulRetries = paymentRetriesStats.markRetriedPaymentAsSuccessful(authorizationDeclineCode);
-            final long nbOfRetries = paymentRetriesStats.getNbOfRetries(authorizationDeclineCode);
-            final double totalSuccessesPct = Math.floor(nbOfSuccessfulRetries / nbOfRetries * 100.0);
-            logger.info("Successful retry attemptPaymentId='{}', nbOfSuccessfulRetries='{}', nbOfRetries='{}', totalSuccessesPct='{}', processorMessage='{}', processorCode='{}', isRetryable='{}'",
-                        context.getAttemptPaymentId(), nbOfSuccessfulRetries, nbOfRetries, totalSuccessesPct, authorizationDeclineCode.getMessage(), authorizationDeclineCode.getCode(), authorizationDeclineCode.isRetryable());
+            paymentRetriesStatsRegistry.get(context.getTenantId()).markRetriedPaymentAsSuccessful(authorizationDeclineCode);
+            logRetryOutcome(context, EventType.SUCCESSFUL_RETRY, Outcome.SUCCESS, authorizationDeclineCode);
         }
 
         return super.onSuccessCall(context, properties);
@@ -111,21 +188,69 @@ public class PaymentRetriesPaymentControlPluginApi extends PluginPaymentControlP
 
     @Override
     public OnFailurePaymentControlResult onFailureCall(final PaymentControlContext context, final Iterable<PluginProperty> properties) throws PaymentControlApiException {
-        final AuthorizationDeclineCode authorizationDeclineCode = controlGroup.remove(context.getAttemptPaymentId());
+        final AuthorizationDeclineCode authorizationDeclineCode = controlGroupTracker.remove(context.getAttemptPaymentId());
         if (authorizationDeclineCode != null) {
             // Log the stats from the Control Group to tweak the rules
-            final long nbOfFailedRetries = paymentRetriesStats.markRetriedPaymentAsFailed(authorizationDeclineCode);
-            final long nbOfRetries = paymentRetriesStats.getNbOfRetries(authorizationDeclineCode);
-            final double totalFailedPct = Math.floor(nbOfFailedRetries / nbOfRetries * 100.0);
-            logger.info("Failed retry attemptPaymentId='{}', nbOfFailedRetries='{}', nbOfRetries='{}', totalFailedPct='{}', processorMessage='{}', processorCode='{}', isRetryable='{}'",
-                        context.getAttemptPaymentId(), nbOfFailedRetries, nbOfRetries, totalFailedPct, authorizationDeclineCode.getMessage(), authorizationDeclineCode.getCode(), authorizationDeclineCode.isRetryable());
+            paymentRetriesStatsRegistry.get(context.getTenantId()).markRetriedPaymentAsFailed(authorizationDeclineCode);
+            logRetryOutcome(context, EventType.FAILED_RETRY, Outcome.FAILURE, authorizationDeclineCode);
         }
 
         return super.onFailureCall(context, properties);
     }
 
-    private boolean shouldBeFiltered(final UUID tenantId) {
+    private void logRetryOutcome(final PaymentControlContext context, final EventType eventType, final Outcome outcome, final AuthorizationDeclineCode authorizationDeclineCode) {
+        if (!decisionLogger.isSampled(context.getTenantId())) {
+            return;
+        }
+        // Cluster-wide stats
+        decisionLogger.logRetry(eventType,
+                                context.getAttemptPaymentId(),
+                                paymentRetriesClusterStats.get(context.getTenantId(), authorizationDeclineCode, outcome),
+                                paymentRetriesClusterStats.getNbOfRetries(context.getTenantId(), authorizationDeclineCode),
+                                authorizationDeclineCode,
+                                authorizationDeclineCode.isRetryable());
+    }
+
+    // Retry checks never block the payment: let it through as if there was no decline code
+    private PriorPaymentControlResult failOpen(final PaymentControlContext context, final Iterable<PluginProperty> properties, final Decision decision, final long startNanos) throws PaymentControlApiException {
+        paymentRetriesMetrics.increment(context.getTenantId(), null, decision);
+        paymentRetriesMetrics.recordLatency(context.getTenantId(), null, Stage.PRIOR_CALL, System.nanoTime() - startNanos);
+        return super.priorCall(context, properties);
+    }
+
+    private PaymentRetriesConfiguration getConfiguration(final UUID tenantId) {
+        final long startNanos = System.nanoTime();
         final PaymentRetriesConfiguration paymentRetriesConfiguration = paymentRetriesConfigurationHandler.getConfigurable(tenantId);
-        return Math.abs(ThreadLocalRandom.current().nextInt()) % 100 < paymentRetriesConfiguration.getExperimentTrafficPct();
+        paymentRetriesMetrics.recordLatency(tenantId, null, Stage.CONFIG_LOOKUP, System.nanoTime() - startNanos);
+        return paymentRetriesConfiguration;
+    }
+
+    private boolean shouldBeFiltered(final PaymentControlContext context, final PaymentRetriesConfiguration paymentRetriesConfiguration, final ProcessorPolicy processorPolicy) {
+        final int experimentTrafficPct = processorPolicy.getExperimentTrafficPct(paymentRetriesConfiguration.getExperimentTrafficPct());
+        if (experimentTrafficPct <= 0) {
+            return false;
+        } else if (experimentTrafficPct >= ExperimentBucketing.NB_BUCKETS) {
+            return true;
+        }
+
+        final PaymentRetriesPolicy policy = paymentRetriesConfiguration.getPolicy();
+        final UUID bucketingId;
+        switch (policy.getExperimentBucketing()) {
+            case ACCOUNT:
+                bucketingId = context.getAccountId();
+                break;
+            case PAYMENT_METHOD:
+                bucketingId = context.getPaymentMethodId() != null ? context.getPaymentMethodId() : context.getAccountId();
+                break;
+            default:
+                bucketingId = null;
+                break;
+        }
+
+        if (bucketingId == null) {
+            return ThreadLocalRandom.current().nextInt(ExperimentBucketing.NB_BUCKETS) < experimentTrafficPct;
+        } else {
+            return ExperimentBucketing.isInExperiment(context.getTenantId(), bucketingId, processorPolicy.getExperimentSalt(policy.getExperimentSalt()), experimentTrafficPct);
+        }
     }
 }
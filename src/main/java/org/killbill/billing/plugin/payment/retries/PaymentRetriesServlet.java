@@ -18,22 +18,41 @@
 package org.killbill.billing.plugin.payment.retries;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.UUID;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.killbill.billing.plugin.payment.retries.ConfigurationResponseCache.ConfigurationResponse;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.CodeCountsVisitor;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Outcome;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Window;
+import org.killbill.billing.plugin.payment.retries.TenantAwareExecutor.ResultHandler;
+import org.killbill.billing.plugin.payment.retries.TenantAwareExecutor.Task;
 import org.killbill.billing.plugin.payment.retries.api.PaymentRetriesApi;
 import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.metrics.LatencyHistogram;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Decision;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.ProcessorMetrics;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Stage;
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
 import org.killbill.billing.tenant.api.Tenant;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Maps;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
 
 public class PaymentRetriesServlet extends HttpServlet {
 
@@ -43,17 +62,50 @@ public class PaymentRetriesServlet extends HttpServlet {
 
     private static final Pattern PAYMENT_METHOD_CHECK_PATTERN = Pattern.compile("/paymentMethodCheck");
     private static final Pattern CONFIGURATION_PATTERN = Pattern.compile("/configuration");
+    private static final Pattern STATS_PATTERN = Pattern.compile("/stats");
+    private static final Pattern METRICS_PATTERN = Pattern.compile("/metrics");
 
     private static final String PAYMENT_EXTERNAL_KEY = "paymentExternalKey";
     private static final String ERROR_MESSAGE = "errorMessage";
     private static final String RETRYABLE = "retryable";
+    private static final String PROCESSOR = "processor";
+    private static final String CODE = "code";
+    private static final String WINDOW = "window";
+
+    private static final int MAX_BATCH_SIZE = 100000;
 
     private static final String APPLICATION_JSON = "application/json";
+    private static final String APPLICATION_NDJSON = "application/x-ndjson";
+    private static final String ETAG = "ETag";
+    private static final String IF_NONE_MATCH = "If-None-Match";
 
     private final PaymentRetriesApi paymentRetriesApi;
+    private final PaymentRetriesClusterStats paymentRetriesClusterStats;
+    private final PaymentRetriesMetrics paymentRetriesMetrics;
+    private final ControlGroupTracker controlGroupTracker;
+    private final PaymentMethodPluginNameCache paymentMethodPluginNameCache;
+    private final RulesComputer rulesComputer;
+    private final TenantAwareExecutor tenantAwareExecutor;
+    private final ConfigurationResponseCache configurationResponseCache;
+    private final DecisionLogger decisionLogger;
 
-    public PaymentRetriesServlet(final PaymentRetriesApi paymentRetriesApi) {
+    public PaymentRetriesServlet(final PaymentRetriesApi paymentRetriesApi,
+                                 final PaymentRetriesClusterStats paymentRetriesClusterStats,
+                                 final PaymentRetriesMetrics paymentRetriesMetrics,
+                                 final ControlGroupTracker controlGroupTracker,
+                                 final PaymentMethodPluginNameCache paymentMethodPluginNameCache,
+                                 final RulesComputer rulesComputer,
+                                 final TenantAwareExecutor tenantAwareExecutor,
+                                 final DecisionLogger decisionLogger) {
         this.paymentRetriesApi = paymentRetriesApi;
+        this.paymentRetriesClusterStats = paymentRetriesClusterStats;
+        this.paymentRetriesMetrics = paymentRetriesMetrics;
+        this.controlGroupTracker = controlGroupTracker;
+        this.paymentMethodPluginNameCache = paymentMethodPluginNameCache;
+        this.rulesComputer = rulesComputer;
+        this.tenantAwareExecutor = tenantAwareExecutor;
+        this.configurationResponseCache = new ConfigurationResponseCache(paymentRetriesApi, jsonMapper);
+        this.decisionLogger = decisionLogger;
     }
 
     @Override
@@ -81,24 +133,244 @@ public class PaymentRetriesServlet extends HttpServlet {
             final boolean retryable = Boolean.valueOf(req.getParameter(RETRYABLE));
             final String errorMessage = req.getParameter(ERROR_MESSAGE);
 
-            final Map<String, Map<Integer, AuthorizationDeclineCode>> perPluginDeclineCodes = paymentRetriesApi.getPerPluginDeclineCodes();
-            final Map<String, Map<Integer, AuthorizationDeclineCode>> returnedMap = new TreeMap<String, Map<Integer, AuthorizationDeclineCode>>();
-            for (final String pluginName : perPluginDeclineCodes.keySet()) {
-                returnedMap.put(pluginName,
-                                Maps.<Integer, AuthorizationDeclineCode>filterValues(perPluginDeclineCodes.get(pluginName),
-                                                                                     new Predicate<AuthorizationDeclineCode>() {
-                                                                                         @Override
-                                                                                         public boolean apply(final AuthorizationDeclineCode authorizationDeclineCode) {
-                                                                                             return retryable == authorizationDeclineCode.isRetryable() &&
-                                                                                                    (errorMessage == null || authorizationDeclineCode.getErrorMessage().name().equalsIgnoreCase(errorMessage));
-                                                                                         }
-                                                                                     }));
+            final ConfigurationResponse configurationResponse = configurationResponseCache.get(retryable, errorMessage);
+            resp.setHeader(ETAG, configurationResponse.getETag());
+            if (configurationResponse.matches(req.getHeader(IF_NONE_MATCH))) {
+                resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
             }
 
-            resp.getOutputStream().write(jsonMapper.writeValueAsBytes(returnedMap));
             resp.setContentType(APPLICATION_JSON);
+            resp.setContentLength(configurationResponse.getBody().length);
+            resp.getOutputStream().write(configurationResponse.getBody());
+        } else if (STATS_PATTERN.matcher(pathInfo).matches()) {
+            // Set by the TenantFilter
+            final Tenant tenant = (Tenant) req.getAttribute(KILLBILL_TENANT);
+            if (tenant == null) {
+                resp.sendError(404);
+                return;
+            }
+
+            final String processorFilter = req.getParameter(PROCESSOR);
+            final Integer codeFilter;
+            try {
+                codeFilter = req.getParameter(CODE) == null ? null : Integer.valueOf(req.getParameter(CODE));
+            } catch (final NumberFormatException e) {
+                resp.sendError(400, "Invalid code");
+                return;
+            }
+            final Window window;
+            try {
+                window = req.getParameter(WINDOW) == null ? null : Window.fromName(req.getParameter(WINDOW));
+            } catch (final IllegalArgumentException e) {
+                resp.sendError(400, "Invalid window");
+                return;
+            }
+
+            resp.setContentType(APPLICATION_JSON);
+            writeStats(tenant.getId(), window, processorFilter, codeFilter, resp.getOutputStream());
+        } else if (METRICS_PATTERN.matcher(pathInfo).matches()) {
+            // Set by the TenantFilter
+            final Tenant tenant = (Tenant) req.getAttribute(KILLBILL_TENANT);
+            if (tenant == null) {
+                resp.sendError(404);
+                return;
+            }
+
+            final Map<String, Object> returnedMap = new LinkedHashMap<String, Object>();
+            // Not per tenant
+            final Map<String, Long> controlGroupMap = new LinkedHashMap<String, Long>();
+            controlGroupMap.put("size", controlGroupTracker.size());
+            controlGroupMap.put("nbOfExpiredAttempts", controlGroupTracker.getNbOfExpiredAttempts());
+            controlGroupMap.put("nbOfEvictedAttempts", controlGroupTracker.getNbOfEvictedAttempts());
+            returnedMap.put("controlGroup", controlGroupMap);
+            final Map<String, Long> paymentMethodPluginNameCacheMap = new LinkedHashMap<String, Long>();
+            paymentMethodPluginNameCacheMap.put("size", paymentMethodPluginNameCache.size());
+            paymentMethodPluginNameCacheMap.put("hitCount", paymentMethodPluginNameCache.getHitCount());
+            paymentMethodPluginNameCacheMap.put("missCount", paymentMethodPluginNameCache.getMissCount());
+            returnedMap.put("paymentMethodPluginNameCache", paymentMethodPluginNameCacheMap);
+            final CacheStats fuzzyMatchCacheStats = rulesComputer.getFuzzyMatchCacheStats();
+            final Map<String, Number> fuzzyMatchCacheMap = new LinkedHashMap<String, Number>();
+            fuzzyMatchCacheMap.put("size", rulesComputer.getFuzzyMatchCacheSize());
+            fuzzyMatchCacheMap.put("hitRate", fuzzyMatchCacheStats.hitRate());
+            returnedMap.put("fuzzyMatchCache", fuzzyMatchCacheMap);
+            returnedMap.put("nbOfDroppedDecisionLogs", decisionLogger.getNbOfDroppedEvents());
+
+            final Map<String, Object> processorsMap = new TreeMap<String, Object>();
+            for (final Entry<String, ProcessorMetrics> entry : paymentRetriesMetrics.getMetrics(tenant.getId()).entrySet()) {
+                final Map<String, Object> latenciesMap = new LinkedHashMap<String, Object>();
+                for (final Stage stage : Stage.values()) {
+                    final LatencyHistogram latencyHistogram = entry.getValue().getLatencyHistogram(stage);
+                    if (latencyHistogram.getCount() == 0) {
+                        continue;
+                    }
+                    final Map<String, Number> latencyMap = new LinkedHashMap<String, Number>();
+                    latencyMap.put("count", latencyHistogram.getCount());
+                    latencyMap.put("meanNanos", latencyHistogram.getMean());
+                    latencyMap.put("p50Nanos", latencyHistogram.getValueAtPercentile(50));
+                    latencyMap.put("p99Nanos", latencyHistogram.getValueAtPercentile(99));
+                    latencyMap.put("maxNanos", latencyHistogram.getMax());
+                    latenciesMap.put(stage.toString(), latencyMap);
+                }
+
+                final Map<String, Long> decisionsMap = new LinkedHashMap<String, Long>();
+                for (final Decision decision : Decision.values()) {
+                    decisionsMap.put(decision.toString(), entry.getValue().getCount(decision));
+                }
+
+                final Map<String, Object> processorMap = new LinkedHashMap<String, Object>();
+                processorMap.put("latencies", latenciesMap);
+                processorMap.put("decisions", decisionsMap);
+                processorsMap.put(entry.getKey(), processorMap);
+            }
+            returnedMap.put("processors", processorsMap);
+
+            resp.setContentType(APPLICATION_JSON);
+            resp.getOutputStream().write(jsonMapper.writeValueAsBytes(returnedMap));
+        } else {
+            resp.sendError(404);
+        }
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        final String pathInfo = req.getPathInfo();
+
+        if (PAYMENT_METHOD_CHECK_PATTERN.matcher(pathInfo).matches()) {
+            // Set by the TenantFilter
+            final Tenant tenant = (Tenant) req.getAttribute(KILLBILL_TENANT);
+            if (tenant == null) {
+                resp.sendError(404);
+                return;
+            }
+
+            // JSON array of payment external keys
+            final String[] paymentExternalKeys;
+            try {
+                paymentExternalKeys = jsonMapper.readValue(req.getInputStream(), String[].class);
+            } catch (final JsonProcessingException e) {
+                resp.sendError(400, "Expected a JSON array of payment external keys");
+                return;
+            }
+            if (paymentExternalKeys == null || paymentExternalKeys.length > MAX_BATCH_SIZE) {
+                resp.sendError(400, "Expected at most " + MAX_BATCH_SIZE + " payment external keys");
+                return;
+            }
+
+            resp.setContentType(APPLICATION_NDJSON);
+            try {
+                writePaymentMethodChecks(tenant.getId(), ImmutableSet.<String>copyOf(paymentExternalKeys), resp.getOutputStream());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServletException(e);
+            }
         } else {
             resp.sendError(404);
         }
     }
+
+    // One JSON object per line, in completion order
+    private void writePaymentMethodChecks(final UUID tenantId, final Iterable<String> paymentExternalKeys, final OutputStream out) throws IOException, InterruptedException {
+        final JsonGenerator generator = jsonMapper.getFactory().createGenerator(out);
+        generator.setRootValueSeparator(null);
+
+        tenantAwareExecutor.forEach(tenantId,
+                                    paymentExternalKeys,
+                                    new Task<String, AuthorizationDeclineCode>() {
+                                        @Override
+                                        public AuthorizationDeclineCode call(final String paymentExternalKey) {
+                                            return paymentRetriesApi.getAuthorizationDeclineCode(paymentExternalKey, tenantId);
+                                        }
+                                    },
+                                    new ResultHandler<String, AuthorizationDeclineCode, IOException>() {
+                                        @Override
+                                        public void handle(final String paymentExternalKey, final AuthorizationDeclineCode authorizationDeclineCode, final Exception error) throws IOException {
+                                            generator.writeStartObject();
+                                            generator.writeStringField(PAYMENT_EXTERNAL_KEY, paymentExternalKey);
+                                            if (error != null) {
+                                                generator.writeStringField("error", error.getMessage());
+                                            } else {
+                                                generator.writeObjectField("authorizationDeclineCode", authorizationDeclineCode);
+                                            }
+                                            generator.writeEndObject();
+                                            generator.writeRaw('\n');
+                                            generator.flush();
+                                        }
+                                    });
+
+        generator.close();
+    }
+
+    // Cluster-wide counts (or the counts of this node in the window), streamed per processor and code
+    private void writeStats(final UUID tenantId, @Nullable final Window window, @Nullable final String processorFilter, @Nullable final Integer codeFilter, final OutputStream out) throws IOException {
+        final JsonGenerator generator = jsonMapper.getFactory().createGenerator(out);
+        generator.writeStartObject();
+
+        final PaymentRetriesStats localStats = paymentRetriesClusterStats.getLocalStats(tenantId);
+        final long nbOfRetries;
+        final long nbOfAbortedRetries;
+        if (window == null) {
+            nbOfRetries = paymentRetriesClusterStats.getNbOfRetries(tenantId);
+            nbOfAbortedRetries = paymentRetriesClusterStats.getNbOfAbortedRetries(tenantId);
+        } else {
+            generator.writeStringField("window", window.getName());
+            generator.writeStringField("nodeId", paymentRetriesClusterStats.getNodeId());
+            nbOfRetries = localStats.getNbOfRetries(window);
+            nbOfAbortedRetries = localStats.getNbOfAbortedRetries(window);
+        }
+        generator.writeNumberField("nbOfRetries", nbOfRetries);
+        generator.writeNumberField("nbOfAbortedRetries", nbOfAbortedRetries);
+        writePctField(generator, "abortedPct", nbOfAbortedRetries, nbOfRetries);
+
+        generator.writeArrayFieldStart("codes");
+        final IOException[] exception = new IOException[1];
+        final CodeCountsVisitor codeCountsVisitor = new CodeCountsVisitor() {
+            @Override
+            public void visit(final String processor, final int code, final long[] counts) {
+                if (exception[0] != null ||
+                    (processorFilter != null && !processorFilter.equalsIgnoreCase(processor)) ||
+                    (codeFilter != null && codeFilter != code)) {
+                    return;
+                }
+
+                final long nbOfSuccessfulRetries = counts[Outcome.SUCCESS.ordinal()];
+                final long nbOfFailedRetries = counts[Outcome.FAILURE.ordinal()];
+                try {
+                    generator.writeStartObject();
+                    generator.writeStringField("processor", processor);
+                    generator.writeNumberField("code", code);
+                    generator.writeNumberField("nbOfRetries", counts[Outcome.ATTEMPTED.ordinal()]);
+                    generator.writeNumberField("nbOfSuccessfulRetries", nbOfSuccessfulRetries);
+                    generator.writeNumberField("nbOfFailedRetries", nbOfFailedRetries);
+                    generator.writeNumberField("nbOfAbortedRetries", counts[Outcome.ABORTED.ordinal()]);
+                    generator.writeNumberField("nbOfUnknownOutcomes", counts[Outcome.UNKNOWN.ordinal()]);
+                    writePctField(generator, "successPct", nbOfSuccessfulRetries, nbOfSuccessfulRetries + nbOfFailedRetries);
+                    generator.writeEndObject();
+                } catch (final IOException e) {
+                    // Client went away, stop writing
+                    exception[0] = e;
+                }
+            }
+        };
+        if (window == null) {
+            paymentRetriesClusterStats.visitCodeCounts(tenantId, codeCountsVisitor);
+        } else {
+            localStats.visitCodeCounts(window, codeCountsVisitor);
+        }
+        if (exception[0] != null) {
+            throw exception[0];
+        }
+        generator.writeEndArray();
+
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    private static void writePctField(final JsonGenerator generator, final String fieldName, final long count, final long total) throws IOException {
+        if (total == 0) {
+            generator.writeNullField(fieldName);
+        } else {
+            generator.writeNumberField(fieldName, 100.0 * count / total);
+        }
+    }
 }
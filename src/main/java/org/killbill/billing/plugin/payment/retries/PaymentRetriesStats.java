@@ -18,62 +18,512 @@
 package org.killbill.billing.plugin.payment.retries;
 
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.rules.DeclineCodeTable;
+import org.killbill.billing.plugin.payment.retries.rules.RuleTables;
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
 
+import com.google.common.collect.ImmutableMap;
+
+// Retry counters for one tenant, see PaymentRetriesStatsRegistry
 public class PaymentRetriesStats {
 
-    private final Map<String, Map<Integer, AtomicLong>> nbOfAbortedRetriesPerProcessorPerCode = new HashMap<String, Map<Integer, AtomicLong>>();
-    private final Map<String, Map<Integer, AtomicLong>> nbOfFailedRetriesPerProcessorPerCode = new HashMap<String, Map<Integer, AtomicLong>>();
-    private final Map<String, Map<Integer, AtomicLong>> nbOfSuccessfulRetriesPerProcessorPerCode = new HashMap<String, Map<Integer, AtomicLong>>();
+    public enum Outcome {
+        // Retry evaluated by the rules (experiment or control group)
+        ATTEMPTED,
+        SUCCESS,
+        FAILURE,
+        ABORTED,
+        // Control group retry which never completed
+        UNKNOWN
+    }
+
+    // Sliding windows of the live counters of this node (persisted and rehydrated counts aren't windowed)
+    public enum Window {
+        LAST_HOUR("1h"),
+        LAST_DAY("24h"),
+        LAST_WEEK("7d");
+
+        private final String name;
+
+        Window(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Window fromName(final String name) {
+            for (final Window window : values()) {
+                if (window.name.equals(name)) {
+                    return window;
+                }
+            }
+            throw new IllegalArgumentException("Unknown window " + name);
+        }
+    }
+
+    public interface CountVisitor {
+
+        void visit(String processor, int code, Outcome outcome, long count);
+    }
+
+    public interface CodeCountsVisitor {
+
+        // Counts are indexed by Outcome ordinal. The array is reused across calls.
+        void visit(String processor, int code, long[] counts);
+    }
+
+    public static final String UNKNOWN_PROCESSOR = "UNKNOWN";
+
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    // ~95% one-sided confidence
+    private static final double SUCCESS_RATE_CONFIDENCE_Z = 1.645;
+
+    // Sums of the per-code ATTEMPTED and ABORTED counters
+    private final LongAdder nbOfRetries = new LongAdder();
+    private final LongAdder nbOfAbortedRetries = new LongAdder();
+    private final SlidingWindowCounts windowedTotals = new SlidingWindowCounts(OUTCOMES.length);
+
+    // Pre-sized from the rule tables, keyed by processor
+    private final Map<String, ProcessorStats> processorStats;
+    // Processors not in the rule tables (e.g. fuzzy matches for a gateway plugin without a processor)
+    private final ConcurrentMap<String, ProcessorStats> otherProcessorStats = new ConcurrentHashMap<String, ProcessorStats>();
+
+    private final Clock clock;
+
+    public PaymentRetriesStats() {
+        this(new RulesComputer(), new DefaultClock());
+    }
+
+    // The clock drives the sliding windows
+    public PaymentRetriesStats(final RulesComputer rulesComputer, final Clock clock) {
+        this.clock = clock;
+        final Map<String, ProcessorStats> processorStatsBuilder = new HashMap<String, ProcessorStats>();
+        final RuleTables ruleTables = rulesComputer.getRuleTables();
+        for (final String pluginName : ruleTables.getPerPluginDeclineCodes().keySet()) {
+            final DeclineCodeTable declineCodeTable = ruleTables.getDeclineCodeTable(ruleTables.getPluginIndex(pluginName));
+            if (declineCodeTable.size() > 0 && !processorStatsBuilder.containsKey(declineCodeTable.getById(0).getProcessor())) {
+                // Plugins for the same processor (e.g. Orbital and Cybersource) share the same table layout
+                final String processor = declineCodeTable.getById(0).getProcessor();
+                processorStatsBuilder.put(processor, new ProcessorStats(processor, declineCodeTable));
+            }
+        }
+        this.processorStats = ImmutableMap.<String, ProcessorStats>copyOf(processorStatsBuilder);
+    }
+
+    public long incrementNbOfRetries(final AuthorizationDeclineCode authorizationDeclineCode) {
+        getCodeCounters(authorizationDeclineCode).incrementAndGet(Outcome.ATTEMPTED, nowMillis());
+        nbOfRetries.increment();
+        windowedTotals.increment(Outcome.ATTEMPTED.ordinal(), nowMillis());
+        return nbOfRetries.sum();
+    }
+
+    public long getNbOfRetries(final Window window) {
+        return windowedTotals.sum(Outcome.ATTEMPTED.ordinal(), window, nowMillis());
+    }
+
+    public long getNbOfAbortedRetries(final Window window) {
+        return windowedTotals.sum(Outcome.ABORTED.ordinal(), window, nowMillis());
+    }
+
+    public long getNbOfRetries() {
+        return nbOfRetries.sum();
+    }
+
+    public long getNbOfAbortedRetries() {
+        return nbOfAbortedRetries.sum();
+    }
 
+    // Number of retries from the control group with a known outcome
     public long getNbOfRetries(final AuthorizationDeclineCode authorizationDeclineCode) {
-        return getNbOfRetries(nbOfFailedRetriesPerProcessorPerCode, authorizationDeclineCode) + getNbOfRetries(nbOfSuccessfulRetriesPerProcessorPerCode, authorizationDeclineCode);
+        return get(authorizationDeclineCode, Outcome.SUCCESS) + get(authorizationDeclineCode, Outcome.FAILURE);
+    }
+
+    public long getNbOfAbortedRetries(final AuthorizationDeclineCode authorizationDeclineCode) {
+        return get(authorizationDeclineCode, Outcome.ABORTED);
+    }
+
+    public long getNbOfUnknownOutcomes(final AuthorizationDeclineCode authorizationDeclineCode) {
+        return get(authorizationDeclineCode, Outcome.UNKNOWN);
     }
 
     public long markRetriedPaymentAsSuccessful(final AuthorizationDeclineCode authorizationDeclineCode) {
-        return incrementAndGet(nbOfSuccessfulRetriesPerProcessorPerCode, authorizationDeclineCode);
+        return getCodeCounters(authorizationDeclineCode).incrementAndGet(Outcome.SUCCESS, nowMillis());
     }
 
     // Note: that's the previous payment decline code
     public long markRetriedPaymentAsFailed(final AuthorizationDeclineCode authorizationDeclineCode) {
-        return incrementAndGet(nbOfFailedRetriesPerProcessorPerCode, authorizationDeclineCode);
+        return getCodeCounters(authorizationDeclineCode).incrementAndGet(Outcome.FAILURE, nowMillis());
+    }
+
+    // Upper bound of the retry success rate of the control group for that code: Beta(1 + successes, 1 + failures)
+    // posterior, normal approximation. Maintained on each outcome, so reading it is a volatile read. 1.0 without data.
+    public double getSuccessRateUpperBound(final AuthorizationDeclineCode authorizationDeclineCode) {
+        return getCodeCounters(authorizationDeclineCode).successRateUpperBound;
+    }
+
+    // Returns the total number of aborted retries
+    public long markRetryAsAborted(final AuthorizationDeclineCode authorizationDeclineCode) {
+        getCodeCounters(authorizationDeclineCode).incrementAndGet(Outcome.ABORTED, nowMillis());
+        nbOfAbortedRetries.increment();
+        windowedTotals.increment(Outcome.ABORTED.ordinal(), nowMillis());
+        return nbOfAbortedRetries.sum();
+    }
+
+    public long markRetryOutcomeAsUnknown(final AuthorizationDeclineCode authorizationDeclineCode) {
+        return getCodeCounters(authorizationDeclineCode).incrementAndGet(Outcome.UNKNOWN, nowMillis());
+    }
+
+    public long get(final AuthorizationDeclineCode authorizationDeclineCode, final Outcome outcome) {
+        return getCounter(authorizationDeclineCode, outcome).count.sum();
+    }
+
+    public long get(final AuthorizationDeclineCode authorizationDeclineCode, final Outcome outcome, final Window window) {
+        final SlidingWindowCounts windowedCounts = getCodeCounters(authorizationDeclineCode).windowedCounts;
+        return windowedCounts == null ? 0 : windowedCounts.sum(outcome.ordinal(), window, nowMillis());
+    }
+
+    // Visits all non-zero counters
+    public void visitCounts(final CountVisitor visitor) {
+        for (final ProcessorStats stats : processorStats.values()) {
+            stats.visitCounts(visitor);
+        }
+        for (final ProcessorStats stats : otherProcessorStats.values()) {
+            stats.visitCounts(visitor);
+        }
+    }
+
+    // Visits all tracked codes (including the ones with zero counts), one processor after the other
+    public void visitCodeCounts(final CodeCountsVisitor visitor) {
+        final long[] counts = new long[OUTCOMES.length];
+        for (final ProcessorStats stats : processorStats.values()) {
+            stats.visitCodeCounts(counts, visitor);
+        }
+        for (final ProcessorStats stats : otherProcessorStats.values()) {
+            stats.visitCodeCounts(counts, visitor);
+        }
+    }
+
+    // Visits the codes with at least one non-zero count in that window, one processor after the other
+    public void visitCodeCounts(final Window window, final CodeCountsVisitor visitor) {
+        final long nowMillis = nowMillis();
+        final long[] counts = new long[OUTCOMES.length];
+        for (final ProcessorStats stats : processorStats.values()) {
+            stats.visitCodeCounts(window, nowMillis, counts, visitor);
+        }
+        for (final ProcessorStats stats : otherProcessorStats.values()) {
+            stats.visitCodeCounts(window, nowMillis, counts, visitor);
+        }
+    }
+
+    // Whether visitCodeCounts visits that code
+    public boolean isTracked(final String processor, final int code) {
+        final String processorKey = processor == null ? UNKNOWN_PROCESSOR : processor;
+        ProcessorStats stats = processorStats.get(processorKey);
+        if (stats == null) {
+            stats = otherProcessorStats.get(processorKey);
+        }
+        return stats != null && stats.isTracked(code);
+    }
+
+    // Counts since the last time they were persisted. Not thread-safe: only one thread should persist the stats.
+    public List<CountDelta> getUnpersistedCounts() {
+        final List<CountDelta> deltas = new LinkedList<CountDelta>();
+        for (final ProcessorStats stats : processorStats.values()) {
+            stats.addUnpersistedCounts(deltas);
+        }
+        for (final ProcessorStats stats : otherProcessorStats.values()) {
+            stats.addUnpersistedCounts(deltas);
+        }
+        return deltas;
+    }
+
+    // Adds counts loaded from the database, which are considered as already persisted
+    public void rehydrate(final String processor, final int code, final Outcome outcome, final long count) {
+        final CodeCounters codeCounters = getProcessorStats(processor).getCodeCounters(code);
+        final Counter counter = codeCounters.get(outcome);
+        counter.count.add(count);
+        counter.persistedCount += count;
+        if (outcome == Outcome.ATTEMPTED) {
+            nbOfRetries.add(count);
+        } else if (outcome == Outcome.ABORTED) {
+            nbOfAbortedRetries.add(count);
+        } else if (outcome == Outcome.SUCCESS) {
+            codeCounters.addSuccessesAndFailures(count, 0);
+        } else if (outcome == Outcome.FAILURE) {
+            codeCounters.addSuccessesAndFailures(0, count);
+        }
+    }
+
+    private long nowMillis() {
+        return clock.getUTCNow().getMillis();
+    }
+
+    private Counter getCounter(final AuthorizationDeclineCode authorizationDeclineCode, final Outcome outcome) {
+        return getCodeCounters(authorizationDeclineCode).get(outcome);
+    }
+
+    private CodeCounters getCodeCounters(final AuthorizationDeclineCode authorizationDeclineCode) {
+        return getProcessorStats(authorizationDeclineCode.getProcessor()).getCodeCounters(authorizationDeclineCode.getCode());
+    }
+
+    static double computeSuccessRateUpperBound(final long nbOfSuccesses, final long nbOfFailures) {
+        final double alpha = 1 + nbOfSuccesses;
+        final double beta = 1 + nbOfFailures;
+        final double mean = alpha / (alpha + beta);
+        final double variance = alpha * beta / ((alpha + beta) * (alpha + beta) * (alpha + beta + 1));
+        return Math.min(1.0, mean + SUCCESS_RATE_CONFIDENCE_Z * Math.sqrt(variance));
+    }
+
+    private ProcessorStats getProcessorStats(final String processor) {
+        final String processorKey = processor == null ? UNKNOWN_PROCESSOR : processor;
+        final ProcessorStats stats = processorStats.get(processorKey);
+        if (stats != null) {
+            return stats;
+        }
+
+        final ProcessorStats otherStats = otherProcessorStats.get(processorKey);
+        if (otherStats != null) {
+            return otherStats;
+        }
+        final ProcessorStats newStats = new ProcessorStats(processorKey, new DeclineCodeTable(new AuthorizationDeclineCode[0]));
+        final ProcessorStats existingStats = otherProcessorStats.putIfAbsent(processorKey, newStats);
+        return existingStats == null ? newStats : existingStats;
+    }
+
+    public static final class CountDelta {
+
+        private final String processor;
+        private final int code;
+        private final Outcome outcome;
+        private final long delta;
+        private final Counter counter;
+
+        private CountDelta(final String processor, final int code, final Outcome outcome, final long delta, final Counter counter) {
+            this.processor = processor;
+            this.code = code;
+            this.outcome = outcome;
+            this.delta = delta;
+            this.counter = counter;
+        }
+
+        public String getProcessor() {
+            return processor;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public long getDelta() {
+            return delta;
+        }
+
+        public void markAsPersisted() {
+            counter.persistedCount += delta;
+        }
     }
 
-    private long incrementAndGet(final Map<String, Map<Integer, AtomicLong>> statsMaps, final AuthorizationDeclineCode authorizationDeclineCode) {
-        prime(statsMaps, authorizationDeclineCode);
+    private static final class Counter {
+
+        private final LongAdder count = new LongAdder();
+        // Only accessed by the thread persisting the stats
+        private long persistedCount = 0;
+    }
+
+    private static final class CodeCounters {
+
+        private static final long MAX_PACKED_COUNT = 0xFFFFFFFFL;
+
+        // One counter per outcome, indexed by Outcome ordinal
+        private final Counter[] counters;
+        // Successes in the high 32 bits, failures in the low 32 bits (both saturated), to read them consistently
+        private final AtomicLong successesAndFailures = new AtomicLong();
+        private volatile double successRateUpperBound = 1.0;
+        // Created on the first increment: most codes are never seen
+        private volatile SlidingWindowCounts windowedCounts;
 
-        final Map<Integer, AtomicLong> processorStatsMap = statsMaps.get(authorizationDeclineCode.getProcessor());
-        if (processorStatsMap.get(authorizationDeclineCode.getCode()) == null) {
-            synchronized (processorStatsMap) {
-                if (processorStatsMap.get(authorizationDeclineCode.getCode()) == null) {
-                    processorStatsMap.put(authorizationDeclineCode.getCode(), new AtomicLong(0L));
+        private CodeCounters() {
+            this.counters = new Counter[OUTCOMES.length];
+            for (int i = 0; i < OUTCOMES.length; i++) {
+                counters[i] = new Counter();
+            }
+        }
+
+        private Counter get(final Outcome outcome) {
+            return counters[outcome.ordinal()];
+        }
+
+        private long incrementAndGet(final Outcome outcome, final long nowMillis) {
+            final LongAdder count = get(outcome).count;
+            count.increment();
+            getOrCreateWindowedCounts().increment(outcome.ordinal(), nowMillis);
+            if (outcome == Outcome.SUCCESS) {
+                addSuccessesAndFailures(1, 0);
+            } else if (outcome == Outcome.FAILURE) {
+                addSuccessesAndFailures(0, 1);
+            }
+            return count.sum();
+        }
+
+        private SlidingWindowCounts getOrCreateWindowedCounts() {
+            SlidingWindowCounts counts = windowedCounts;
+            if (counts == null) {
+                synchronized (this) {
+                    counts = windowedCounts;
+                    if (counts == null) {
+                        counts = new SlidingWindowCounts(OUTCOMES.length);
+                        windowedCounts = counts;
+                    }
                 }
             }
+            return counts;
+        }
+
+        private void addSuccessesAndFailures(final long nbOfSuccesses, final long nbOfFailures) {
+            long current;
+            long updated;
+            do {
+                current = successesAndFailures.get();
+                updated = (Math.min(MAX_PACKED_COUNT, (current >>> 32) + nbOfSuccesses) << 32) | Math.min(MAX_PACKED_COUNT, (current & MAX_PACKED_COUNT) + nbOfFailures);
+            } while (!successesAndFailures.compareAndSet(current, updated));
+
+            // Not serialized: with concurrent outcomes, the last write may come from a computation missing the other ones.
+            // The bound is then stale by a few outcomes, until the next one for that code.
+            successRateUpperBound = computeSuccessRateUpperBound(updated >>> 32, updated & MAX_PACKED_COUNT);
         }
-        return processorStatsMap.get(authorizationDeclineCode.getCode()).incrementAndGet();
     }
 
-    private void prime(final Map<String, Map<Integer, AtomicLong>> map, final AuthorizationDeclineCode authorizationDeclineCode) {
-        if (map.get(authorizationDeclineCode.getProcessor()) == null) {
-            synchronized (map) {
-                if (map.get(authorizationDeclineCode.getProcessor()) == null) {
-                    map.put(authorizationDeclineCode.getProcessor(), new HashMap<Integer, AtomicLong>());
+    private static final class ProcessorStats {
+
+        private final String processor;
+        private final DeclineCodeTable declineCodeTable;
+        // Counters of each decline code, indexed by the dense ids of the table
+        private final CodeCounters[] counters;
+        // Codes not in the table, created lazily
+        private final ConcurrentMap<Integer, CodeCounters> otherCounters = new ConcurrentHashMap<Integer, CodeCounters>();
+
+        private ProcessorStats(final String processor, final DeclineCodeTable declineCodeTable) {
+            this.processor = processor;
+            this.declineCodeTable = declineCodeTable;
+            this.counters = new CodeCounters[declineCodeTable.size()];
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = new CodeCounters();
+            }
+        }
+
+        private CodeCounters getCodeCounters(final int code) {
+            final int id = declineCodeTable.indexOf(code);
+            if (id != DeclineCodeTable.NOT_FOUND) {
+                return counters[id];
+            }
+
+            final CodeCounters codeCounters = otherCounters.get(code);
+            if (codeCounters != null) {
+                return codeCounters;
+            }
+            final CodeCounters newCodeCounters = new CodeCounters();
+            final CodeCounters existingCodeCounters = otherCounters.putIfAbsent(code, newCodeCounters);
+            return existingCodeCounters == null ? newCodeCounters : existingCodeCounters;
+        }
+
+        private void visitCounts(final CountVisitor visitor) {
+            for (int id = 0; id < counters.length; id++) {
+                visitCounts(declineCodeTable.getById(id).getCode(), counters[id], visitor);
+            }
+            for (final Map.Entry<Integer, CodeCounters> entry : otherCounters.entrySet()) {
+                visitCounts(entry.getKey(), entry.getValue(), visitor);
+            }
+        }
+
+        private void visitCounts(final int code, final CodeCounters codeCounters, final CountVisitor visitor) {
+            for (final Outcome outcome : OUTCOMES) {
+                final long count = codeCounters.get(outcome).count.sum();
+                if (count != 0) {
+                    visitor.visit(processor, code, outcome, count);
                 }
             }
         }
-    }
 
-    private long getNbOfRetries(final Map<String, Map<Integer, AtomicLong>> statsMaps, final AuthorizationDeclineCode authorizationDeclineCode) {
-        final Map<Integer, AtomicLong> processorStatsMap = statsMaps.get(authorizationDeclineCode.getProcessor());
-        if (processorStatsMap != null) {
-            final AtomicLong nbPerCode = processorStatsMap.get(authorizationDeclineCode.getCode());
-            if (nbPerCode != null) {
-                return nbPerCode.get();
+        private void visitCodeCounts(final long[] counts, final CodeCountsVisitor visitor) {
+            for (int id = 0; id < counters.length; id++) {
+                visitCodeCounts(declineCodeTable.getById(id).getCode(), counters[id], counts, visitor);
+            }
+            for (final Map.Entry<Integer, CodeCounters> entry : otherCounters.entrySet()) {
+                visitCodeCounts(entry.getKey(), entry.getValue(), counts, visitor);
+            }
+        }
+
+        private void visitCodeCounts(final int code, final CodeCounters codeCounters, final long[] counts, final CodeCountsVisitor visitor) {
+            for (int i = 0; i < OUTCOMES.length; i++) {
+                counts[i] = codeCounters.counters[i].count.sum();
+            }
+            visitor.visit(processor, code, counts);
+        }
+
+        private void visitCodeCounts(final Window window, final long nowMillis, final long[] counts, final CodeCountsVisitor visitor) {
+            for (int id = 0; id < counters.length; id++) {
+                visitCodeCounts(declineCodeTable.getById(id).getCode(), counters[id], window, nowMillis, counts, visitor);
+            }
+            for (final Map.Entry<Integer, CodeCounters> entry : otherCounters.entrySet()) {
+                visitCodeCounts(entry.getKey(), entry.getValue(), window, nowMillis, counts, visitor);
+            }
+        }
+
+        private void visitCodeCounts(final int code, final CodeCounters codeCounters, final Window window, final long nowMillis, final long[] counts, final CodeCountsVisitor visitor) {
+            final SlidingWindowCounts windowedCounts = codeCounters.windowedCounts;
+            if (windowedCounts == null) {
+                return;
+            }
+
+            boolean hasCounts = false;
+            for (int i = 0; i < OUTCOMES.length; i++) {
+                counts[i] = windowedCounts.sum(i, window, nowMillis);
+                hasCounts = hasCounts || counts[i] != 0;
+            }
+            if (hasCounts) {
+                visitor.visit(processor, code, counts);
+            }
+        }
+
+        private boolean isTracked(final int code) {
+            return declineCodeTable.indexOf(code) != DeclineCodeTable.NOT_FOUND || otherCounters.containsKey(code);
+        }
+
+        private void addUnpersistedCounts(final List<CountDelta> deltas) {
+            for (int id = 0; id < counters.length; id++) {
+                addUnpersistedCounts(declineCodeTable.getById(id).getCode(), counters[id], deltas);
+            }
+            for (final Map.Entry<Integer, CodeCounters> entry : otherCounters.entrySet()) {
+                addUnpersistedCounts(entry.getKey(), entry.getValue(), deltas);
+            }
+        }
+
+        private void addUnpersistedCounts(final int code, final CodeCounters codeCounters, final List<CountDelta> deltas) {
+            for (final Outcome outcome : OUTCOMES) {
+                final Counter counter = codeCounters.get(outcome);
+                final long delta = counter.count.sum() - counter.persistedCount;
+                if (delta != 0) {
+                    deltas.add(new CountDelta(processor, code, outcome, delta, counter));
+                }
             }
         }
-        return 0;
     }
 }
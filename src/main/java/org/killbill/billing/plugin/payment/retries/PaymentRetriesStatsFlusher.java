@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.CountDelta;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Outcome;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsDao;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsRecord;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Write-behind persistence of the stats: counter deltas of this node are upserted in the background, payment threads never
+// hit the database. The cluster-wide view is refreshed right after each flush.
+public class PaymentRetriesStatsFlusher {
+
+    public static final long DEFAULT_FLUSH_INTERVAL_SECONDS = 60L;
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentRetriesStatsFlusher.class);
+
+    private final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry;
+    private final PaymentRetriesClusterStats paymentRetriesClusterStats;
+    private final PaymentRetriesStatsDao paymentRetriesStatsDao;
+    private final Clock clock;
+    private final long flushIntervalSeconds;
+
+    private ScheduledExecutorService executor;
+
+    public PaymentRetriesStatsFlusher(final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry,
+                                      final PaymentRetriesClusterStats paymentRetriesClusterStats,
+                                      final PaymentRetriesStatsDao paymentRetriesStatsDao,
+                                      final Clock clock,
+                                      final long flushIntervalSeconds) {
+        this.paymentRetriesStatsRegistry = paymentRetriesStatsRegistry;
+        this.paymentRetriesClusterStats = paymentRetriesClusterStats;
+        this.paymentRetriesStatsDao = paymentRetriesStatsDao;
+        this.clock = clock;
+        this.flushIntervalSeconds = flushIntervalSeconds;
+    }
+
+    public void start() {
+        rehydrate();
+        paymentRetriesClusterStats.refresh();
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("payment-retries-stats-flusher-%d")
+                                                                                        .setDaemon(true)
+                                                                                        .build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                flush();
+                                                paymentRetriesClusterStats.refresh();
+                                            }
+                                        },
+                                        flushIntervalSeconds,
+                                        flushIntervalSeconds,
+                                        TimeUnit.SECONDS);
+    }
+
+    public void stop() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        if (!executor.awaitTermination(flushIntervalSeconds, TimeUnit.SECONDS)) {
+            logger.warn("Timeout while waiting for the stats flusher to stop");
+            return;
+        }
+        // Last flush, on the calling thread since the executor is gone
+        flush();
+    }
+
+    @VisibleForTesting
+    void rehydrate() {
+        final List<PaymentRetriesStatsRecord> records;
+        try {
+            records = paymentRetriesStatsDao.getCounts(paymentRetriesClusterStats.getNodeId());
+        } catch (final SQLException e) {
+            logger.warn("Unable to load the retry stats, starting from scratch", e);
+            return;
+        }
+
+        for (final PaymentRetriesStatsRecord record : records) {
+            final Outcome outcome;
+            try {
+                outcome = Outcome.valueOf(record.getOutcome());
+            } catch (final IllegalArgumentException e) {
+                logger.warn("Ignoring unknown outcome for {}", record);
+                continue;
+            }
+            paymentRetriesStatsRegistry.get(record.getTenantId()).rehydrate(record.getProcessor(), record.getCode(), outcome, record.getCount());
+        }
+    }
+
+    @VisibleForTesting
+    void flush() {
+        final List<CountDelta> deltas = new LinkedList<CountDelta>();
+        final List<PaymentRetriesStatsRecord> records = new LinkedList<PaymentRetriesStatsRecord>();
+        for (final Map.Entry<UUID, PaymentRetriesStats> entry : paymentRetriesStatsRegistry.getStatsPerTenant().entrySet()) {
+            for (final CountDelta delta : entry.getValue().getUnpersistedCounts()) {
+                deltas.add(delta);
+                records.add(new PaymentRetriesStatsRecord(entry.getKey(), delta.getProcessor(), delta.getCode(), delta.getOutcome().toString(), delta.getDelta()));
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+
+        try {
+            paymentRetriesStatsDao.addCounts(paymentRetriesClusterStats.getNodeId(), records, clock.getUTCNow());
+        } catch (final SQLException | RuntimeException e) {
+            // The deltas will be part of the next flush
+            logger.warn("Unable to persist {} retry stats deltas", records.size(), e);
+            return;
+        }
+
+        for (final CountDelta delta : deltas) {
+            delta.markAsPersisted();
+        }
+    }
+}
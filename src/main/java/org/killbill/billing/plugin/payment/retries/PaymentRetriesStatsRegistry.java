@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
+
+// PaymentRetriesStats, per tenant
+public class PaymentRetriesStatsRegistry {
+
+    // Kill Bill may run without a tenant
+    public static final UUID NO_TENANT_ID = new UUID(0L, 0L);
+
+    private final RulesComputer rulesComputer;
+    private final Clock clock;
+    private final ConcurrentMap<UUID, PaymentRetriesStats> statsPerTenant = new ConcurrentHashMap<UUID, PaymentRetriesStats>();
+
+    public PaymentRetriesStatsRegistry() {
+        this(new RulesComputer(), new DefaultClock());
+    }
+
+    public PaymentRetriesStatsRegistry(final RulesComputer rulesComputer, final Clock clock) {
+        this.rulesComputer = rulesComputer;
+        this.clock = clock;
+    }
+
+    public PaymentRetriesStats get(final UUID tenantId) {
+        final UUID tenantKey = tenantId == null ? NO_TENANT_ID : tenantId;
+        final PaymentRetriesStats stats = statsPerTenant.get(tenantKey);
+        if (stats != null) {
+            return stats;
+        }
+        final PaymentRetriesStats newStats = new PaymentRetriesStats(rulesComputer, clock);
+        final PaymentRetriesStats existingStats = statsPerTenant.putIfAbsent(tenantKey, newStats);
+        return existingStats == null ? newStats : existingStats;
+    }
+
+    public Map<UUID, PaymentRetriesStats> getStatsPerTenant() {
+        return Collections.unmodifiableMap(statsPerTenant);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Reloads the external decline code rules (see RuleTables) whenever the file changes, without redeploying the bundle
+public class RulesFileReloader {
+
+    public static final long DEFAULT_POLL_INTERVAL_SECONDS = 30L;
+
+    private static final Logger logger = LoggerFactory.getLogger(RulesFileReloader.class);
+
+    private final RulesComputer rulesComputer;
+    private final AuthorizationDeclineCodeCache authorizationDeclineCodeCache;
+    private final File rulesFile;
+    private final long pollIntervalSeconds;
+
+    private long lastModified = Long.MIN_VALUE;
+    private ScheduledExecutorService executor;
+
+    public RulesFileReloader(final RulesComputer rulesComputer,
+                             final AuthorizationDeclineCodeCache authorizationDeclineCodeCache,
+                             final File rulesFile,
+                             final long pollIntervalSeconds) {
+        this.rulesComputer = rulesComputer;
+        this.authorizationDeclineCodeCache = authorizationDeclineCodeCache;
+        this.rulesFile = rulesFile;
+        this.pollIntervalSeconds = pollIntervalSeconds;
+    }
+
+    public void start() {
+        // Initial load on the calling thread, so that the rules are in place before the first payment
+        reloadIfModified();
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("payment-retries-rules-reloader-%d")
+                                                                                        .setDaemon(true)
+                                                                                        .build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                reloadIfModified();
+                                            }
+                                        },
+                                        pollIntervalSeconds,
+                                        pollIntervalSeconds,
+                                        TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    // Returns true if new rules were swapped in
+    @VisibleForTesting
+    synchronized boolean reloadIfModified() {
+        final long currentLastModified = rulesFile.lastModified();
+        if (currentLastModified == lastModified) {
+            return false;
+        }
+
+        try {
+            if (currentLastModified == 0L) {
+                // File removed (or never created): back to the built-in rules
+                rulesComputer.reload(null);
+            } else {
+                rulesComputer.reload(Files.toString(rulesFile, StandardCharsets.UTF_8));
+            }
+            // After the swap: lookups racing with the invalidation write into detached entries
+            authorizationDeclineCodeCache.invalidateAll();
+            lastModified = currentLastModified;
+            return true;
+        } catch (final IOException | IllegalArgumentException e) {
+            // Keep the current rules, and try again on the next change
+            logger.warn("Unable to load decline code rules from file='{}'", rulesFile, e);
+            lastModified = currentLastModified;
+            return false;
+        }
+    }
+}
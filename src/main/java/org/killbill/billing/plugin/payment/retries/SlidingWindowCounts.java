@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Window;
+
+// Counts of the last hour (per-minute buckets) and of the last week (per-hour buckets), for a fixed number of slots.
+// Each bucket packs its epoch (minute or hour since 1970, truncated) with its count: a bucket is recycled by the
+// first increment of a new epoch, with a single CAS, and memory doesn't depend on the uptime.
+final class SlidingWindowCounts {
+
+    private static final int COUNT_BITS = 38;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long EPOCH_MASK = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final int NB_MINUTE_BUCKETS = 60;
+    private static final int NB_HOUR_BUCKETS = 7 * 24;
+
+    private final int nbSlots;
+    // Indexed by bucket * nbSlots + slot
+    private final AtomicLongArray minuteBuckets;
+    private final AtomicLongArray hourBuckets;
+
+    SlidingWindowCounts(final int nbSlots) {
+        this.nbSlots = nbSlots;
+        this.minuteBuckets = new AtomicLongArray(NB_MINUTE_BUCKETS * nbSlots);
+        this.hourBuckets = new AtomicLongArray(NB_HOUR_BUCKETS * nbSlots);
+    }
+
+    void increment(final int slot, final long nowMillis) {
+        increment(minuteBuckets, NB_MINUTE_BUCKETS, nowMillis / MINUTE_MILLIS, slot);
+        increment(hourBuckets, NB_HOUR_BUCKETS, nowMillis / HOUR_MILLIS, slot);
+    }
+
+    long sum(final int slot, final Window window, final long nowMillis) {
+        switch (window) {
+            case LAST_HOUR:
+                return sum(minuteBuckets, NB_MINUTE_BUCKETS, nowMillis / MINUTE_MILLIS, NB_MINUTE_BUCKETS, slot);
+            case LAST_DAY:
+                return sum(hourBuckets, NB_HOUR_BUCKETS, nowMillis / HOUR_MILLIS, 24, slot);
+            case LAST_WEEK:
+                return sum(hourBuckets, NB_HOUR_BUCKETS, nowMillis / HOUR_MILLIS, NB_HOUR_BUCKETS, slot);
+            default:
+                throw new IllegalArgumentException("Unsupported window " + window);
+        }
+    }
+
+    private void increment(final AtomicLongArray buckets, final int nbBuckets, final long epoch, final int slot) {
+        final int index = (int) (epoch % nbBuckets) * nbSlots + slot;
+        final long maskedEpoch = epoch & EPOCH_MASK;
+        while (true) {
+            final long bucket = buckets.get(index);
+            final long newBucket = (bucket >>> COUNT_BITS) == maskedEpoch ? bucket + 1 : (maskedEpoch << COUNT_BITS) | 1;
+            if (buckets.compareAndSet(index, bucket, newBucket)) {
+                return;
+            }
+        }
+    }
+
+    // Sums the buckets of the current epoch and of the nbEpochs - 1 previous ones, ignoring the stale ones
+    private long sum(final AtomicLongArray buckets, final int nbBuckets, final long epoch, final int nbEpochs, final int slot) {
+        long total = 0;
+        for (long bucketEpoch = epoch; bucketEpoch > epoch - nbEpochs; bucketEpoch--) {
+            final long bucket = buckets.get((int) (bucketEpoch % nbBuckets) * nbSlots + slot);
+            if ((bucket >>> COUNT_BITS) == (bucketEpoch & EPOCH_MASK)) {
+                total += bucket & COUNT_MASK;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Runs the lookups of batch requests on a shared, bounded, pool. Each tenant can only use a few threads at a time, so that
+// a large batch from one tenant doesn't starve the others. Results are handed back on the calling thread as they complete.
+// Threads are daemon and time out when idle; whoever creates the executor should still shut it down when done with it.
+public class TenantAwareExecutor {
+
+    public static final int DEFAULT_NB_THREADS = 8;
+    public static final int DEFAULT_MAX_CONCURRENCY_PER_TENANT = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final long POLL_MILLIS = 10L;
+
+    private final ThreadPoolExecutor executor;
+    private final int maxConcurrencyPerTenant;
+    private final ConcurrentMap<UUID, Semaphore> permitsPerTenant = new ConcurrentHashMap<UUID, Semaphore>();
+
+    public TenantAwareExecutor() {
+        this(DEFAULT_NB_THREADS, DEFAULT_MAX_CONCURRENCY_PER_TENANT, DEFAULT_QUEUE_SIZE);
+    }
+
+    public TenantAwareExecutor(final int nbThreads, final int maxConcurrencyPerTenant, final int queueSize) {
+        this.executor = new ThreadPoolExecutor(nbThreads,
+                                               nbThreads,
+                                               60L,
+                                               TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(queueSize),
+                                               new ThreadFactoryBuilder().setNameFormat("payment-retries-lookup-%d")
+                                                                         .setDaemon(true)
+                                                                         .build(),
+                                               new ThreadPoolExecutor.AbortPolicy());
+        // Idle threads go away: an instance which is never shut down doesn't pin any thread
+        this.executor.allowCoreThreadTimeOut(true);
+        this.maxConcurrencyPerTenant = maxConcurrencyPerTenant;
+    }
+
+    public interface Task<K, V> {
+
+        V call(K key) throws Exception;
+    }
+
+    public interface ResultHandler<K, V, E extends Exception> {
+
+        // Exactly one of result and error is set, unless the task returned null
+        void handle(K key, @Nullable V result, @Nullable Exception error) throws E;
+    }
+
+    // Blocks until all keys have been handled. If the handler throws, the lookups still in flight complete in the background.
+    public <K, V, E extends Exception> void forEach(@Nullable final UUID tenantId,
+                                                    final Iterable<K> keys,
+                                                    final Task<K, V> task,
+                                                    final ResultHandler<K, V, E> handler) throws E, InterruptedException {
+        final Semaphore permits = getPermits(tenantId);
+        final CompletionService<Result<K, V>> completionService = new ExecutorCompletionService<Result<K, V>>(executor);
+
+        int inFlight = 0;
+        for (final K key : keys) {
+            // Wait for a slot of that tenant, handling the completed lookups meanwhile
+            while (!permits.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                inFlight -= handleCompleted(completionService, handler);
+            }
+
+            final Callable<Result<K, V>> callable = new Callable<Result<K, V>>() {
+                @Override
+                public Result<K, V> call() {
+                    try {
+                        return run(key, task);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            };
+            try {
+                completionService.submit(callable);
+                inFlight++;
+            } catch (final RejectedExecutionException e) {
+                // Pool saturated (or shutting down): run it on the calling thread
+                try {
+                    handle(run(key, task), handler);
+                } finally {
+                    permits.release();
+                }
+            }
+
+            inFlight -= handleCompleted(completionService, handler);
+        }
+
+        while (inFlight > 0) {
+            handle(getResult(completionService.take()), handler);
+            inFlight--;
+        }
+    }
+
+    // Lookups already queued still run, so that pending batches complete; new ones run on the calling thread
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private Semaphore getPermits(@Nullable final UUID tenantId) {
+        final UUID tenantKey = tenantId == null ? PaymentRetriesStatsRegistry.NO_TENANT_ID : tenantId;
+        final Semaphore permits = permitsPerTenant.get(tenantKey);
+        if (permits != null) {
+            return permits;
+        }
+
+        final Semaphore newPermits = new Semaphore(maxConcurrencyPerTenant);
+        final Semaphore existingPermits = permitsPerTenant.putIfAbsent(tenantKey, newPermits);
+        return existingPermits == null ? newPermits : existingPermits;
+    }
+
+    private static <K, V, E extends Exception> int handleCompleted(final CompletionService<Result<K, V>> completionService,
+                                                                   final ResultHandler<K, V, E> handler) throws E {
+        int nbHandled = 0;
+        Future<Result<K, V>> future;
+        while ((future = completionService.poll()) != null) {
+            handle(getResult(future), handler);
+            nbHandled++;
+        }
+        return nbHandled;
+    }
+
+    private static <K, V, E extends Exception> void handle(final Result<K, V> result, final ResultHandler<K, V, E> handler) throws E {
+        handler.handle(result.key, result.value, result.error);
+    }
+
+    private static <K, V> Result<K, V> run(final K key, final Task<K, V> task) {
+        try {
+            return new Result<K, V>(key, task.call(key), null);
+        } catch (final Exception e) {
+            return new Result<K, V>(key, null, e);
+        }
+    }
+
+    private static <K, V> Result<K, V> getResult(final Future<Result<K, V>> future) {
+        try {
+            // Already completed, and the callable never throws
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static final class Result<K, V> {
+
+        private final K key;
+        private final V value;
+        private final Exception error;
+
+        private Result(final K key, @Nullable final V value, @Nullable final Exception error) {
+            this.key = key;
+            this.value = value;
+            this.error = error;
+        }
+    }
+}
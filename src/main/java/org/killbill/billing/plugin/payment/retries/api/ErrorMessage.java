@@ -17,7 +17,6 @@
 
 package org.killbill.billing.plugin.payment.retries.api;
 
-import java.util.Arrays;
 import java.util.function.Predicate;
 
 import com.google.common.base.Strings;
@@ -46,12 +45,30 @@ public enum ErrorMessage implements Predicate<String> {
         return this.retryable;
     }
 
+    public String[] getKeywords() {
+        return keywords.clone();
+    }
+
     @Override
     public boolean test(final String message) {
         if(Strings.isNullOrEmpty(message)) {
             return false;
         }
-        return Arrays.stream(keywords).parallel().anyMatch(message.toLowerCase()::contains);
+        for (final String keyword : keywords) {
+            if (containsIgnoreCase(message, keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsIgnoreCase(final String message, final String keyword) {
+        for (int i = 0; i <= message.length() - keyword.length(); i++) {
+            if (message.regionMatches(true, i, keyword, 0, keyword.length())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
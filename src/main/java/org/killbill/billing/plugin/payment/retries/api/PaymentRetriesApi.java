@@ -19,6 +19,8 @@ package org.killbill.billing.plugin.payment.retries.api;
 
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public interface PaymentRetriesApi {
 
@@ -26,5 +28,28 @@ public interface PaymentRetriesApi {
 
     AuthorizationDeclineCode getAuthorizationDeclineCode(String paymentExternalKey, UUID tenantId);
 
+    // Bulk variant of getAuthorizationDeclineCode(UUID, UUID, UUID): payment method ids are grouped per account id.
+    // Every payment method id is present in the returned map, the value is null if no decline code was found. A null
+    // list of payment method ids is treated as empty.
+    Map<UUID, AuthorizationDeclineCode> getAuthorizationDeclineCodes(Map<UUID, ? extends Iterable<UUID>> paymentMethodIdsPerAccountId, UUID tenantId);
+
+    // Bulk variant of getAuthorizationDeclineCode(String, UUID). Every payment external key is present in the returned map,
+    // the value is null if no decline code was found.
+    Map<String, AuthorizationDeclineCode> getAuthorizationDeclineCodes(Iterable<String> paymentExternalKeys, UUID tenantId);
+
+    // Non-blocking variant of getAuthorizationDeclineCode(UUID, UUID, UUID). The future fails with a TimeoutException
+    // once the timeout expires (a zero or negative timeout means no timeout); cancelling it interrupts the lookup.
+    CompletableFuture<AuthorizationDeclineCode> getAuthorizationDeclineCodeAsync(UUID accountId, UUID paymentMethodId, UUID tenantId, long timeout, TimeUnit timeUnit);
+
+    // Non-blocking variant of getAuthorizationDeclineCode(String, UUID), see above
+    CompletableFuture<AuthorizationDeclineCode> getAuthorizationDeclineCodeAsync(String paymentExternalKey, UUID tenantId, long timeout, TimeUnit timeUnit);
+
     Map<String, Map<Integer, AuthorizationDeclineCode>> getPerPluginDeclineCodes();
+
+    // Retries evaluated by this node for that tenant over a sliding window: "1h", "24h" or "7d" (same as the /stats
+    // endpoint). Throws an IllegalArgumentException for any other window.
+    long getNbOfRetries(UUID tenantId, String window);
+
+    // Retries aborted by this node for that tenant over a sliding window, see above
+    long getNbOfAbortedRetries(UUID tenantId, String window);
 }
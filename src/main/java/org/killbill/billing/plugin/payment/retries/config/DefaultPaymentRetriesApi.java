@@ -17,37 +17,119 @@
 
 package org.killbill.billing.plugin.payment.retries.config;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.payment.api.Payment;
-import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PaymentApiException;
 import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.payment.retries.AsyncLookupExecutor;
+import org.killbill.billing.plugin.payment.retries.AuthorizationDeclineCodeCache;
+import org.killbill.billing.plugin.payment.retries.DecisionLogger;
 import org.killbill.billing.plugin.payment.retries.OSGIKillbillAPIWrapper;
+import org.killbill.billing.plugin.payment.retries.PaymentMethodPluginNameCache;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Window;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStatsRegistry;
+import org.killbill.billing.plugin.payment.retries.TenantAwareExecutor;
+import org.killbill.billing.plugin.payment.retries.TenantAwareExecutor.ResultHandler;
+import org.killbill.billing.plugin.payment.retries.TenantAwareExecutor.Task;
 import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
 import org.killbill.billing.plugin.payment.retries.api.PaymentRetriesApi;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Decision;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Stage;
+import org.killbill.billing.plugin.payment.retries.rules.RuleTables;
 import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer.LookupListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
 public class DefaultPaymentRetriesApi implements PaymentRetriesApi {
 
     private static final Logger logger = LoggerFactory.getLogger(DefaultPaymentRetriesApi.class);
 
-    private final RulesComputer rulesComputer = new RulesComputer();
+    private final RulesComputer rulesComputer;
     private final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper;
+    private final AuthorizationDeclineCodeCache authorizationDeclineCodeCache;
+    private final PaymentMethodPluginNameCache paymentMethodPluginNameCache;
+    private final PaymentRetriesMetrics paymentRetriesMetrics;
+    private final TenantAwareExecutor tenantAwareExecutor;
+    private final AsyncLookupExecutor asyncLookupExecutor;
+    private final DecisionLogger decisionLogger;
+    private final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry;
 
     public DefaultPaymentRetriesApi(final OSGIKillbillAPI killbillAPI) {
-        this.osgiKillbillAPIWrapper = new OSGIKillbillAPIWrapper(killbillAPI);
+        this(new OSGIKillbillAPIWrapper(killbillAPI));
+    }
+
+    private DefaultPaymentRetriesApi(final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper) {
+        this(osgiKillbillAPIWrapper, new AuthorizationDeclineCodeCache(), new PaymentMethodPluginNameCache(osgiKillbillAPIWrapper));
+    }
+
+    public DefaultPaymentRetriesApi(final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper,
+                                    final AuthorizationDeclineCodeCache authorizationDeclineCodeCache,
+                                    final PaymentMethodPluginNameCache paymentMethodPluginNameCache) {
+        this(osgiKillbillAPIWrapper, authorizationDeclineCodeCache, paymentMethodPluginNameCache, new PaymentRetriesMetrics());
+    }
+
+    // The executors created here are never shut down: their threads are daemon and go away once idle. Decisions are logged
+    // synchronously, and the retry stats are only the ones of this instance (i.e. none). Callers managing their lifecycle
+    // (e.g. the activator) should use the constructor below, and shut them down themselves.
+    public DefaultPaymentRetriesApi(final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper,
+                                    final AuthorizationDeclineCodeCache authorizationDeclineCodeCache,
+                                    final PaymentMethodPluginNameCache paymentMethodPluginNameCache,
+                                    final PaymentRetriesMetrics paymentRetriesMetrics) {
+        this(osgiKillbillAPIWrapper, authorizationDeclineCodeCache, paymentMethodPluginNameCache, new RulesComputer(), paymentRetriesMetrics, new TenantAwareExecutor(), new AsyncLookupExecutor(), DecisionLogger.synchronous(), new PaymentRetriesStatsRegistry());
+    }
+
+    public DefaultPaymentRetriesApi(final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper,
+                                    final AuthorizationDeclineCodeCache authorizationDeclineCodeCache,
+                                    final PaymentMethodPluginNameCache paymentMethodPluginNameCache,
+                                    final RulesComputer rulesComputer,
+                                    final PaymentRetriesMetrics paymentRetriesMetrics,
+                                    final TenantAwareExecutor tenantAwareExecutor,
+                                    final AsyncLookupExecutor asyncLookupExecutor,
+                                    final DecisionLogger decisionLogger,
+                                    final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry) {
+        this.osgiKillbillAPIWrapper = osgiKillbillAPIWrapper;
+        this.authorizationDeclineCodeCache = authorizationDeclineCodeCache;
+        this.paymentMethodPluginNameCache = paymentMethodPluginNameCache;
+        this.rulesComputer = rulesComputer;
+        this.paymentRetriesMetrics = paymentRetriesMetrics;
+        this.tenantAwareExecutor = tenantAwareExecutor;
+        this.asyncLookupExecutor = asyncLookupExecutor;
+        this.decisionLogger = decisionLogger;
+        this.paymentRetriesStatsRegistry = paymentRetriesStatsRegistry;
     }
 
     @Override
     public AuthorizationDeclineCode getAuthorizationDeclineCode(final UUID accountId, final UUID paymentMethodId, final UUID tenantId) {
-        final PaymentTransaction failedAuthorization = osgiKillbillAPIWrapper.getLastAuthorizationIfFailed(accountId, paymentMethodId, tenantId);
-        return getAuthorizationDeclineCode(failedAuthorization, paymentMethodId, tenantId);
+        return authorizationDeclineCodeCache.get(accountId,
+                                                 paymentMethodId,
+                                                 tenantId,
+                                                 new Callable<AuthorizationDeclineCode>() {
+                                                     @Override
+                                                     public AuthorizationDeclineCode call() throws Exception {
+                                                         final long startNanos = System.nanoTime();
+                                                         final PaymentTransaction failedAuthorization = osgiKillbillAPIWrapper.getLastAuthorizationIfFailedOrThrow(accountId, paymentMethodId, tenantId);
+                                                         paymentRetriesMetrics.recordLatency(tenantId, null, Stage.GET_ACCOUNT_PAYMENTS, System.nanoTime() - startNanos);
+                                                         return getAuthorizationDeclineCode(failedAuthorization, paymentMethodId, tenantId);
+                                                     }
+                                                 });
     }
 
     @Override
@@ -57,7 +139,86 @@ public class DefaultPaymentRetriesApi implements PaymentRetriesApi {
             return null;
         }
         final PaymentTransaction failedAuthorization = osgiKillbillAPIWrapper.getLastAuthorizationIfFailed(payment);
-        return getAuthorizationDeclineCode(failedAuthorization, payment.getPaymentMethodId(), tenantId);
+        try {
+            return getAuthorizationDeclineCode(failedAuthorization, payment.getPaymentMethodId(), tenantId);
+        } catch (final PaymentApiException e) {
+            logger.warn("Unable to retrieve plugin info for paymentExternalKey='{}'", paymentExternalKey, e);
+            return null;
+        }
+    }
+
+    @Override
+    public Map<UUID, AuthorizationDeclineCode> getAuthorizationDeclineCodes(final Map<UUID, ? extends Iterable<UUID>> paymentMethodIdsPerAccountId, final UUID tenantId) {
+        final Map<UUID, AuthorizationDeclineCode> authorizationDeclineCodes = new HashMap<UUID, AuthorizationDeclineCode>();
+        forEach(tenantId,
+                paymentMethodIdsPerAccountId.keySet(),
+                new Task<UUID, Map<UUID, AuthorizationDeclineCode>>() {
+                    @Override
+                    public Map<UUID, AuthorizationDeclineCode> call(final UUID accountId) {
+                        return getAuthorizationDeclineCodes(accountId, getPaymentMethodIds(paymentMethodIdsPerAccountId, accountId), tenantId);
+                    }
+                },
+                new ResultHandler<UUID, Map<UUID, AuthorizationDeclineCode>, RuntimeException>() {
+                    @Override
+                    public void handle(final UUID accountId, final Map<UUID, AuthorizationDeclineCode> accountDeclineCodes, final Exception error) {
+                        if (error != null) {
+                            logger.warn("Unable to compute decline codes for accountId='{}'", accountId, error);
+                            for (final UUID paymentMethodId : getPaymentMethodIds(paymentMethodIdsPerAccountId, accountId)) {
+                                authorizationDeclineCodes.put(paymentMethodId, null);
+                            }
+                        } else {
+                            authorizationDeclineCodes.putAll(accountDeclineCodes);
+                        }
+                    }
+                });
+        return authorizationDeclineCodes;
+    }
+
+    @Override
+    public Map<String, AuthorizationDeclineCode> getAuthorizationDeclineCodes(final Iterable<String> paymentExternalKeys, final UUID tenantId) {
+        final Map<String, AuthorizationDeclineCode> authorizationDeclineCodes = new HashMap<String, AuthorizationDeclineCode>();
+        forEach(tenantId,
+                ImmutableSet.<String>copyOf(paymentExternalKeys),
+                new Task<String, AuthorizationDeclineCode>() {
+                    @Override
+                    public AuthorizationDeclineCode call(final String paymentExternalKey) {
+                        return getAuthorizationDeclineCode(paymentExternalKey, tenantId);
+                    }
+                },
+                new ResultHandler<String, AuthorizationDeclineCode, RuntimeException>() {
+                    @Override
+                    public void handle(final String paymentExternalKey, final AuthorizationDeclineCode authorizationDeclineCode, final Exception error) {
+                        if (error != null) {
+                            logger.warn("Unable to compute decline code for paymentExternalKey='{}'", paymentExternalKey, error);
+                        }
+                        authorizationDeclineCodes.put(paymentExternalKey, authorizationDeclineCode);
+                    }
+                });
+        return authorizationDeclineCodes;
+    }
+
+    @Override
+    public CompletableFuture<AuthorizationDeclineCode> getAuthorizationDeclineCodeAsync(final UUID accountId, final UUID paymentMethodId, final UUID tenantId, final long timeout, final TimeUnit timeUnit) {
+        return asyncLookupExecutor.submit(new Callable<AuthorizationDeclineCode>() {
+                                              @Override
+                                              public AuthorizationDeclineCode call() {
+                                                  return getAuthorizationDeclineCode(accountId, paymentMethodId, tenantId);
+                                              }
+                                          },
+                                          timeout,
+                                          timeUnit);
+    }
+
+    @Override
+    public CompletableFuture<AuthorizationDeclineCode> getAuthorizationDeclineCodeAsync(final String paymentExternalKey, final UUID tenantId, final long timeout, final TimeUnit timeUnit) {
+        return asyncLookupExecutor.submit(new Callable<AuthorizationDeclineCode>() {
+                                              @Override
+                                              public AuthorizationDeclineCode call() {
+                                                  return getAuthorizationDeclineCode(paymentExternalKey, tenantId);
+                                              }
+                                          },
+                                          timeout,
+                                          timeUnit);
     }
 
     @Override
@@ -65,22 +226,124 @@ public class DefaultPaymentRetriesApi implements PaymentRetriesApi {
         return rulesComputer.getPerPluginDeclineCodes();
     }
 
-    private AuthorizationDeclineCode getAuthorizationDeclineCode(@Nullable final PaymentTransaction failedAuthorization, final UUID paymentMethodId, final UUID tenantId) {
-        if (failedAuthorization == null || failedAuthorization.getPaymentInfoPlugin() == null) {
+    @Override
+    public long getNbOfRetries(final UUID tenantId, final String window) {
+        return paymentRetriesStatsRegistry.get(tenantId).getNbOfRetries(Window.fromName(window));
+    }
+
+    @Override
+    public long getNbOfAbortedRetries(final UUID tenantId, final String window) {
+        return paymentRetriesStatsRegistry.get(tenantId).getNbOfAbortedRetries(Window.fromName(window));
+    }
+
+    // All payment methods of the account share a single getAccountPayments call, made on the first cache miss
+    private Map<UUID, AuthorizationDeclineCode> getAuthorizationDeclineCodes(final UUID accountId, final Iterable<UUID> paymentMethodIds, final UUID tenantId) {
+        final List<List<Payment>> accountPayments = new ArrayList<List<Payment>>(1);
+        final Map<UUID, AuthorizationDeclineCode> authorizationDeclineCodes = new HashMap<UUID, AuthorizationDeclineCode>();
+        for (final UUID paymentMethodId : paymentMethodIds) {
+            authorizationDeclineCodes.put(paymentMethodId,
+                                          authorizationDeclineCodeCache.get(accountId,
+                                                                            paymentMethodId,
+                                                                            tenantId,
+                                                                            new Callable<AuthorizationDeclineCode>() {
+                                                                                @Override
+                                                                                public AuthorizationDeclineCode call() throws Exception {
+                                                                                    if (accountPayments.isEmpty()) {
+                                                                                        final long startNanos = System.nanoTime();
+                                                                                        accountPayments.add(osgiKillbillAPIWrapper.getAccountPayments(accountId, tenantId));
+                                                                                        paymentRetriesMetrics.recordLatency(tenantId, null, Stage.GET_ACCOUNT_PAYMENTS, System.nanoTime() - startNanos);
+                                                                                    }
+                                                                                    final PaymentTransaction failedAuthorization = osgiKillbillAPIWrapper.getLastAuthorizationIfFailed(accountPayments.get(0), paymentMethodId);
+                                                                                    return getAuthorizationDeclineCode(failedAuthorization, paymentMethodId, tenantId);
+                                                                                }
+                                                                            }));
+        }
+        return authorizationDeclineCodes;
+    }
+
+    // A null list of payment methods is treated as empty
+    private static Iterable<UUID> getPaymentMethodIds(final Map<UUID, ? extends Iterable<UUID>> paymentMethodIdsPerAccountId, final UUID accountId) {
+        final Iterable<UUID> paymentMethodIds = paymentMethodIdsPerAccountId.get(accountId);
+        return paymentMethodIds == null ? ImmutableList.<UUID>of() : paymentMethodIds;
+    }
+
+    private <K, V> void forEach(final UUID tenantId, final Iterable<K> keys, final Task<K, V> task, final ResultHandler<K, V, RuntimeException> handler) {
+        try {
+            tenantAwareExecutor.forEach(tenantId, keys, task, handler);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private AuthorizationDeclineCode getAuthorizationDeclineCode(@Nullable final PaymentTransaction failedAuthorization, final UUID paymentMethodId, final UUID tenantId) throws PaymentApiException {
+        if (failedAuthorization == null) {
             // Last payment was successful -- the payment method is most likely still valid
             return null;
         }
 
-        // If the last payment wasn't successful, check if the failure was temporary
-        final PaymentMethod paymentMethod = osgiKillbillAPIWrapper.getPaymentMethod(paymentMethodId, tenantId);
-        final AuthorizationDeclineCode authorizationDeclineCode = rulesComputer.lookupAuthorizationDeclineCode(paymentMethod, failedAuthorization.getPaymentInfoPlugin());
+        // If the last payment wasn't successful, check if the failure was temporary. The rules may be reloaded
+        // concurrently: stick to the same snapshot for the whole lookup.
+        final RuleTables ruleTables = rulesComputer.getRuleTables();
+        long startNanos = System.nanoTime();
+        final String pluginName = paymentMethodPluginNameCache.getPluginName(paymentMethodId, tenantId);
+        final String processor = ruleTables.getProcessor(pluginName);
+        paymentRetriesMetrics.recordLatency(tenantId, processor, Stage.GET_PAYMENT_METHOD, System.nanoTime() - startNanos);
+
+        final AuthorizationDeclineCode authorizationDeclineCode;
+        if (pluginName == null) {
+            return null;
+        } else if (!ruleTables.isConfigured(pluginName)) {
+            logger.info("Payment retries plugin not configured for plugin='{}'", pluginName);
+            paymentRetriesMetrics.increment(tenantId, processor, Decision.UNKNOWN_PLUGIN);
+            return null;
+        } else if (rulesComputer.isClassifiable(failedAuthorization.getGatewayErrorCode())) {
+            // The gateway error code stored by Kill Bill is enough, no need to go to the gateway plugin
+            authorizationDeclineCode = rulesComputer.lookupAuthorizationDeclineCode(ruleTables,
+                                                                                    pluginName,
+                                                                                    failedAuthorization.getGatewayErrorCode(),
+                                                                                    failedAuthorization.getGatewayErrorMsg(),
+                                                                                    ImmutableList.<PluginProperty>of(),
+                                                                                    newLookupListener(tenantId, processor));
+        } else {
+            startNanos = System.nanoTime();
+            final PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = osgiKillbillAPIWrapper.getPaymentTransactionInfoPlugin(failedAuthorization, tenantId);
+            paymentRetriesMetrics.recordLatency(tenantId, processor, Stage.GET_PAYMENT_TRANSACTION_INFO, System.nanoTime() - startNanos);
+            if (paymentTransactionInfoPlugin == null) {
+                return null;
+            }
+            authorizationDeclineCode = rulesComputer.lookupAuthorizationDeclineCode(ruleTables,
+                                                                                    pluginName,
+                                                                                    paymentTransactionInfoPlugin.getGatewayErrorCode(),
+                                                                                    paymentTransactionInfoPlugin.getGatewayError(),
+                                                                                    paymentTransactionInfoPlugin.getProperties(),
+                                                                                    newLookupListener(tenantId, processor));
+        }
+
         if (authorizationDeclineCode == null) {
             return null;
         } else {
-            logger.info("PaymentRetriesApi paymentTransactionId='{}', paymentTransactionExternalKey='{}', gatewayErrorCode='{}', gatewayErrorMsg='{}', processorMessage='{}', processorCode='{}', isRetryable='{}'",
-                        failedAuthorization.getId(), failedAuthorization.getExternalKey(), failedAuthorization.getGatewayErrorCode(), failedAuthorization.getGatewayErrorMsg(),
-                        authorizationDeclineCode.getMessage(), authorizationDeclineCode.getCode(), authorizationDeclineCode.isRetryable());
+            if (decisionLogger.isSampled(tenantId)) {
+                decisionLogger.logDeclineCode(failedAuthorization, authorizationDeclineCode);
+            }
             return authorizationDeclineCode;
         }
     }
+
+    private LookupListener newLookupListener(final UUID tenantId, final String processor) {
+        return new LookupListener() {
+            @Override
+            public void onRulesLookup(final long durationNanos) {
+                paymentRetriesMetrics.recordLatency(tenantId, processor, Stage.RULES_LOOKUP, durationNanos);
+            }
+
+            @Override
+            public void onFuzzyMatch(@Nullable final AuthorizationDeclineCode authorizationDeclineCode, final long durationNanos) {
+                paymentRetriesMetrics.recordLatency(tenantId, processor, Stage.FUZZY_MATCH, durationNanos);
+                if (authorizationDeclineCode != null) {
+                    paymentRetriesMetrics.increment(tenantId, processor, Decision.FUZZY_MATCHED);
+                }
+            }
+        };
+    }
 }
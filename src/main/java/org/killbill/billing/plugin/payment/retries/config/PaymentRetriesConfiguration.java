@@ -19,13 +19,58 @@ package org.killbill.billing.plugin.payment.retries.config;
 
 public class PaymentRetriesConfiguration {
 
+    public static final long DEFAULT_LOOKUP_TIMEOUT_MILLIS = 0L;
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 30L;
+
     private final Integer experimentTrafficPct;
+    private final long lookupTimeoutMillis;
+    private final int circuitBreakerFailureThreshold;
+    private final long circuitBreakerOpenSeconds;
+    private final PaymentRetriesPolicy policy;
 
     public PaymentRetriesConfiguration(final Integer experimentTrafficPct) {
+        this(experimentTrafficPct, DEFAULT_LOOKUP_TIMEOUT_MILLIS, DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS);
+    }
+
+    public PaymentRetriesConfiguration(final Integer experimentTrafficPct,
+                                       final long lookupTimeoutMillis,
+                                       final int circuitBreakerFailureThreshold,
+                                       final long circuitBreakerOpenSeconds) {
+        this(experimentTrafficPct, lookupTimeoutMillis, circuitBreakerFailureThreshold, circuitBreakerOpenSeconds, PaymentRetriesPolicy.EMPTY);
+    }
+
+    public PaymentRetriesConfiguration(final Integer experimentTrafficPct,
+                                       final long lookupTimeoutMillis,
+                                       final int circuitBreakerFailureThreshold,
+                                       final long circuitBreakerOpenSeconds,
+                                       final PaymentRetriesPolicy policy) {
         this.experimentTrafficPct = experimentTrafficPct;
+        this.lookupTimeoutMillis = lookupTimeoutMillis;
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+        this.circuitBreakerOpenSeconds = circuitBreakerOpenSeconds;
+        this.policy = policy;
     }
 
     public Integer getExperimentTrafficPct() {
         return experimentTrafficPct;
     }
+
+    // Deadline of the decline code lookup in priorCall, 0 to wait for it
+    public long getLookupTimeoutMillis() {
+        return lookupTimeoutMillis;
+    }
+
+    // Number of consecutive lookup timeouts or failures after which lookups are skipped
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public long getCircuitBreakerOpenSeconds() {
+        return circuitBreakerOpenSeconds;
+    }
+
+    public PaymentRetriesPolicy getPolicy() {
+        return policy;
+    }
 }
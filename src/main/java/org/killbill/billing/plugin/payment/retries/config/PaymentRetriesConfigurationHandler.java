@@ -31,6 +31,10 @@ public class PaymentRetriesConfigurationHandler extends PluginTenantConfigurable
 
     @Override
     public PaymentRetriesConfiguration createConfigurable(final Properties properties) {
-        return new PaymentRetriesConfiguration(Integer.valueOf(properties.getProperty("experimentTrafficPct", "0")));
+        return new PaymentRetriesConfiguration(Integer.valueOf(properties.getProperty("experimentTrafficPct", "0")),
+                                               Long.valueOf(properties.getProperty("lookupTimeoutMillis", String.valueOf(PaymentRetriesConfiguration.DEFAULT_LOOKUP_TIMEOUT_MILLIS))),
+                                               Integer.valueOf(properties.getProperty("circuitBreakerFailureThreshold", String.valueOf(PaymentRetriesConfiguration.DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD))),
+                                               Long.valueOf(properties.getProperty("circuitBreakerOpenSeconds", String.valueOf(PaymentRetriesConfiguration.DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS))),
+                                               PaymentRetriesPolicy.compile(properties));
     }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries.config;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+
+// Per-tenant overrides of the decline code rules, compiled once per configuration event so that priorCall only
+// does a processor lookup followed by bitset probes:
+//   forcedRetryableCodes.<processor>=5,51
+//   forcedNonRetryableCodes.<processor>=14
+//   experimentTrafficPct.<processor>=50
+//   disabledProcessors=Braintree,Paymentech
+//   adaptiveAbortThresholdPct=5
+//   experimentBucketing=ACCOUNT
+//   experimentSalt=2017-06-ramp
+//   experimentSalt.<processor>=adyen-ramp
+//   decisionLogSamplingPct=10
+public class PaymentRetriesPolicy {
+
+    static final String FORCED_RETRYABLE_CODES_PREFIX = "forcedRetryableCodes.";
+    static final String FORCED_NON_RETRYABLE_CODES_PREFIX = "forcedNonRetryableCodes.";
+    static final String EXPERIMENT_TRAFFIC_PCT_PREFIX = "experimentTrafficPct.";
+    static final String DISABLED_PROCESSORS = "disabledProcessors";
+    static final String ADAPTIVE_ABORT_THRESHOLD_PCT = "adaptiveAbortThresholdPct";
+    static final String EXPERIMENT_BUCKETING = "experimentBucketing";
+    static final String EXPERIMENT_SALT = "experimentSalt";
+    static final String EXPERIMENT_SALT_PREFIX = "experimentSalt.";
+    static final String DECISION_LOG_SAMPLING_PCT = "decisionLogSamplingPct";
+
+    private static final double DEFAULT_DECISION_LOG_SAMPLING_PCT = 100.0;
+    // Forced codes are kept in a BitSet sized by the largest one: don't let a tenant config allocate an arbitrarily large one
+    static final int MAX_FORCED_CODE = 65535;
+
+    public static final PaymentRetriesPolicy EMPTY = new PaymentRetriesPolicy(ImmutableMap.<String, ProcessorPolicy>of(), 0.0, Bucketing.RANDOM, 0L, DEFAULT_DECISION_LOG_SAMPLING_PCT);
+
+    // How retries are assigned to the experiment group
+    public enum Bucketing {
+        // Independently for each retry
+        RANDOM,
+        // All retries of an account are in the same group, for a given experiment salt
+        ACCOUNT,
+        // All retries of a payment method are in the same group, for a given experiment salt
+        PAYMENT_METHOD
+    }
+
+    private static final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private final Map<String, ProcessorPolicy> perProcessorPolicies;
+    // Success rate (0 to 1) under which retries are aborted, 0 when disabled
+    private final double adaptiveAbortThreshold;
+    private final Bucketing experimentBucketing;
+    private final long experimentSalt;
+    private final double decisionLogSamplingPct;
+
+    private PaymentRetriesPolicy(final Map<String, ProcessorPolicy> perProcessorPolicies,
+                                 final double adaptiveAbortThreshold,
+                                 final Bucketing experimentBucketing,
+                                 final long experimentSalt,
+                                 final double decisionLogSamplingPct) {
+        this.perProcessorPolicies = perProcessorPolicies;
+        this.adaptiveAbortThreshold = adaptiveAbortThreshold;
+        this.experimentBucketing = experimentBucketing;
+        this.experimentSalt = experimentSalt;
+        this.decisionLogSamplingPct = decisionLogSamplingPct;
+    }
+
+    public static PaymentRetriesPolicy compile(final Properties properties) {
+        final Map<String, ProcessorPolicy.Builder> builders = new HashMap<String, ProcessorPolicy.Builder>();
+
+        for (final String processor : LIST_SPLITTER.split(properties.getProperty(DISABLED_PROCESSORS, ""))) {
+            getBuilder(builders, processor).disabled = true;
+        }
+
+        for (final String propertyName : properties.stringPropertyNames()) {
+            final String value = properties.getProperty(propertyName);
+            if (propertyName.startsWith(FORCED_RETRYABLE_CODES_PREFIX)) {
+                parseCodes(propertyName, value, getBuilder(builders, propertyName.substring(FORCED_RETRYABLE_CODES_PREFIX.length())).forcedRetryableCodes);
+            } else if (propertyName.startsWith(FORCED_NON_RETRYABLE_CODES_PREFIX)) {
+                parseCodes(propertyName, value, getBuilder(builders, propertyName.substring(FORCED_NON_RETRYABLE_CODES_PREFIX.length())).forcedNonRetryableCodes);
+            } else if (propertyName.startsWith(EXPERIMENT_TRAFFIC_PCT_PREFIX)) {
+                final int experimentTrafficPct = Integer.valueOf(value.trim());
+                Preconditions.checkArgument(experimentTrafficPct >= 0 && experimentTrafficPct <= 100, "Invalid %s='%s'", propertyName, value);
+                getBuilder(builders, propertyName.substring(EXPERIMENT_TRAFFIC_PCT_PREFIX.length())).experimentTrafficPct = experimentTrafficPct;
+            } else if (propertyName.startsWith(EXPERIMENT_SALT_PREFIX)) {
+                final ProcessorPolicy.Builder builder = getBuilder(builders, propertyName.substring(EXPERIMENT_SALT_PREFIX.length()));
+                builder.hasExperimentSalt = true;
+                builder.experimentSalt = hashSalt(value);
+            }
+        }
+
+        final String adaptiveAbortThresholdPctValue = properties.getProperty(ADAPTIVE_ABORT_THRESHOLD_PCT, "0");
+        final double adaptiveAbortThresholdPct = Double.valueOf(adaptiveAbortThresholdPctValue.trim());
+        Preconditions.checkArgument(adaptiveAbortThresholdPct >= 0 && adaptiveAbortThresholdPct <= 100, "Invalid %s='%s'", ADAPTIVE_ABORT_THRESHOLD_PCT, adaptiveAbortThresholdPctValue);
+
+        final Bucketing experimentBucketing = Bucketing.valueOf(properties.getProperty(EXPERIMENT_BUCKETING, Bucketing.RANDOM.name()).trim().toUpperCase(Locale.ROOT));
+        final String experimentSaltValue = properties.getProperty(EXPERIMENT_SALT);
+
+        final String decisionLogSamplingPctValue = properties.getProperty(DECISION_LOG_SAMPLING_PCT, String.valueOf(DEFAULT_DECISION_LOG_SAMPLING_PCT));
+        final double decisionLogSamplingPct = Double.valueOf(decisionLogSamplingPctValue.trim());
+        Preconditions.checkArgument(decisionLogSamplingPct >= 0 && decisionLogSamplingPct <= 100, "Invalid %s='%s'", DECISION_LOG_SAMPLING_PCT, decisionLogSamplingPctValue);
+
+        if (builders.isEmpty() &&
+            adaptiveAbortThresholdPct == 0 &&
+            experimentBucketing == Bucketing.RANDOM &&
+            experimentSaltValue == null &&
+            decisionLogSamplingPct == DEFAULT_DECISION_LOG_SAMPLING_PCT) {
+            return EMPTY;
+        }
+
+        final ImmutableMap.Builder<String, ProcessorPolicy> perProcessorPolicies = ImmutableMap.builder();
+        for (final Map.Entry<String, ProcessorPolicy.Builder> entry : builders.entrySet()) {
+            perProcessorPolicies.put(entry.getKey(), entry.getValue().build(entry.getKey()));
+        }
+        return new PaymentRetriesPolicy(perProcessorPolicies.build(),
+                                        adaptiveAbortThresholdPct / 100.0,
+                                        experimentBucketing,
+                                        experimentSaltValue == null ? 0L : hashSalt(experimentSaltValue),
+                                        decisionLogSamplingPct);
+    }
+
+    // Never null: processors without overrides share ProcessorPolicy.DEFAULT
+    public ProcessorPolicy getProcessorPolicy(final String processor) {
+        final ProcessorPolicy processorPolicy = processor == null ? null : perProcessorPolicies.get(processor);
+        return processorPolicy == null ? ProcessorPolicy.DEFAULT : processorPolicy;
+    }
+
+    // Same as the defaults (see compile), which always share the EMPTY instance
+    public boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    public Bucketing getExperimentBucketing() {
+        return experimentBucketing;
+    }
+
+    // Salt of the tenant experiment, see ProcessorPolicy#getExperimentSalt
+    public long getExperimentSalt() {
+        return experimentSalt;
+    }
+
+    // Percentage of the retry decisions which are logged
+    public double getDecisionLogSamplingPct() {
+        return decisionLogSamplingPct;
+    }
+
+    public boolean isAdaptiveAbortEnabled() {
+        return adaptiveAbortThreshold > 0;
+    }
+
+    // Whether retries of a code are hopeless, i.e. even the upper bound of their observed success rate is too low
+    public boolean isHopeless(final double successRateUpperBound) {
+        return successRateUpperBound < adaptiveAbortThreshold;
+    }
+
+    private static ProcessorPolicy.Builder getBuilder(final Map<String, ProcessorPolicy.Builder> builders, final String processor) {
+        ProcessorPolicy.Builder builder = builders.get(processor);
+        if (builder == null) {
+            builder = new ProcessorPolicy.Builder();
+            builders.put(processor, builder);
+        }
+        return builder;
+    }
+
+    private static long hashSalt(final String salt) {
+        return Hashing.murmur3_128().hashString(salt.trim(), Charsets.UTF_8).asLong();
+    }
+
+    private static void parseCodes(final String propertyName, final String value, final BitSet codes) {
+        for (final String code : LIST_SPLITTER.split(value)) {
+            final int parsedCode = Integer.valueOf(code);
+            Preconditions.checkArgument(parsedCode >= 0 && parsedCode <= MAX_FORCED_CODE, "Invalid %s='%s'", propertyName, value);
+            codes.set(parsedCode);
+        }
+    }
+
+    public static class ProcessorPolicy {
+
+        static final int NO_EXPERIMENT_TRAFFIC_PCT = -1;
+
+        static final ProcessorPolicy DEFAULT = new ProcessorPolicy(false, new BitSet(), new BitSet(), NO_EXPERIMENT_TRAFFIC_PCT, false, 0L);
+
+        private final boolean disabled;
+        private final BitSet forcedRetryableCodes;
+        private final BitSet forcedNonRetryableCodes;
+        private final int experimentTrafficPct;
+        private final boolean hasExperimentSalt;
+        private final long experimentSalt;
+
+        private ProcessorPolicy(final boolean disabled,
+                                final BitSet forcedRetryableCodes,
+                                final BitSet forcedNonRetryableCodes,
+                                final int experimentTrafficPct,
+                                final boolean hasExperimentSalt,
+                                final long experimentSalt) {
+            this.disabled = disabled;
+            this.forcedRetryableCodes = forcedRetryableCodes;
+            this.forcedNonRetryableCodes = forcedNonRetryableCodes;
+            this.experimentTrafficPct = experimentTrafficPct;
+            this.hasExperimentSalt = hasExperimentSalt;
+            this.experimentSalt = experimentSalt;
+        }
+
+        // The plugin doesn't interfere with retries for this processor
+        public boolean isDisabled() {
+            return disabled;
+        }
+
+        public boolean isRetryable(final AuthorizationDeclineCode authorizationDeclineCode) {
+            final int code = authorizationDeclineCode.getCode();
+            if (code >= 0 && forcedRetryableCodes.get(code)) {
+                return true;
+            } else if (code >= 0 && forcedNonRetryableCodes.get(code)) {
+                return false;
+            } else {
+                return authorizationDeclineCode.isRetryable();
+            }
+        }
+
+        public int getExperimentTrafficPct(final int defaultExperimentTrafficPct) {
+            return experimentTrafficPct == NO_EXPERIMENT_TRAFFIC_PCT ? defaultExperimentTrafficPct : experimentTrafficPct;
+        }
+
+        // A processor with its own salt runs its own experiment: its groups are independent from the other processors ones
+        public long getExperimentSalt(final long defaultExperimentSalt) {
+            return hasExperimentSalt ? experimentSalt : defaultExperimentSalt;
+        }
+
+        private static class Builder {
+
+            private boolean disabled = false;
+            private final BitSet forcedRetryableCodes = new BitSet();
+            private final BitSet forcedNonRetryableCodes = new BitSet();
+            private int experimentTrafficPct = NO_EXPERIMENT_TRAFFIC_PCT;
+            private boolean hasExperimentSalt = false;
+            private long experimentSalt = 0L;
+
+            private ProcessorPolicy build(final String processor) {
+                Preconditions.checkArgument(!forcedRetryableCodes.intersects(forcedNonRetryableCodes),
+                                            "Codes both forced retryable and non-retryable for processor='%s'", processor);
+                return new ProcessorPolicy(disabled, forcedRetryableCodes, forcedNonRetryableCodes, experimentTrafficPct, hasExperimentSalt, experimentSalt);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.jooq.Configuration;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Record5;
+import org.jooq.Table;
+import org.jooq.TransactionalRunnable;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+import org.killbill.billing.plugin.dao.PluginDao;
+
+public class PaymentRetriesStatsDao extends PluginDao {
+
+    private static final Table<Record> PAYMENT_RETRIES_STATS = DSL.table(DSL.name("payment_retries_stats"));
+    private static final Field<String> NODE_ID = DSL.field(DSL.name("node_id"), String.class);
+    private static final Field<String> KB_TENANT_ID = DSL.field(DSL.name("kb_tenant_id"), String.class);
+    private static final Field<String> PROCESSOR = DSL.field(DSL.name("processor"), String.class);
+    private static final Field<Integer> CODE = DSL.field(DSL.name("code"), Integer.class);
+    private static final Field<String> OUTCOME = DSL.field(DSL.name("outcome"), String.class);
+    private static final Field<Long> COUNT = DSL.field(DSL.name("count"), Long.class);
+    private static final Field<Timestamp> CREATED_DATE = DSL.field(DSL.name("created_date"), Timestamp.class);
+    private static final Field<Timestamp> UPDATED_DATE = DSL.field(DSL.name("updated_date"), Timestamp.class);
+
+    public PaymentRetriesStatsDao(final DataSource dataSource) throws SQLException {
+        super(dataSource);
+    }
+
+    // Counts persisted by that node
+    public List<PaymentRetriesStatsRecord> getCounts(final String nodeId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<PaymentRetriesStatsRecord>>() {
+                           @Override
+                           public List<PaymentRetriesStatsRecord> withConnection(final Connection conn) throws SQLException {
+                               return toRecords(DSL.using(conn, dialect, settings)
+                                                   .select(KB_TENANT_ID, PROCESSOR, CODE, OUTCOME, COUNT)
+                                                   .from(PAYMENT_RETRIES_STATS)
+                                                   .where(NODE_ID.equal(nodeId))
+                                                   .fetch());
+                           }
+                       });
+    }
+
+    // Counts persisted by all other nodes, summed across nodes
+    public List<PaymentRetriesStatsRecord> getCountsFromOtherNodes(final String nodeId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<PaymentRetriesStatsRecord>>() {
+                           @Override
+                           public List<PaymentRetriesStatsRecord> withConnection(final Connection conn) throws SQLException {
+                               return toRecords(DSL.using(conn, dialect, settings)
+                                                   .select(KB_TENANT_ID, PROCESSOR, CODE, OUTCOME, DSL.sum(COUNT).cast(Long.class))
+                                                   .from(PAYMENT_RETRIES_STATS)
+                                                   .where(NODE_ID.notEqual(nodeId))
+                                                   .groupBy(KB_TENANT_ID, PROCESSOR, CODE, OUTCOME)
+                                                   .fetch());
+                           }
+                       });
+    }
+
+    // Adds the deltas to the counts persisted by that node, in a single transaction
+    public void addCounts(final String nodeId, final Iterable<PaymentRetriesStatsRecord> deltas, final DateTime utcNow) throws SQLException {
+        execute(dataSource.getConnection(),
+                new WithConnectionCallback<Void>() {
+                    @Override
+                    public Void withConnection(final Connection conn) throws SQLException {
+                        try {
+                            addCounts(DSL.using(conn, dialect, settings), nodeId, deltas, utcNow);
+                        } catch (final DataAccessException e) {
+                            throw new SQLException(e);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private void addCounts(final DSLContext dslContext, final String nodeId, final Iterable<PaymentRetriesStatsRecord> deltas, final DateTime utcNow) {
+        dslContext.transaction(new TransactionalRunnable() {
+            @Override
+            public void run(final Configuration configuration) throws Exception {
+                final DSLContext transactionalContext = DSL.using(configuration);
+                final List<Query> queries = new LinkedList<Query>();
+                for (final PaymentRetriesStatsRecord delta : deltas) {
+                    queries.add(transactionalContext.insertInto(PAYMENT_RETRIES_STATS, NODE_ID, KB_TENANT_ID, PROCESSOR, CODE, OUTCOME, COUNT, CREATED_DATE, UPDATED_DATE)
+                                                    .values(nodeId,
+                                                            delta.getTenantId().toString(),
+                                                            delta.getProcessor(),
+                                                            delta.getCode(),
+                                                            delta.getOutcome(),
+                                                            delta.getCount(),
+                                                            toTimestamp(utcNow),
+                                                            toTimestamp(utcNow))
+                                                    .onDuplicateKeyUpdate()
+                                                    .set(COUNT, COUNT.add(delta.getCount()))
+                                                    .set(UPDATED_DATE, toTimestamp(utcNow)));
+                }
+                transactionalContext.batch(queries).execute();
+            }
+        });
+    }
+
+    private List<PaymentRetriesStatsRecord> toRecords(final Iterable<Record5<String, String, Integer, String, Long>> records) {
+        final List<PaymentRetriesStatsRecord> statsRecords = new LinkedList<PaymentRetriesStatsRecord>();
+        for (final Record5<String, String, Integer, String, Long> record : records) {
+            statsRecords.add(new PaymentRetriesStatsRecord(UUID.fromString(record.value1()),
+                                                           record.value2(),
+                                                           record.value3(),
+                                                           record.value4(),
+                                                           record.value5()));
+        }
+        return statsRecords;
+    }
+}
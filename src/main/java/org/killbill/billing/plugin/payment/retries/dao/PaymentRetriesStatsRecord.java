@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.dao;
+
+import java.util.UUID;
+
+public class PaymentRetriesStatsRecord {
+
+    private final UUID tenantId;
+    private final String processor;
+    private final int code;
+    private final String outcome;
+    private final long count;
+
+    public PaymentRetriesStatsRecord(final UUID tenantId, final String processor, final int code, final String outcome, final long count) {
+        this.tenantId = tenantId;
+        this.processor = processor;
+        this.code = code;
+        this.outcome = outcome;
+        this.count = count;
+    }
+
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    public String getProcessor() {
+        return processor;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("PaymentRetriesStatsRecord{");
+        sb.append("tenantId=").append(tenantId);
+        sb.append(", processor='").append(processor).append('\'');
+        sb.append(", code=").append(code);
+        sb.append(", outcome='").append(outcome).append('\'');
+        sb.append(", count=").append(count);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+// Latency of each stage of priorCall and decision counts, per tenant and processor
+public class PaymentRetriesMetrics {
+
+    public enum Stage {
+        GET_ACCOUNT_PAYMENTS,
+        GET_PAYMENT_METHOD,
+        GET_PAYMENT_TRANSACTION_INFO,
+        RULES_LOOKUP,
+        FUZZY_MATCH,
+        CONFIG_LOOKUP,
+        PRIOR_CALL
+    }
+
+    public enum Decision {
+        ABORTED,
+        // Aborted because of the observed success rate of the code only
+        ADAPTIVE_ABORTED,
+        ALLOWED,
+        CONTROL,
+        NO_DECLINE,
+        UNKNOWN_PLUGIN,
+        FUZZY_MATCHED,
+        // Processor disabled by the tenant policy
+        PROCESSOR_DISABLED,
+        // Fail-open cases of priorCall
+        LOOKUP_TIMEOUT,
+        LOOKUP_FAILURE,
+        CIRCUIT_OPEN
+    }
+
+    // Stages recorded before the processor is known (e.g. GET_ACCOUNT_PAYMENTS)
+    public static final String NO_PROCESSOR = "NONE";
+    // Kill Bill may run without a tenant
+    public static final UUID NO_TENANT_ID = new UUID(0L, 0L);
+
+    private final ConcurrentMap<UUID, ConcurrentMap<String, ProcessorMetrics>> metricsPerTenant = new ConcurrentHashMap<UUID, ConcurrentMap<String, ProcessorMetrics>>();
+
+    public void recordLatency(@Nullable final UUID tenantId, @Nullable final String processor, final Stage stage, final long latencyNanos) {
+        getProcessorMetrics(tenantId, processor).latencyHistograms[stage.ordinal()].record(latencyNanos);
+    }
+
+    public void increment(@Nullable final UUID tenantId, @Nullable final String processor, final Decision decision) {
+        getProcessorMetrics(tenantId, processor).decisionCounts[decision.ordinal()].increment();
+    }
+
+    // Processor -> metrics
+    public Map<String, ProcessorMetrics> getMetrics(@Nullable final UUID tenantId) {
+        final Map<String, ProcessorMetrics> tenantMetrics = metricsPerTenant.get(tenantId == null ? NO_TENANT_ID : tenantId);
+        return tenantMetrics == null ? Collections.<String, ProcessorMetrics>emptyMap() : Collections.unmodifiableMap(tenantMetrics);
+    }
+
+    private ProcessorMetrics getProcessorMetrics(@Nullable final UUID tenantId, @Nullable final String processor) {
+        final UUID tenantKey = tenantId == null ? NO_TENANT_ID : tenantId;
+        ConcurrentMap<String, ProcessorMetrics> tenantMetrics = metricsPerTenant.get(tenantKey);
+        if (tenantMetrics == null) {
+            final ConcurrentMap<String, ProcessorMetrics> newTenantMetrics = new ConcurrentHashMap<String, ProcessorMetrics>();
+            tenantMetrics = metricsPerTenant.putIfAbsent(tenantKey, newTenantMetrics);
+            if (tenantMetrics == null) {
+                tenantMetrics = newTenantMetrics;
+            }
+        }
+
+        final String processorKey = processor == null ? NO_PROCESSOR : processor;
+        final ProcessorMetrics processorMetrics = tenantMetrics.get(processorKey);
+        if (processorMetrics != null) {
+            return processorMetrics;
+        }
+        final ProcessorMetrics newProcessorMetrics = new ProcessorMetrics();
+        final ProcessorMetrics existingProcessorMetrics = tenantMetrics.putIfAbsent(processorKey, newProcessorMetrics);
+        return existingProcessorMetrics == null ? newProcessorMetrics : existingProcessorMetrics;
+    }
+
+    public static final class ProcessorMetrics {
+
+        private final LatencyHistogram[] latencyHistograms = new LatencyHistogram[Stage.values().length];
+        private final LongAdder[] decisionCounts = new LongAdder[Decision.values().length];
+
+        private ProcessorMetrics() {
+            for (int i = 0; i < latencyHistograms.length; i++) {
+                latencyHistograms[i] = new LatencyHistogram();
+            }
+            for (int i = 0; i < decisionCounts.length; i++) {
+                decisionCounts[i] = new LongAdder();
+            }
+        }
+
+        public LatencyHistogram getLatencyHistogram(final Stage stage) {
+            return latencyHistograms[stage.ordinal()];
+        }
+
+        public long getCount(final Decision decision) {
+            return decisionCounts[decision.ordinal()].sum();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+
+// Immutable code -> decline code table for one gateway plugin. Each decline code gets a dense id in [0, size()).
+public final class DeclineCodeTable {
+
+    public static final int NOT_FOUND = -1;
+
+    // Codes spread over a wider range use open addressing instead of a direct-mapped array
+    private static final int MAX_DIRECT_SPAN = 4096;
+
+    private final AuthorizationDeclineCode[] declineCodes;
+
+    // Direct-mapped: ids indexed by (code - minCode)
+    private final int minCode;
+    private final int[] directIds;
+
+    // Open addressing (linear probing): parallel keys/ids arrays, NOT_FOUND marks an empty slot
+    private final int[] keys;
+    private final int[] ids;
+    private final int mask;
+
+    public DeclineCodeTable(final AuthorizationDeclineCode[] authorizationDeclineCodes) {
+        // Last definition of a code wins
+        final Map<Integer, AuthorizationDeclineCode> uniqueDeclineCodes = new LinkedHashMap<Integer, AuthorizationDeclineCode>();
+        for (final AuthorizationDeclineCode authorizationDeclineCode : authorizationDeclineCodes) {
+            uniqueDeclineCodes.put(authorizationDeclineCode.getCode(), authorizationDeclineCode);
+        }
+        this.declineCodes = uniqueDeclineCodes.values().toArray(new AuthorizationDeclineCode[uniqueDeclineCodes.size()]);
+
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (final AuthorizationDeclineCode authorizationDeclineCode : declineCodes) {
+            min = Math.min(min, authorizationDeclineCode.getCode());
+            max = Math.max(max, authorizationDeclineCode.getCode());
+        }
+
+        if (declineCodes.length == 0 || (long) max - min >= MAX_DIRECT_SPAN) {
+            this.minCode = 0;
+            this.directIds = null;
+
+            final int capacity = Integer.highestOneBit(Math.max(2, declineCodes.length) * 2 - 1) << 1;
+            this.keys = new int[capacity];
+            this.ids = new int[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(ids, NOT_FOUND);
+            for (int id = 0; id < declineCodes.length; id++) {
+                int slot = mix(declineCodes[id].getCode()) & mask;
+                while (ids[slot] != NOT_FOUND) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = declineCodes[id].getCode();
+                ids[slot] = id;
+            }
+        } else {
+            this.minCode = min;
+            this.directIds = new int[max - min + 1];
+            Arrays.fill(directIds, NOT_FOUND);
+            for (int id = 0; id < declineCodes.length; id++) {
+                directIds[declineCodes[id].getCode() - min] = id;
+            }
+
+            this.keys = null;
+            this.ids = null;
+            this.mask = 0;
+        }
+    }
+
+    public int indexOf(final int code) {
+        if (directIds != null) {
+            final int offset = code - minCode;
+            return offset >= 0 && offset < directIds.length ? directIds[offset] : NOT_FOUND;
+        }
+
+        int slot = mix(code) & mask;
+        while (ids[slot] != NOT_FOUND) {
+            if (keys[slot] == code) {
+                return ids[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    public AuthorizationDeclineCode get(final int code) {
+        final int id = indexOf(code);
+        return id == NOT_FOUND ? null : declineCodes[id];
+    }
+
+    public AuthorizationDeclineCode getById(final int id) {
+        return declineCodes[id];
+    }
+
+    public int size() {
+        return declineCodes.length;
+    }
+
+    private static int mix(final int code) {
+        final int h = code * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
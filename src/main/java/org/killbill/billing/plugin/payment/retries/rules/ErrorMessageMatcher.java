@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import org.killbill.billing.plugin.payment.retries.api.ErrorMessage;
+
+// Aho-Corasick automaton over the keywords of all ErrorMessage categories: a single case-insensitive pass over the
+// gateway error finds the first matching category, in enum order.
+public final class ErrorMessageMatcher {
+
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+    private static final int ASCII_SIZE = 128;
+    // Symbol for characters which don't appear in any keyword
+    private static final int OTHER_SYMBOL = 0;
+
+    private static final ErrorMessage[] ERROR_MESSAGES = ErrorMessage.values();
+
+    private final int[] symbols = new int[ASCII_SIZE];
+    private final int nbSymbols;
+    // Deterministic transitions (failure links folded in), indexed by state * nbSymbols + symbol
+    private final int[] transitions;
+    // Lowest ErrorMessage ordinal matched when reaching each state, NO_MATCH if none
+    private final int[] matches;
+    private final int lowestOrdinal;
+
+    public ErrorMessageMatcher() {
+        // Alphabet compression: only the (lower case) characters of the keywords get their own symbol
+        int nextSymbol = OTHER_SYMBOL + 1;
+        int lowest = NO_MATCH;
+        for (final ErrorMessage errorMessage : ERROR_MESSAGES) {
+            for (final String keyword : errorMessage.getKeywords()) {
+                lowest = Math.min(lowest, errorMessage.ordinal());
+                for (int i = 0; i < keyword.length(); i++) {
+                    final char c = Character.toLowerCase(keyword.charAt(i));
+                    if (c >= ASCII_SIZE) {
+                        throw new IllegalArgumentException("Only ASCII keywords are supported: " + keyword);
+                    }
+                    if (symbols[c] == OTHER_SYMBOL) {
+                        symbols[c] = nextSymbol++;
+                    }
+                }
+            }
+        }
+        this.nbSymbols = nextSymbol;
+        this.lowestOrdinal = lowest;
+
+        // Trie
+        final List<int[]> trie = new ArrayList<int[]>();
+        final List<Integer> trieMatches = new ArrayList<Integer>();
+        trie.add(newState());
+        trieMatches.add(NO_MATCH);
+        for (final ErrorMessage errorMessage : ERROR_MESSAGES) {
+            for (final String keyword : errorMessage.getKeywords()) {
+                int state = 0;
+                for (int i = 0; i < keyword.length(); i++) {
+                    final int symbol = symbols[Character.toLowerCase(keyword.charAt(i))];
+                    if (trie.get(state)[symbol] == 0) {
+                        trie.get(state)[symbol] = trie.size();
+                        trie.add(newState());
+                        trieMatches.add(NO_MATCH);
+                    }
+                    state = trie.get(state)[symbol];
+                }
+                trieMatches.set(state, Math.min(trieMatches.get(state), errorMessage.ordinal()));
+            }
+        }
+
+        // Breadth-first construction of the failure links, folded into the transitions
+        final int nbStates = trie.size();
+        this.transitions = new int[nbStates * nbSymbols];
+        this.matches = new int[nbStates];
+        final int[] failures = new int[nbStates];
+        final Queue<Integer> queue = new ArrayDeque<Integer>();
+        matches[0] = trieMatches.get(0);
+        for (int symbol = 0; symbol < nbSymbols; symbol++) {
+            final int next = trie.get(0)[symbol];
+            transitions[symbol] = next;
+            if (next != 0) {
+                failures[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            final int state = queue.remove();
+            matches[state] = Math.min(trieMatches.get(state), matches[failures[state]]);
+            for (int symbol = 0; symbol < nbSymbols; symbol++) {
+                final int next = trie.get(state)[symbol];
+                if (next != 0) {
+                    failures[next] = transitions[failures[state] * nbSymbols + symbol];
+                    transitions[state * nbSymbols + symbol] = next;
+                    queue.add(next);
+                } else {
+                    transitions[state * nbSymbols + symbol] = transitions[failures[state] * nbSymbols + symbol];
+                }
+            }
+        }
+    }
+
+    public ErrorMessage match(final String gatewayError) {
+        if (gatewayError == null) {
+            return null;
+        }
+
+        int state = 0;
+        int bestMatch = NO_MATCH;
+        for (int i = 0; i < gatewayError.length(); i++) {
+            final char c = Character.toLowerCase(gatewayError.charAt(i));
+            final int symbol = c < ASCII_SIZE ? symbols[c] : OTHER_SYMBOL;
+            state = transitions[state * nbSymbols + symbol];
+            if (matches[state] < bestMatch) {
+                bestMatch = matches[state];
+                if (bestMatch == lowestOrdinal) {
+                    break;
+                }
+            }
+        }
+        return bestMatch == NO_MATCH ? null : ERROR_MESSAGES[bestMatch];
+    }
+
+    private int[] newState() {
+        // 0 means no child: the root is never a child
+        return new int[nbSymbols];
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import org.killbill.billing.payment.api.PluginProperty;
+
+// Reads the code from the first of the given plugin properties which is set (in order of preference), falling back to the gateway error code
+public class PluginPropertyProcessorResponseExtractor implements ProcessorResponseExtractor {
+
+    public static final String PROCESSOR_RESPONSE = "processorResponse";
+
+    private final String[] propertyKeys;
+
+    public PluginPropertyProcessorResponseExtractor(final String... propertyKeys) {
+        this.propertyKeys = propertyKeys;
+    }
+
+    @Override
+    public int extractCode(final String gatewayErrorCode, final Iterable<PluginProperty> properties) {
+        // Single pass over the properties, keeping the first value of the most preferred key
+        Object value = null;
+        int valueKeyIndex = propertyKeys.length;
+        if (properties != null) {
+            for (final PluginProperty property : properties) {
+                final int keyIndex = indexOf(property.getKey(), valueKeyIndex);
+                if (keyIndex < valueKeyIndex) {
+                    value = property.getValue();
+                    valueKeyIndex = keyIndex;
+                    if (keyIndex == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).intValue();
+        } else if (value instanceof CharSequence) {
+            // Like PluginProperties#getValue, an empty value is used as is (i.e. no code), not replaced by the gateway error code
+            return ProcessorResponseExtractor.parseCode((CharSequence) value);
+        } else if (value != null) {
+            return ProcessorResponseExtractor.parseCode(String.valueOf(value));
+        } else {
+            // Missing property
+            return ProcessorResponseExtractor.parseCode(gatewayErrorCode);
+        }
+    }
+
+    // Only look at keys preferred over the current one
+    private int indexOf(final String key, final int maxIndex) {
+        for (int i = 0; i < maxIndex; i++) {
+            if (propertyKeys[i].equals(key)) {
+                return i;
+            }
+        }
+        return propertyKeys.length;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import org.killbill.billing.payment.api.PluginProperty;
+
+// Extracts the integer processor response code of a failed transaction, without throwing
+public interface ProcessorResponseExtractor {
+
+    int NO_CODE = Integer.MIN_VALUE;
+
+    // Returns NO_CODE if there is no integer processor response code
+    int extractCode(String gatewayErrorCode, Iterable<PluginProperty> properties);
+
+    // Same syntax as Integer.parseInt, NO_CODE if invalid
+    static int parseCode(final CharSequence value) {
+        if (value == null || value.length() == 0) {
+            return NO_CODE;
+        }
+
+        int i = 0;
+        boolean negative = false;
+        final char first = value.charAt(0);
+        if (first == '-' || first == '+') {
+            if (value.length() == 1) {
+                return NO_CODE;
+            }
+            negative = first == '-';
+            i++;
+        }
+
+        // Accumulate negatively, to handle Integer.MIN_VALUE
+        long code = 0;
+        for (; i < value.length(); i++) {
+            final int digit = Character.digit(value.charAt(i), 10);
+            if (digit < 0) {
+                return NO_CODE;
+            }
+            code = code * 10 - digit;
+            if (code < Integer.MIN_VALUE) {
+                return NO_CODE;
+            }
+        }
+        if (!negative && code == Integer.MIN_VALUE) {
+            return NO_CODE;
+        }
+        // Note: -2147483648 can't be told apart from NO_CODE, which is fine for decline codes
+        return (int) (negative ? code : -code);
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.api.ErrorMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+
+// Immutable, indexed, snapshot of the decline code rules of all gateway plugins. RulesComputer publishes the current one.
+//
+// External definitions are layered on top of the built-in tables (the AuthorizationDeclineCode enums), one rule per line:
+//
+//   # pluginName|processor|code|retryable|errorMessage|message
+//   killbill-adyen|Adyen|14|false|CARD_NUMBER_MISMATCH|Invalid card number
+//
+// A rule replaces the built-in one with the same code, if any. An empty errorMessage means GENERAL_DECLINE. Rules for
+// unknown plugins define new tables, whose processor response code is read from the processorResponse property.
+public final class RuleTables {
+
+    static final String ADYEN_PLUGIN = "killbill-adyen";
+    static final String BRAINTREE_BLUE_PLUGIN = "killbill-braintree_blue";
+    static final String ORBITAL = "killbill-orbital";
+    static final String CYBERSOURCE = "killbill-cybersource";
+
+    private static final int DEFAULT_ERROR_CODE = 0;
+    private static final int NB_FIELDS = 6;
+    private static final String COMMENT = "#";
+
+    private static final Logger logger = LoggerFactory.getLogger(RuleTables.class);
+
+    private static final Splitter FIELD_SPLITTER = Splitter.on('|').trimResults().limit(NB_FIELDS);
+    private static final ErrorMessageMatcher ERROR_MESSAGE_MATCHER = new ErrorMessageMatcher();
+
+    // Each gateway plugin reports the raw processor response code under its own key, processorResponse being the legacy one
+    private static final ProcessorResponseExtractor DEFAULT_PROCESSOR_RESPONSE_EXTRACTOR = new PluginPropertyProcessorResponseExtractor(PluginPropertyProcessorResponseExtractor.PROCESSOR_RESPONSE);
+    private static final Map<String, ProcessorResponseExtractor> BUILT_IN_PROCESSOR_RESPONSE_EXTRACTORS = ImmutableMap.<String, ProcessorResponseExtractor>of(
+            ADYEN_PLUGIN, new PluginPropertyProcessorResponseExtractor("refusalReasonCode", PluginPropertyProcessorResponseExtractor.PROCESSOR_RESPONSE),
+            BRAINTREE_BLUE_PLUGIN, new PluginPropertyProcessorResponseExtractor("processorResponseCode", PluginPropertyProcessorResponseExtractor.PROCESSOR_RESPONSE),
+            ORBITAL, new PluginPropertyProcessorResponseExtractor("respCode", PluginPropertyProcessorResponseExtractor.PROCESSOR_RESPONSE),
+            // ccAuthReply_processorResponse
+            CYBERSOURCE, DEFAULT_PROCESSOR_RESPONSE_EXTRACTOR);
+
+    // Plugin name -> index in the arrays and list below
+    private final Map<String, Integer> pluginIndexes;
+    private final String[] processors;
+    private final DeclineCodeTable[] declineCodeTables;
+    private final ProcessorResponseExtractor[] processorResponseExtractors;
+    // Gateway error -> canonical fuzzy matched decline code (absent if no match), per plugin index
+    private final List<Cache<String, Optional<AuthorizationDeclineCode>>> fuzzyMatchedDeclineCodesPerPlugin;
+    // Read-only view, for the configuration endpoint
+    private final Map<String, Map<Integer, AuthorizationDeclineCode>> perPluginDeclineCodes;
+
+    public static RuleTables builtIn(final long maxFuzzyMatchedErrorsPerPlugin) {
+        return new RuleTables(builtInDeclineCodes(), BUILT_IN_PROCESSOR_RESPONSE_EXTRACTORS, maxFuzzyMatchedErrorsPerPlugin);
+    }
+
+    // Throws IllegalArgumentException (with the line number) if the definition is invalid
+    public static RuleTables compile(final String definition, final long maxFuzzyMatchedErrorsPerPlugin) {
+        final Map<String, Map<Integer, AuthorizationDeclineCode>> declineCodesPerPlugin = builtInDeclineCodes();
+
+        final BufferedReader reader = new BufferedReader(new StringReader(definition));
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(COMMENT)) {
+                    continue;
+                }
+
+                try {
+                    final DefaultAuthorizationDeclineCode rule = parseRule(line);
+                    final String pluginName = line.substring(0, line.indexOf('|')).trim();
+                    Map<Integer, AuthorizationDeclineCode> pluginDeclineCodes = declineCodesPerPlugin.get(pluginName);
+                    if (pluginDeclineCodes == null) {
+                        pluginDeclineCodes = new LinkedHashMap<Integer, AuthorizationDeclineCode>();
+                        declineCodesPerPlugin.put(pluginName, pluginDeclineCodes);
+                    } else if (!pluginDeclineCodes.isEmpty() && !pluginDeclineCodes.values().iterator().next().getProcessor().equals(rule.getProcessor())) {
+                        throw new IllegalArgumentException("processor doesn't match the other rules of " + pluginName);
+                    }
+                    pluginDeclineCodes.put(rule.getCode(), rule);
+                } catch (final IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid rule at line " + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        } catch (final IOException e) {
+            // Can't happen with a StringReader
+            throw new IllegalStateException(e);
+        }
+
+        return new RuleTables(declineCodesPerPlugin, BUILT_IN_PROCESSOR_RESPONSE_EXTRACTORS, maxFuzzyMatchedErrorsPerPlugin);
+    }
+
+    // Plugins without an extractor read the processorResponse property
+    private RuleTables(final Map<String, Map<Integer, AuthorizationDeclineCode>> declineCodesPerPlugin,
+                       final Map<String, ProcessorResponseExtractor> processorResponseExtractorsPerPlugin,
+                       final long maxFuzzyMatchedErrorsPerPlugin) {
+        final ImmutableMap.Builder<String, Integer> pluginIndexesBuilder = ImmutableMap.<String, Integer>builder();
+        final Map<String, Map<Integer, AuthorizationDeclineCode>> perPluginDeclineCodesBuilder = new TreeMap<String, Map<Integer, AuthorizationDeclineCode>>();
+        this.processors = new String[declineCodesPerPlugin.size()];
+        this.declineCodeTables = new DeclineCodeTable[declineCodesPerPlugin.size()];
+        this.processorResponseExtractors = new ProcessorResponseExtractor[declineCodesPerPlugin.size()];
+        this.fuzzyMatchedDeclineCodesPerPlugin = new ArrayList<Cache<String, Optional<AuthorizationDeclineCode>>>(declineCodesPerPlugin.size());
+        int pluginIndex = 0;
+        for (final Entry<String, Map<Integer, AuthorizationDeclineCode>> entry : declineCodesPerPlugin.entrySet()) {
+            final AuthorizationDeclineCode[] declineCodes = entry.getValue().values().toArray(new AuthorizationDeclineCode[entry.getValue().size()]);
+            pluginIndexesBuilder.put(entry.getKey(), pluginIndex);
+            processors[pluginIndex] = declineCodes.length == 0 ? null : declineCodes[0].getProcessor();
+            declineCodeTables[pluginIndex] = new DeclineCodeTable(declineCodes);
+            final ProcessorResponseExtractor processorResponseExtractor = processorResponseExtractorsPerPlugin.get(entry.getKey());
+            processorResponseExtractors[pluginIndex] = processorResponseExtractor == null ? DEFAULT_PROCESSOR_RESPONSE_EXTRACTOR : processorResponseExtractor;
+            perPluginDeclineCodesBuilder.put(entry.getKey(), buildReverseLookup(declineCodes));
+            fuzzyMatchedDeclineCodesPerPlugin.add(CacheBuilder.newBuilder()
+                                                              .maximumSize(maxFuzzyMatchedErrorsPerPlugin)
+                                                              .recordStats()
+                                                              .<String, Optional<AuthorizationDeclineCode>>build());
+            pluginIndex++;
+        }
+        this.pluginIndexes = pluginIndexesBuilder.build();
+        this.perPluginDeclineCodes = Collections.unmodifiableMap(perPluginDeclineCodesBuilder);
+    }
+
+    public int getPluginIndex(final String pluginName) {
+        final Integer pluginIndex = pluginName == null ? null : pluginIndexes.get(pluginName);
+        return pluginIndex == null ? RulesComputer.UNKNOWN_PLUGIN : pluginIndex;
+    }
+
+    public boolean isConfigured(final String pluginName) {
+        return getPluginIndex(pluginName) != RulesComputer.UNKNOWN_PLUGIN;
+    }
+
+    public String getProcessor(final String pluginName) {
+        final int pluginIndex = getPluginIndex(pluginName);
+        return pluginIndex == RulesComputer.UNKNOWN_PLUGIN ? null : processors[pluginIndex];
+    }
+
+    public DeclineCodeTable getDeclineCodeTable(final int pluginIndex) {
+        return declineCodeTables[pluginIndex];
+    }
+
+    // Returns ProcessorResponseExtractor.NO_CODE if the decline needs to be fuzzy matched
+    public int extractProcessorResponseCode(final int pluginIndex, final String gatewayErrorCode, final Iterable<PluginProperty> properties) {
+        return processorResponseExtractors[pluginIndex].extractCode(gatewayErrorCode, properties);
+    }
+
+    public AuthorizationDeclineCode lookupFuzzyMatchedAuthorizationDeclineCode(final int pluginIndex, final String gatewayError) {
+        if (gatewayError == null) {
+            return getFuzzyMatchedAuthDeclineCode(null, pluginIndex).orElse(null);
+        }
+
+        // Gateway errors are very repetitive: share a single instance per distinct error
+        final Cache<String, Optional<AuthorizationDeclineCode>> fuzzyMatchedDeclineCodes = fuzzyMatchedDeclineCodesPerPlugin.get(pluginIndex);
+        Optional<AuthorizationDeclineCode> authorizationDeclineCode = fuzzyMatchedDeclineCodes.getIfPresent(gatewayError);
+        if (authorizationDeclineCode == null) {
+            authorizationDeclineCode = getFuzzyMatchedAuthDeclineCode(gatewayError, pluginIndex);
+            fuzzyMatchedDeclineCodes.put(gatewayError, authorizationDeclineCode);
+        }
+        return authorizationDeclineCode.orElse(null);
+    }
+
+    public Map<String, Map<Integer, AuthorizationDeclineCode>> getPerPluginDeclineCodes() {
+        return perPluginDeclineCodes;
+    }
+
+    public long getFuzzyMatchCacheSize() {
+        long size = 0;
+        for (final Cache<String, Optional<AuthorizationDeclineCode>> fuzzyMatchedDeclineCodes : fuzzyMatchedDeclineCodesPerPlugin) {
+            size += fuzzyMatchedDeclineCodes.size();
+        }
+        return size;
+    }
+
+    public CacheStats getFuzzyMatchCacheStats() {
+        CacheStats cacheStats = new CacheStats(0, 0, 0, 0, 0, 0);
+        for (final Cache<String, Optional<AuthorizationDeclineCode>> fuzzyMatchedDeclineCodes : fuzzyMatchedDeclineCodesPerPlugin) {
+            cacheStats = cacheStats.plus(fuzzyMatchedDeclineCodes.stats());
+        }
+        return cacheStats;
+    }
+
+    private Optional<AuthorizationDeclineCode> getFuzzyMatchedAuthDeclineCode(final String gatewayError, final int pluginIndex) {
+        final ErrorMessage errorMessage = ERROR_MESSAGE_MATCHER.match(gatewayError);
+        if (errorMessage != null) {
+            return Optional.<AuthorizationDeclineCode>of(new DefaultAuthorizationDeclineCode(processors[pluginIndex],
+                                                                                             DEFAULT_ERROR_CODE,
+                                                                                             gatewayError,
+                                                                                             errorMessage,
+                                                                                             errorMessage.isRetryable()));
+        } else {
+            logger.info("Unable to fuzzy match an error category based on the error message='{}'.", gatewayError);
+            return Optional.empty();
+        }
+    }
+
+    private static Map<String, Map<Integer, AuthorizationDeclineCode>> builtInDeclineCodes() {
+        final Map<String, Map<Integer, AuthorizationDeclineCode>> declineCodesPerPlugin = new TreeMap<String, Map<Integer, AuthorizationDeclineCode>>();
+        declineCodesPerPlugin.put(ADYEN_PLUGIN, toMap(AdyenAuthorizationDeclineCode.values()));
+        declineCodesPerPlugin.put(BRAINTREE_BLUE_PLUGIN, toMap(BraintreeAuthorizationDeclineCode.values()));
+        declineCodesPerPlugin.put(CYBERSOURCE, toMap(ChasePaymentechAuthorizationDeclineCode.values()));
+        declineCodesPerPlugin.put(ORBITAL, toMap(ChasePaymentechAuthorizationDeclineCode.values()));
+        return declineCodesPerPlugin;
+    }
+
+    private static Map<Integer, AuthorizationDeclineCode> toMap(final AuthorizationDeclineCode[] authorizationDeclineCodes) {
+        // Definition order is kept, it drives the dense ids of the DeclineCodeTable
+        final Map<Integer, AuthorizationDeclineCode> declineCodes = new LinkedHashMap<Integer, AuthorizationDeclineCode>();
+        for (final AuthorizationDeclineCode authorizationDeclineCode : authorizationDeclineCodes) {
+            declineCodes.put(authorizationDeclineCode.getCode(), authorizationDeclineCode);
+        }
+        return declineCodes;
+    }
+
+    private static DefaultAuthorizationDeclineCode parseRule(final String line) {
+        final List<String> fields = FIELD_SPLITTER.splitToList(line);
+        if (fields.size() != NB_FIELDS) {
+            throw new IllegalArgumentException("expected " + NB_FIELDS + " fields separated by '|'");
+        }
+        if (fields.get(0).isEmpty() || fields.get(1).isEmpty()) {
+            throw new IllegalArgumentException("pluginName and processor are required");
+        }
+
+        final int code;
+        try {
+            code = Integer.parseInt(fields.get(2));
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("invalid code " + fields.get(2));
+        }
+
+        final String retryable = fields.get(3);
+        if (!"true".equalsIgnoreCase(retryable) && !"false".equalsIgnoreCase(retryable)) {
+            throw new IllegalArgumentException("invalid retryable flag " + retryable);
+        }
+
+        // Throws IllegalArgumentException for unknown categories
+        final ErrorMessage errorMessage = fields.get(4).isEmpty() ? ErrorMessage.GENERAL_DECLINE : ErrorMessage.valueOf(fields.get(4));
+
+        return new DefaultAuthorizationDeclineCode(fields.get(1), code, fields.get(5), errorMessage, Boolean.parseBoolean(retryable));
+    }
+
+    private static Map<Integer, AuthorizationDeclineCode> buildReverseLookup(final AuthorizationDeclineCode[] authorizationDeclineCodes) {
+        final Map<Integer, AuthorizationDeclineCode> pluginDeclineCodes = new TreeMap<Integer, AuthorizationDeclineCode>();
+        for (final AuthorizationDeclineCode authorizationDeclineCode : authorizationDeclineCodes) {
+            pluginDeclineCodes.put(authorizationDeclineCode.getCode(), authorizationDeclineCode);
+        }
+        return Collections.unmodifiableMap(pluginDeclineCodes);
+    }
+}
@@ -17,97 +17,147 @@
 
 package org.killbill.billing.plugin.payment.retries.rules;
 
-import java.util.Arrays;
 import java.util.Map;
-import java.util.TreeMap;
+
+import javax.annotation.Nullable;
 
 import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
-import org.killbill.billing.plugin.api.PluginProperties;
 import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
-import org.killbill.billing.plugin.payment.retries.api.ErrorMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableMap;
 
+// Publishes the current RuleTables snapshot through a single volatile reference: lookups never lock, and reloading the
+// rules never pauses them. Callers doing several lookups for the same decline should read the snapshot once.
 public class RulesComputer {
 
-    private final static String ADYEN_PLUGIN = "killbill-adyen";
-    private final static String BRAINTREE_BLUE_PLUGIN = "killbill-braintree_blue";
-    private final static String ORBITAL = "killbill-orbital";
-    private final static String CYBERSOURCE = "killbill-cybersource";
-
     final static String PAYMENTECH = "Paymentech";
     final static String BRAINTREE = "Braintree";
     final static String AYDEN_PROCESSOR = "Adyen";
 
-    private final static int DEFAULT_ERROR_CODE = 0;
+    public final static int UNKNOWN_PLUGIN = -1;
+
+    public final static long DEFAULT_MAX_FUZZY_MATCHED_ERRORS_PER_PLUGIN = 1000L;
+
     private final static Logger logger = LoggerFactory.getLogger(RulesComputer.class);
 
-    public final static Map<String, String> PROCESSOR_PER_GATEWAY = ImmutableMap.of(ADYEN_PLUGIN, AYDEN_PROCESSOR,
-                                                                                    BRAINTREE_BLUE_PLUGIN, BRAINTREE,
-                                                                                    ORBITAL, PAYMENTECH,
-                                                                                    CYBERSOURCE, PAYMENTECH);
+    // Built-in gateway plugins only, see RuleTables#getProcessor
+    public final static Map<String, String> PROCESSOR_PER_GATEWAY = ImmutableMap.of(RuleTables.ADYEN_PLUGIN, AYDEN_PROCESSOR,
+                                                                                    RuleTables.BRAINTREE_BLUE_PLUGIN, BRAINTREE,
+                                                                                    RuleTables.ORBITAL, PAYMENTECH,
+                                                                                    RuleTables.CYBERSOURCE, PAYMENTECH);
+
+    private static final LookupListener NO_OP_LOOKUP_LISTENER = new LookupListener() {
+        @Override
+        public void onRulesLookup(final long durationNanos) {
+        }
+
+        @Override
+        public void onFuzzyMatch(@Nullable final AuthorizationDeclineCode authorizationDeclineCode, final long durationNanos) {
+        }
+    };
 
-    private final Map<String, Map<Integer, AuthorizationDeclineCode>> perPluginDeclineCodes = new TreeMap<>();
+    private final long maxFuzzyMatchedErrorsPerPlugin;
+
+    private volatile RuleTables ruleTables;
 
     public RulesComputer() {
-        populateReverseLookup(ADYEN_PLUGIN, AdyenAuthorizationDeclineCode.values());
-        populateReverseLookup(BRAINTREE_BLUE_PLUGIN, BraintreeAuthorizationDeclineCode.values());
-        populateReverseLookup(CYBERSOURCE, ChasePaymentechAuthorizationDeclineCode.values());
-        populateReverseLookup(ORBITAL, ChasePaymentechAuthorizationDeclineCode.values());
+        this(DEFAULT_MAX_FUZZY_MATCHED_ERRORS_PER_PLUGIN);
+    }
+
+    public RulesComputer(final long maxFuzzyMatchedErrorsPerPlugin) {
+        this.maxFuzzyMatchedErrorsPerPlugin = maxFuzzyMatchedErrorsPerPlugin;
+        this.ruleTables = RuleTables.builtIn(maxFuzzyMatchedErrorsPerPlugin);
+    }
+
+    public RuleTables getRuleTables() {
+        return ruleTables;
+    }
+
+    // Compiles the external definition on top of the built-in rules and swaps it in. The current rules are kept if the
+    // definition is invalid (IllegalArgumentException). A null definition restores the built-in rules.
+    public void reload(final String definition) {
+        final RuleTables newRuleTables = definition == null ? RuleTables.builtIn(maxFuzzyMatchedErrorsPerPlugin) : RuleTables.compile(definition, maxFuzzyMatchedErrorsPerPlugin);
+        ruleTables = newRuleTables;
+        logger.info("Reloaded decline code rules for plugins='{}'", newRuleTables.getPerPluginDeclineCodes().keySet());
     }
 
     public AuthorizationDeclineCode lookupAuthorizationDeclineCode(final PaymentMethod paymentMethod, final PaymentTransactionInfoPlugin paymentTransactionInfoPlugin) {
-        final Map<Integer, AuthorizationDeclineCode> declineCodes = perPluginDeclineCodes.get(paymentMethod.getPluginName());
-        if (declineCodes == null) {
-            logger.info("Payment retries plugin not configured for plugin='{}'", paymentMethod.getPluginName());
+        return lookupAuthorizationDeclineCode(paymentMethod.getPluginName(),
+                                              paymentTransactionInfoPlugin.getGatewayErrorCode(),
+                                              paymentTransactionInfoPlugin.getGatewayError(),
+                                              paymentTransactionInfoPlugin.getProperties());
+    }
+
+    public AuthorizationDeclineCode lookupAuthorizationDeclineCode(final String pluginName, final String gatewayErrorCode, final String gatewayError, final Iterable<PluginProperty> properties) {
+        return lookupAuthorizationDeclineCode(ruleTables, pluginName, gatewayErrorCode, gatewayError, properties, NO_OP_LOOKUP_LISTENER);
+    }
+
+    // Same as above, against a snapshot the caller already read (see getRuleTables). The listener is told how long each step took.
+    public AuthorizationDeclineCode lookupAuthorizationDeclineCode(final RuleTables currentRuleTables,
+                                                                   final String pluginName,
+                                                                   final String gatewayErrorCode,
+                                                                   final String gatewayError,
+                                                                   final Iterable<PluginProperty> properties,
+                                                                   final LookupListener lookupListener) {
+        final int pluginIndex = currentRuleTables.getPluginIndex(pluginName);
+        if (pluginIndex == UNKNOWN_PLUGIN) {
+            logger.info("Payment retries plugin not configured for plugin='{}'", pluginName);
             return null;
         }
 
-        final String processorResponse = PluginProperties.getValue("processorResponse", paymentTransactionInfoPlugin.getGatewayErrorCode(), paymentTransactionInfoPlugin.getProperties());
-        final Integer processorResponseCode;
-        try {
-            processorResponseCode = Integer.valueOf(processorResponse);
-            return declineCodes.get(processorResponseCode);
-        } catch (final NumberFormatException e) {
-            logger.info("Unable to extract an integer processorResponseCode from processorResponse='{}'. " +
-                        "Trying fuzzy match based on error message.", processorResponse);
-            return getFuzzyMatchedAuthDeclineCode(paymentTransactionInfoPlugin.getGatewayError(), paymentMethod.getPluginName());
+        long startNanos = System.nanoTime();
+        final int processorResponseCode = currentRuleTables.extractProcessorResponseCode(pluginIndex, gatewayErrorCode, properties);
+        if (processorResponseCode != ProcessorResponseExtractor.NO_CODE) {
+            final AuthorizationDeclineCode authorizationDeclineCode = currentRuleTables.getDeclineCodeTable(pluginIndex).get(processorResponseCode);
+            lookupListener.onRulesLookup(System.nanoTime() - startNanos);
+            return authorizationDeclineCode;
         }
+        lookupListener.onRulesLookup(System.nanoTime() - startNanos);
+
+        logger.debug("Unable to extract an integer processorResponseCode for gatewayErrorCode='{}'. " +
+                     "Trying fuzzy match based on error message.", gatewayErrorCode);
+        startNanos = System.nanoTime();
+        final AuthorizationDeclineCode authorizationDeclineCode = currentRuleTables.lookupFuzzyMatchedAuthorizationDeclineCode(pluginIndex, gatewayError);
+        lookupListener.onFuzzyMatch(authorizationDeclineCode, System.nanoTime() - startNanos);
+        return authorizationDeclineCode;
     }
 
-    private AuthorizationDeclineCode getFuzzyMatchedAuthDeclineCode(final String gatewayError, final String paymentMethodPlugin) {
-        ErrorMessage errorMessage = getFuzzyMatchedErrorMessage(gatewayError);
-        if(errorMessage != null) {
-            return new DefaultAuthorizationDeclineCode(PROCESSOR_PER_GATEWAY.get(paymentMethodPlugin),
-                                                       DEFAULT_ERROR_CODE,
-                                                       gatewayError,
-                                                       errorMessage,
-                                                       errorMessage.isRetryable());
-        } else {
-            logger.info("Unable to fuzzy match an error category based on the error message='{}'.", gatewayError);
-            return null;
-        }
+    public String getProcessor(final String pluginName) {
+        return ruleTables.getProcessor(pluginName);
+    }
+
+    public boolean isConfigured(final String pluginName) {
+        return ruleTables.isConfigured(pluginName);
     }
 
-    private ErrorMessage getFuzzyMatchedErrorMessage(final String gatewayError) {
-        return Arrays.stream(ErrorMessage.values())
-                     .filter(error -> error.test(gatewayError))
-                     .findFirst()
-                     .orElse(null);
+    // Whether the gateway error code alone is enough to classify the decline, without fetching the plugin info
+    public boolean isClassifiable(final String gatewayErrorCode) {
+        return ProcessorResponseExtractor.parseCode(gatewayErrorCode) != ProcessorResponseExtractor.NO_CODE;
+    }
+
+    public long getFuzzyMatchCacheSize() {
+        return ruleTables.getFuzzyMatchCacheSize();
+    }
+
+    public CacheStats getFuzzyMatchCacheStats() {
+        return ruleTables.getFuzzyMatchCacheStats();
     }
 
     public Map<String, Map<Integer, AuthorizationDeclineCode>> getPerPluginDeclineCodes() {
-        return perPluginDeclineCodes;
+        return ruleTables.getPerPluginDeclineCodes();
     }
 
-    private void populateReverseLookup(final String pluginName, final AuthorizationDeclineCode[] authorizationDeclineCodes) {
-        final Map<Integer, AuthorizationDeclineCode> pluginDeclineCodes = new TreeMap<Integer, AuthorizationDeclineCode>();
-        for (final AuthorizationDeclineCode authorizationDeclineCode : authorizationDeclineCodes) {
-            pluginDeclineCodes.put(authorizationDeclineCode.getCode(), authorizationDeclineCode);
-        }
-        perPluginDeclineCodes.put(pluginName, pluginDeclineCodes);
+    public interface LookupListener {
+
+        // Extracting the processor response code and looking it up in the decline code table
+        void onRulesLookup(long durationNanos);
+
+        // Only when no processor response code could be extracted: authorizationDeclineCode is null if nothing matched
+        void onFuzzyMatch(@Nullable AuthorizationDeclineCode authorizationDeclineCode, long durationNanos);
     }
 }
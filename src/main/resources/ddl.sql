@@ -0,0 +1,16 @@
+/*! SET default_storage_engine=INNODB */;
+
+drop table if exists payment_retries_stats;
+create table payment_retries_stats (
+  record_id serial
+, node_id varchar(64) not null
+, kb_tenant_id char(36) not null
+, processor varchar(64) not null
+, code int not null
+, outcome varchar(32) not null
+, count bigint not null default 0
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index payment_retries_stats_node_tenant_processor_code_outcome on payment_retries_stats(node_id, kb_tenant_id, processor, code, outcome);
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestAsyncLookupExecutor {
+
+    private AsyncLookupExecutor executor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        executor = new AsyncLookupExecutor(2, 10);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    @Test(groups = "fast")
+    public void testCompletion() throws Exception {
+        final CompletableFuture<String> future = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }, 0, TimeUnit.SECONDS);
+        Assert.assertEquals(future.get(5, TimeUnit.SECONDS), "done");
+
+        final CompletableFuture<String> failedFuture = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("boom");
+            }
+        }, 0, TimeUnit.SECONDS);
+        try {
+            failedFuture.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTimeoutInterruptsLookup() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CompletableFuture<String> future = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return "too late";
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(groups = "fast")
+    public void testCancellationInterruptsLookup() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CompletableFuture<String> future = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return "too late";
+            }
+        }, 0, TimeUnit.SECONDS);
+
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(future.cancel(true));
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+}
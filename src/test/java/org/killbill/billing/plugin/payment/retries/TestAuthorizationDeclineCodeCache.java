@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.rules.AdyenAuthorizationDeclineCode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestAuthorizationDeclineCodeCache {
+
+    @Test(groups = "fast")
+    public void testCachingAndInvalidation() throws Exception {
+        final AuthorizationDeclineCodeCache cache = new AuthorizationDeclineCodeCache();
+        final UUID tenantId = UUID.randomUUID();
+        final UUID accountId = UUID.randomUUID();
+        final UUID paymentMethodId = UUID.randomUUID();
+
+        final AtomicInteger nbLookups = new AtomicInteger();
+        final Callable<AuthorizationDeclineCode> loader = new Callable<AuthorizationDeclineCode>() {
+            @Override
+            public AuthorizationDeclineCode call() {
+                nbLookups.incrementAndGet();
+                return AdyenAuthorizationDeclineCode.DO_NOT_HONOR;
+            }
+        };
+
+        Assert.assertEquals(cache.get(accountId, paymentMethodId, tenantId, loader), AdyenAuthorizationDeclineCode.DO_NOT_HONOR);
+        Assert.assertEquals(cache.get(accountId, paymentMethodId, tenantId, loader), AdyenAuthorizationDeclineCode.DO_NOT_HONOR);
+        Assert.assertEquals(nbLookups.get(), 1);
+
+        // Other tenant
+        cache.get(accountId, paymentMethodId, UUID.randomUUID(), loader);
+        Assert.assertEquals(nbLookups.get(), 2);
+
+        cache.invalidateAccount(accountId, tenantId);
+        cache.get(accountId, paymentMethodId, tenantId, loader);
+        Assert.assertEquals(nbLookups.get(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testNoDeclineCodeIsCachedButFailuresAreNot() throws Exception {
+        final AuthorizationDeclineCodeCache cache = new AuthorizationDeclineCodeCache();
+        final UUID tenantId = UUID.randomUUID();
+        final UUID accountId = UUID.randomUUID();
+        final UUID paymentMethodId = UUID.randomUUID();
+
+        final AtomicInteger nbLookups = new AtomicInteger();
+        final Callable<AuthorizationDeclineCode> failingLoader = new Callable<AuthorizationDeclineCode>() {
+            @Override
+            public AuthorizationDeclineCode call() {
+                nbLookups.incrementAndGet();
+                throw new IllegalStateException("Payment subsystem unavailable");
+            }
+        };
+        Assert.assertNull(cache.get(accountId, paymentMethodId, tenantId, failingLoader));
+        Assert.assertNull(cache.get(accountId, paymentMethodId, tenantId, failingLoader));
+        Assert.assertEquals(nbLookups.get(), 2);
+
+        final Callable<AuthorizationDeclineCode> successfulPaymentLoader = new Callable<AuthorizationDeclineCode>() {
+            @Override
+            public AuthorizationDeclineCode call() {
+                nbLookups.incrementAndGet();
+                return null;
+            }
+        };
+        Assert.assertNull(cache.get(accountId, paymentMethodId, tenantId, successfulPaymentLoader));
+        Assert.assertNull(cache.get(accountId, paymentMethodId, tenantId, successfulPaymentLoader));
+        Assert.assertEquals(nbLookups.get(), 3);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.Map;
+
+import org.killbill.billing.plugin.payment.retries.ConfigurationResponseCache.ConfigurationResponse;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.api.PaymentRetriesApi;
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+
+public class TestConfigurationResponseCache {
+
+    @Test(groups = "fast")
+    public void testResponsesAreCachedPerFilter() throws Exception {
+        final ObjectMapper jsonMapper = new ObjectMapper();
+        final PaymentRetriesApi paymentRetriesApi = Mockito.mock(PaymentRetriesApi.class);
+        Mockito.when(paymentRetriesApi.getPerPluginDeclineCodes()).thenReturn(new RulesComputer().getPerPluginDeclineCodes());
+        final ConfigurationResponseCache cache = new ConfigurationResponseCache(paymentRetriesApi, jsonMapper);
+
+        final ConfigurationResponse retryable = cache.get(true, null);
+        Assert.assertSame(cache.get(true, null), retryable);
+        Assert.assertTrue(retryable.matches(retryable.getETag()));
+        Assert.assertTrue(retryable.matches("\"foo\", " + retryable.getETag()));
+        Assert.assertFalse(retryable.matches(null));
+
+        final ConfigurationResponse notRetryable = cache.get(false, null);
+        Assert.assertNotEquals(notRetryable.getETag(), retryable.getETag());
+        Assert.assertFalse(notRetryable.matches(retryable.getETag()));
+
+        // Filters are case insensitive
+        Assert.assertSame(cache.get(true, "insufficient_funds"), cache.get(true, "INSUFFICIENT_FUNDS"));
+        Assert.assertTrue(jsonMapper.readTree(cache.get(true, "INSUFFICIENT_FUNDS").getBody()).toString().contains("INSUFFICIENT_FUNDS"));
+        Assert.assertFalse(jsonMapper.readTree(cache.get(true, "INSUFFICIENT_FUNDS").getBody()).toString().contains("GENERAL_DECLINE"));
+
+        // Unknown filters share the same (empty) response
+        Assert.assertSame(cache.get(true, "foo"), cache.get(true, "bar"));
+        Assert.assertEquals(jsonMapper.readTree(cache.get(true, "foo").getBody()).findValues("code").size(), 0);
+
+        // New rule tables
+        Mockito.when(paymentRetriesApi.getPerPluginDeclineCodes()).thenReturn(ImmutableMap.<String, Map<Integer, AuthorizationDeclineCode>>of());
+        Assert.assertEquals(new String(cache.get(true, null).getBody(), "UTF-8"), "{}");
+    }
+}
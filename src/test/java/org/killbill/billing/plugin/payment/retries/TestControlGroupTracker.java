@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.payment.retries.rules.AdyenAuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.rules.BraintreeAuthorizationDeclineCode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+public class TestControlGroupTracker {
+
+    @Test(groups = "fast")
+    public void testCompletedAttempts() throws Exception {
+        final PaymentRetriesStatsRegistry registry = new PaymentRetriesStatsRegistry();
+        final UUID tenantId = UUID.randomUUID();
+        final PaymentRetriesStats stats = registry.get(tenantId);
+        final ControlGroupTracker tracker = new ControlGroupTracker(registry);
+
+        final UUID attemptPaymentId = UUID.randomUUID();
+        tracker.track(attemptPaymentId, tenantId, BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE);
+        Assert.assertEquals(tracker.size(), 1);
+
+        Assert.assertEquals(tracker.remove(attemptPaymentId), BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE);
+        Assert.assertNull(tracker.remove(attemptPaymentId));
+        Assert.assertNull(tracker.remove(UUID.randomUUID()));
+        Assert.assertEquals(tracker.size(), 0);
+
+        Assert.assertEquals(tracker.getNbOfExpiredAttempts(), 0);
+        Assert.assertEquals(tracker.getNbOfEvictedAttempts(), 0);
+        Assert.assertEquals(stats.getNbOfUnknownOutcomes(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testExpiredAttempts() throws Exception {
+        final PaymentRetriesStatsRegistry registry = new PaymentRetriesStatsRegistry();
+        final UUID tenantId = UUID.randomUUID();
+        final PaymentRetriesStats stats = registry.get(tenantId);
+        final FakeTicker ticker = new FakeTicker();
+        final ControlGroupTracker tracker = new ControlGroupTracker(registry, 10, 60, ticker);
+
+        final UUID attemptPaymentId = UUID.randomUUID();
+        tracker.track(attemptPaymentId, tenantId, BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE);
+        ticker.advance(59, TimeUnit.SECONDS);
+        Assert.assertEquals(tracker.size(), 1);
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        Assert.assertEquals(tracker.size(), 0);
+        Assert.assertNull(tracker.remove(attemptPaymentId));
+
+        Assert.assertEquals(tracker.getNbOfExpiredAttempts(), 1);
+        Assert.assertEquals(tracker.getNbOfEvictedAttempts(), 0);
+        Assert.assertEquals(stats.getNbOfUnknownOutcomes(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE), 1);
+        Assert.assertEquals(stats.getNbOfRetries(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testEvictedAttempts() throws Exception {
+        final PaymentRetriesStatsRegistry registry = new PaymentRetriesStatsRegistry();
+        final UUID tenantId = UUID.randomUUID();
+        final PaymentRetriesStats stats = registry.get(tenantId);
+        final ControlGroupTracker tracker = new ControlGroupTracker(registry, 1, 60);
+
+        tracker.track(UUID.randomUUID(), tenantId, AdyenAuthorizationDeclineCode.DO_NOT_HONOR);
+        tracker.track(UUID.randomUUID(), tenantId, BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE);
+        Assert.assertEquals(tracker.size(), 1);
+
+        Assert.assertEquals(tracker.getNbOfEvictedAttempts(), 1);
+        Assert.assertEquals(tracker.getNbOfExpiredAttempts(), 0);
+        Assert.assertEquals(stats.getNbOfUnknownOutcomes(AdyenAuthorizationDeclineCode.DO_NOT_HONOR), 1);
+    }
+
+    private static final class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        private void advance(final long time, final TimeUnit timeUnit) {
+            nanos.addAndGet(timeUnit.toNanos(time));
+        }
+    }
+}
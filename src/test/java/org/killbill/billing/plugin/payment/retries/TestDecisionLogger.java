@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.plugin.payment.retries.DecisionLogger.EventType;
+import org.killbill.billing.plugin.payment.retries.DecisionLogger.SamplingRates;
+import org.killbill.billing.plugin.payment.retries.rules.AdyenAuthorizationDeclineCode;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestDecisionLogger {
+
+    @Test(groups = "fast")
+    public void testDropWhenFull() throws Exception {
+        final DecisionLogger decisionLogger = new DecisionLogger(3, new DecisionLogger.SamplingRates() {
+            @Override
+            public double getSamplingPct(final UUID tenantId) {
+                return 100.0;
+            }
+        });
+
+        // Rounded up to 4 slots
+        for (int i = 0; i < 6; i++) {
+            decisionLogger.logRetry(EventType.PREVENTED_RETRY, UUID.randomUUID(), i, 10, AdyenAuthorizationDeclineCode.DO_NOT_HONOR, true);
+        }
+        Assert.assertEquals(decisionLogger.getNbOfDroppedEvents(), 2);
+
+        Assert.assertEquals(decisionLogger.drain(), 4);
+        Assert.assertEquals(decisionLogger.drain(), 0);
+
+        // Slots are reused
+        final PaymentTransaction failedAuthorization = Mockito.mock(PaymentTransaction.class);
+        Mockito.when(failedAuthorization.getId()).thenReturn(UUID.randomUUID());
+        decisionLogger.logDeclineCode(failedAuthorization, AdyenAuthorizationDeclineCode.LOST_CARD);
+        decisionLogger.logRetry(EventType.SUCCESSFUL_RETRY, UUID.randomUUID(), 0, 0, AdyenAuthorizationDeclineCode.DO_NOT_HONOR, true);
+        Assert.assertEquals(decisionLogger.drain(), 2);
+        Assert.assertEquals(decisionLogger.getNbOfDroppedEvents(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testSynchronousLogging() throws Exception {
+        final DecisionLogger decisionLogger = DecisionLogger.synchronous();
+        Assert.assertTrue(decisionLogger.isSampled(UUID.randomUUID()));
+
+        // Written right away, without being started, and never dropped
+        for (int i = 0; i < 10; i++) {
+            decisionLogger.logRetry(EventType.PREVENTED_RETRY, UUID.randomUUID(), i, 10, AdyenAuthorizationDeclineCode.DO_NOT_HONOR, true);
+        }
+        Assert.assertEquals(decisionLogger.getNbOfWrittenEvents(), 10);
+        Assert.assertEquals(decisionLogger.getNbOfDroppedEvents(), 0);
+        Assert.assertEquals(decisionLogger.drain(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSampling() throws Exception {
+        final UUID sampledTenantId = UUID.randomUUID();
+        final UUID ignoredTenantId = UUID.randomUUID();
+        final DecisionLogger decisionLogger = new DecisionLogger(16, new SamplingRates() {
+            @Override
+            public double getSamplingPct(final UUID tenantId) {
+                return sampledTenantId.equals(tenantId) ? 100.0 : 0.0;
+            }
+        });
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(decisionLogger.isSampled(sampledTenantId));
+            Assert.assertFalse(decisionLogger.isSampled(ignoredTenantId));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBackgroundDraining() throws Exception {
+        final DecisionLogger decisionLogger = new DecisionLogger();
+        decisionLogger.start();
+
+        final Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        decisionLogger.logRetry(EventType.FAILED_RETRY, UUID.randomUUID(), j, 1000, AdyenAuthorizationDeclineCode.DO_NOT_HONOR, true);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+
+        decisionLogger.stop();
+        // Everything was written, or dropped
+        Assert.assertEquals(decisionLogger.getNbOfWrittenEvents() + decisionLogger.getNbOfDroppedEvents(), 4000);
+        Assert.assertEquals(decisionLogger.drain(), 0);
+    }
+}
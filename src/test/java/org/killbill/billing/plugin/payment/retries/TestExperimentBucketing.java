@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestExperimentBucketing {
+
+    @Test(groups = "fast")
+    public void testStableBuckets() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final UUID accountId = UUID.randomUUID();
+
+        final int bucket = ExperimentBucketing.getBucket(tenantId, accountId, 12L);
+        Assert.assertTrue(bucket >= 0 && bucket < ExperimentBucketing.NB_BUCKETS);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(ExperimentBucketing.getBucket(tenantId, accountId, 12L), bucket);
+        }
+        Assert.assertEquals(ExperimentBucketing.getBucket(null, accountId, 12L), ExperimentBucketing.getBucket(null, accountId, 12L));
+
+        Assert.assertTrue(ExperimentBucketing.isInExperiment(tenantId, accountId, 12L, bucket + 1));
+        Assert.assertFalse(ExperimentBucketing.isInExperiment(tenantId, accountId, 12L, bucket));
+    }
+
+    @Test(groups = "fast")
+    public void testDistribution() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final int nbIds = 100000;
+        final int[] bucketCounts = new int[ExperimentBucketing.NB_BUCKETS];
+        int nbInBothExperiments = 0;
+        for (int i = 0; i < nbIds; i++) {
+            // Sequential ids, the worst case for a weak hash
+            final UUID id = new UUID(0L, i);
+            final int bucket = ExperimentBucketing.getBucket(tenantId, id, 1L);
+            Assert.assertTrue(bucket >= 0 && bucket < ExperimentBucketing.NB_BUCKETS);
+            bucketCounts[bucket]++;
+
+            if (ExperimentBucketing.isInExperiment(tenantId, id, 1L, 10) && ExperimentBucketing.isInExperiment(tenantId, id, 2L, 10)) {
+                nbInBothExperiments++;
+            }
+        }
+
+        for (final int bucketCount : bucketCounts) {
+            Assert.assertTrue(Math.abs(bucketCount - nbIds / ExperimentBucketing.NB_BUCKETS) < 150, String.valueOf(bucketCount));
+        }
+        // Experiments with different salts are independent: ~10% of 10% of the ids are in both
+        Assert.assertTrue(Math.abs(nbInBothExperiments - nbIds / 100) < 200, String.valueOf(nbInBothExperiments));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+public class TestLookupCircuitBreaker {
+
+    @Test(groups = "fast")
+    public void testOpenHalfOpenClose() throws Exception {
+        final FakeTicker ticker = new FakeTicker();
+        final LookupCircuitBreaker circuitBreaker = new LookupCircuitBreaker(ticker);
+        final UUID tenantId = UUID.randomUUID();
+        final UUID otherTenantId = UUID.randomUUID();
+
+        circuitBreaker.recordFailure(tenantId, 3, 30);
+        circuitBreaker.recordFailure(tenantId, 3, 30);
+        Assert.assertTrue(circuitBreaker.allowLookup(tenantId));
+        circuitBreaker.recordFailure(tenantId, 3, 30);
+        Assert.assertTrue(circuitBreaker.isOpen(tenantId));
+        Assert.assertFalse(circuitBreaker.allowLookup(tenantId));
+        // Other tenants aren't impacted
+        Assert.assertTrue(circuitBreaker.allowLookup(otherTenantId));
+
+        // Single probe once the open period is over
+        ticker.advance(30, TimeUnit.SECONDS);
+        Assert.assertTrue(circuitBreaker.allowLookup(tenantId));
+        Assert.assertFalse(circuitBreaker.allowLookup(tenantId));
+
+        // Failed probe: open again
+        circuitBreaker.recordFailure(tenantId, 3, 30);
+        Assert.assertFalse(circuitBreaker.allowLookup(tenantId));
+
+        ticker.advance(30, TimeUnit.SECONDS);
+        Assert.assertTrue(circuitBreaker.allowLookup(tenantId));
+        circuitBreaker.recordSuccess(tenantId);
+        Assert.assertFalse(circuitBreaker.isOpen(tenantId));
+        Assert.assertTrue(circuitBreaker.allowLookup(tenantId));
+        Assert.assertTrue(circuitBreaker.allowLookup(tenantId));
+
+        // Disabled
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.recordFailure(otherTenantId, 0, 30);
+        }
+        Assert.assertTrue(circuitBreaker.allowLookup(otherTenantId));
+    }
+
+    private static final class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        private void advance(final long time, final TimeUnit timeUnit) {
+            nanos.addAndGet(timeUnit.toNanos(time));
+        }
+    }
+}
@@ -60,4 +60,20 @@ public class TestOSGIKillbillAPIWrapper {
         Assert.assertEquals(osgiKillbillAPIWrapper.getLastAuthorizationIfFailed(ImmutableList.<Payment>of(successfulPayment, paymentOtherPaymentMethod, failedPayment), paymentMethodId), expectedPaymentTransaction);
         Assert.assertEquals(osgiKillbillAPIWrapper.getLastAuthorizationIfFailed(ImmutableList.<Payment>of(paymentOtherPaymentMethod, successfulPayment, failedPayment), paymentMethodId), expectedPaymentTransaction);
     }
+
+    @Test(groups = "fast")
+    public void testGetLastAuthorizationIfFailedOnlyScansMostRecentPayments() throws Exception {
+        final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper = new OSGIKillbillAPIWrapper(null, 2);
+
+        final UUID accountId = UUID.randomUUID();
+        final UUID paymentMethodId = UUID.randomUUID();
+
+        final Payment failedPayment = TestUtils.buildPayment(accountId, paymentMethodId, Currency.USD);
+        final PaymentTransaction expectedPaymentTransaction = TestUtils.buildPaymentTransaction(failedPayment, TransactionType.AUTHORIZE, TransactionStatus.PAYMENT_FAILURE, BigDecimal.TEN, Currency.USD);
+        final Payment paymentOtherPaymentMethod1 = TestUtils.buildPayment(accountId, UUID.randomUUID(), Currency.USD);
+        final Payment paymentOtherPaymentMethod2 = TestUtils.buildPayment(accountId, UUID.randomUUID(), Currency.USD);
+
+        Assert.assertEquals(osgiKillbillAPIWrapper.getLastAuthorizationIfFailed(ImmutableList.<Payment>of(failedPayment, paymentOtherPaymentMethod1), paymentMethodId), expectedPaymentTransaction);
+        Assert.assertNull(osgiKillbillAPIWrapper.getLastAuthorizationIfFailed(ImmutableList.<Payment>of(failedPayment, paymentOtherPaymentMethod1, paymentOtherPaymentMethod2), paymentMethodId));
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Groupon, Inc
+ * Copyright 2016 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.plugin.TestUtils;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPaymentMethodPluginNameCache {
+
+    @Test(groups = "fast")
+    public void testCachingPerTenant() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final UUID otherTenantId = UUID.randomUUID();
+        final PaymentMethod paymentMethod = TestUtils.buildPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), "killbill-adyen");
+
+        final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper = Mockito.mock(OSGIKillbillAPIWrapper.class);
+        Mockito.when(osgiKillbillAPIWrapper.getPaymentMethod(paymentMethod.getId(), tenantId)).thenReturn(paymentMethod);
+        final PaymentMethodPluginNameCache cache = new PaymentMethodPluginNameCache(osgiKillbillAPIWrapper);
+
+        Assert.assertEquals(cache.getPluginName(paymentMethod.getId(), tenantId), "killbill-adyen");
+        Assert.assertEquals(cache.getPluginName(paymentMethod.getId(), tenantId), "killbill-adyen");
+        Mockito.verify(osgiKillbillAPIWrapper, Mockito.times(1)).getPaymentMethod(paymentMethod.getId(), tenantId);
+        Assert.assertEquals(cache.size(), 1);
+        Assert.assertEquals(cache.getHitCount(), 1);
+        Assert.assertEquals(cache.getMissCount(), 1);
+
+        // The payment method isn't visible from the other tenant
+        Assert.assertNull(cache.getPluginName(paymentMethod.getId(), otherTenantId));
+        Mockito.verify(osgiKillbillAPIWrapper, Mockito.times(1)).getPaymentMethod(paymentMethod.getId(), otherTenantId);
+    }
+
+    @Test(groups = "fast")
+    public void testMissingPaymentMethodIsNotCached() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final PaymentMethod paymentMethod = TestUtils.buildPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), "killbill-adyen");
+
+        final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper = Mockito.mock(OSGIKillbillAPIWrapper.class);
+        Mockito.when(osgiKillbillAPIWrapper.getPaymentMethod(paymentMethod.getId(), tenantId)).thenReturn(null).thenReturn(paymentMethod);
+        final PaymentMethodPluginNameCache cache = new PaymentMethodPluginNameCache(osgiKillbillAPIWrapper);
+
+        Assert.assertNull(cache.getPluginName(paymentMethod.getId(), tenantId));
+        Assert.assertEquals(cache.size(), 0);
+
+        Assert.assertEquals(cache.getPluginName(paymentMethod.getId(), tenantId), "killbill-adyen");
+        Mockito.verify(osgiKillbillAPIWrapper, Mockito.times(2)).getPaymentMethod(paymentMethod.getId(), tenantId);
+    }
+
+    @Test(groups = "fast")
+    public void testExpiration() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final PaymentMethod paymentMethod = TestUtils.buildPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), "killbill-adyen");
+
+        final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper = Mockito.mock(OSGIKillbillAPIWrapper.class);
+        Mockito.when(osgiKillbillAPIWrapper.getPaymentMethod(paymentMethod.getId(), tenantId)).thenReturn(paymentMethod);
+        // Entries expire as soon as they are written
+        final PaymentMethodPluginNameCache cache = new PaymentMethodPluginNameCache(osgiKillbillAPIWrapper, PaymentMethodPluginNameCache.DEFAULT_MAX_PAYMENT_METHODS, 0);
+
+        Assert.assertEquals(cache.getPluginName(paymentMethod.getId(), tenantId), "killbill-adyen");
+        Assert.assertEquals(cache.getPluginName(paymentMethod.getId(), tenantId), "killbill-adyen");
+        Mockito.verify(osgiKillbillAPIWrapper, Mockito.times(2)).getPaymentMethod(paymentMethod.getId(), tenantId);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentLookupsAreDeduplicated() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final PaymentMethod paymentMethod = TestUtils.buildPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), "killbill-adyen");
+
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch lookupReleased = new CountDownLatch(1);
+        final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper = Mockito.mock(OSGIKillbillAPIWrapper.class);
+        Mockito.when(osgiKillbillAPIWrapper.getPaymentMethod(paymentMethod.getId(), tenantId)).thenAnswer(new Answer<PaymentMethod>() {
+            @Override
+            public PaymentMethod answer(final InvocationOnMock invocation) throws Throwable {
+                lookupStarted.countDown();
+                Assert.assertTrue(lookupReleased.await(10, TimeUnit.SECONDS));
+                return paymentMethod;
+            }
+        });
+        final PaymentMethodPluginNameCache cache = new PaymentMethodPluginNameCache(osgiKillbillAPIWrapper);
+
+        final AtomicReference<String> firstPluginName = new AtomicReference<String>();
+        final AtomicReference<String> secondPluginName = new AtomicReference<String>();
+        final Thread firstLookup = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                firstPluginName.set(cache.getPluginName(paymentMethod.getId(), tenantId));
+            }
+        });
+        final Thread secondLookup = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                secondPluginName.set(cache.getPluginName(paymentMethod.getId(), tenantId));
+            }
+        });
+
+        firstLookup.start();
+        Assert.assertTrue(lookupStarted.await(10, TimeUnit.SECONDS));
+        secondLookup.start();
+        // Wait for the second lookup to block on the one in flight
+        while (secondLookup.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        lookupReleased.countDown();
+        firstLookup.join(10000);
+        secondLookup.join(10000);
+
+        Assert.assertEquals(firstPluginName.get(), "killbill-adyen");
+        Assert.assertEquals(secondPluginName.get(), "killbill-adyen");
+        Mockito.verify(osgiKillbillAPIWrapper, Mockito.times(1)).getPaymentMethod(paymentMethod.getId(), tenantId);
+    }
+}
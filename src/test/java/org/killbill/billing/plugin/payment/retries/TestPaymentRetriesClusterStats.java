@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.CodeCountsVisitor;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.CountVisitor;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Outcome;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsDao;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsRecord;
+import org.killbill.billing.plugin.payment.retries.rules.BraintreeAuthorizationDeclineCode;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestPaymentRetriesClusterStats {
+
+    @Test(groups = "fast")
+    public void testMergeWithOtherNodes() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final BraintreeAuthorizationDeclineCode declineCode = BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE;
+
+        final PaymentRetriesStatsDao dao = Mockito.mock(PaymentRetriesStatsDao.class);
+        Mockito.when(dao.getCountsFromOtherNodes("node-1")).thenReturn(ImmutableList.<PaymentRetriesStatsRecord>of(new PaymentRetriesStatsRecord(tenantId, declineCode.getProcessor(), declineCode.getCode(), "ATTEMPTED", 10),
+                                                                                                                 new PaymentRetriesStatsRecord(tenantId, declineCode.getProcessor(), declineCode.getCode(), "SUCCESS", 3),
+                                                                                                                 new PaymentRetriesStatsRecord(UUID.randomUUID(), declineCode.getProcessor(), declineCode.getCode(), "SUCCESS", 100)))
+                                                     .thenThrow(new SQLException("Database is down"));
+
+        final PaymentRetriesStatsRegistry registry = new PaymentRetriesStatsRegistry();
+        final PaymentRetriesClusterStats clusterStats = new PaymentRetriesClusterStats("node-1", registry, dao);
+        registry.get(tenantId).incrementNbOfRetries(declineCode);
+        registry.get(tenantId).markRetriedPaymentAsSuccessful(declineCode);
+        registry.get(tenantId).markRetriedPaymentAsFailed(declineCode);
+
+        // Local counts only
+        Assert.assertEquals(clusterStats.getNbOfRetries(tenantId), 1);
+        Assert.assertEquals(clusterStats.getNbOfRetries(tenantId, declineCode), 2);
+
+        clusterStats.refresh();
+        Assert.assertEquals(clusterStats.getNbOfRetries(tenantId), 11);
+        Assert.assertEquals(clusterStats.getNbOfAbortedRetries(tenantId), 0);
+        Assert.assertEquals(clusterStats.get(tenantId, declineCode, Outcome.SUCCESS), 4);
+        Assert.assertEquals(clusterStats.getNbOfRetries(tenantId, declineCode), 5);
+
+        final Map<Outcome, Long> counts = new HashMap<Outcome, Long>();
+        clusterStats.visitCounts(tenantId, new CountVisitor() {
+            @Override
+            public void visit(final String processor, final int code, final Outcome outcome, final long count) {
+                Assert.assertEquals(processor, declineCode.getProcessor());
+                Assert.assertEquals(code, declineCode.getCode());
+                counts.put(outcome, count);
+            }
+        });
+        Assert.assertEquals(counts.size(), 3);
+        Assert.assertEquals((long) counts.get(Outcome.ATTEMPTED), 11L);
+        Assert.assertEquals((long) counts.get(Outcome.SUCCESS), 4L);
+        Assert.assertEquals((long) counts.get(Outcome.FAILURE), 1L);
+
+        // The previous view is kept on failure
+        clusterStats.refresh();
+        Assert.assertEquals(clusterStats.getNbOfRetries(tenantId), 11);
+    }
+
+    @Test(groups = "fast")
+    public void testVisitCodeCounts() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final BraintreeAuthorizationDeclineCode declineCode = BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE;
+
+        final PaymentRetriesStatsDao dao = Mockito.mock(PaymentRetriesStatsDao.class);
+        Mockito.when(dao.getCountsFromOtherNodes("node-1")).thenReturn(ImmutableList.<PaymentRetriesStatsRecord>of(new PaymentRetriesStatsRecord(tenantId, declineCode.getProcessor(), declineCode.getCode(), "FAILURE", 2),
+                                                                                                                 new PaymentRetriesStatsRecord(tenantId, "OtherProcessor", 42, "SUCCESS", 5)));
+
+        final PaymentRetriesStatsRegistry registry = new PaymentRetriesStatsRegistry();
+        final PaymentRetriesClusterStats clusterStats = new PaymentRetriesClusterStats("node-1", registry, dao);
+        registry.get(tenantId).markRetriedPaymentAsSuccessful(declineCode);
+        clusterStats.refresh();
+
+        final Map<String, long[]> countsPerCode = new HashMap<String, long[]>();
+        clusterStats.visitCodeCounts(tenantId, new CodeCountsVisitor() {
+            @Override
+            public void visit(final String processor, final int code, final long[] counts) {
+                countsPerCode.put(processor + "/" + code, counts.clone());
+            }
+        });
+
+        // Codes without any count are skipped
+        Assert.assertEquals(countsPerCode.size(), 2);
+        final long[] declineCodeCounts = countsPerCode.get(declineCode.getProcessor() + "/" + declineCode.getCode());
+        Assert.assertEquals(declineCodeCounts[Outcome.SUCCESS.ordinal()], 1);
+        Assert.assertEquals(declineCodeCounts[Outcome.FAILURE.ordinal()], 2);
+        final long[] otherNodesOnlyCounts = countsPerCode.get("OtherProcessor/42");
+        Assert.assertEquals(otherNodesOnlyCounts[Outcome.SUCCESS.ordinal()], 5);
+        Assert.assertEquals(otherNodesOnlyCounts[Outcome.FAILURE.ordinal()], 0);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.control.plugin.api.PaymentControlContext;
+import org.killbill.billing.control.plugin.api.PriorPaymentControlResult;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.api.PaymentRetriesApi;
+import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesConfiguration;
+import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesConfigurationHandler;
+import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesPolicy;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsDao;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Decision;
+import org.killbill.billing.plugin.payment.retries.rules.AdyenAuthorizationDeclineCode;
+import org.killbill.clock.DefaultClock;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestPaymentRetriesPaymentControlPluginApi {
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final UUID accountId = UUID.randomUUID();
+    private final UUID paymentMethodId = UUID.randomUUID();
+
+    private PaymentRetriesConfigurationHandler paymentRetriesConfigurationHandler;
+    private PaymentRetriesApi paymentRetriesApi;
+    private PaymentRetriesMetrics paymentRetriesMetrics;
+    private LookupCircuitBreaker lookupCircuitBreaker;
+    private PaymentRetriesStatsRegistry paymentRetriesStatsRegistry;
+    private ControlGroupTracker controlGroupTracker;
+    private PaymentRetriesPaymentControlPluginApi paymentControlPluginApi;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        paymentRetriesConfigurationHandler = Mockito.mock(PaymentRetriesConfigurationHandler.class);
+        paymentRetriesApi = Mockito.mock(PaymentRetriesApi.class);
+        paymentRetriesMetrics = new PaymentRetriesMetrics();
+        lookupCircuitBreaker = new LookupCircuitBreaker();
+
+        paymentRetriesStatsRegistry = new PaymentRetriesStatsRegistry();
+        controlGroupTracker = new ControlGroupTracker(paymentRetriesStatsRegistry);
+        paymentControlPluginApi = new PaymentRetriesPaymentControlPluginApi(paymentRetriesConfigurationHandler,
+                                                                            paymentRetriesApi,
+                                                                            paymentRetriesStatsRegistry,
+                                                                            new PaymentRetriesClusterStats("node-1", paymentRetriesStatsRegistry, Mockito.mock(PaymentRetriesStatsDao.class)),
+                                                                            controlGroupTracker,
+                                                                            paymentRetriesMetrics,
+                                                                            lookupCircuitBreaker,
+                                                                            DecisionLogger.synchronous(),
+                                                                            Mockito.mock(OSGIKillbillAPI.class),
+                                                                            Mockito.mock(OSGIConfigPropertiesService.class),
+                                                                            Mockito.mock(OSGIKillbillLogService.class),
+                                                                            new DefaultClock());
+    }
+
+    @Test(groups = "fast")
+    public void testFailOpenOnSlowOrFailedLookups() throws Exception {
+        // 50ms lookup timeout, circuit opened after 2 consecutive failures
+        Mockito.when(paymentRetriesConfigurationHandler.getConfigurable(tenantId)).thenReturn(new PaymentRetriesConfiguration(100, 50L, 2, 30L));
+
+        final CompletableFuture<AuthorizationDeclineCode> neverCompletingLookup = new CompletableFuture<AuthorizationDeclineCode>();
+        final CompletableFuture<AuthorizationDeclineCode> failedLookup = new CompletableFuture<AuthorizationDeclineCode>();
+        failedLookup.completeExceptionally(new IllegalStateException("Payment subsystem unavailable"));
+        Mockito.when(paymentRetriesApi.getAuthorizationDeclineCodeAsync(Matchers.eq(accountId), Matchers.eq(paymentMethodId), Matchers.eq(tenantId), Matchers.anyLong(), Matchers.<TimeUnit>any()))
+               .thenReturn(neverCompletingLookup)
+               .thenReturn(failedLookup);
+
+        // Timeout: the payment goes through, the lookup is cancelled
+        Assert.assertFalse(priorCall().isAborted());
+        Assert.assertTrue(neverCompletingLookup.isCancelled());
+        Assert.assertEquals(getCount(Decision.LOOKUP_TIMEOUT), 1);
+        Assert.assertFalse(lookupCircuitBreaker.isOpen(tenantId));
+
+        // Failure: the payment goes through, and the circuit opens (second consecutive failure)
+        Assert.assertFalse(priorCall().isAborted());
+        Assert.assertEquals(getCount(Decision.LOOKUP_FAILURE), 1);
+        Assert.assertTrue(lookupCircuitBreaker.isOpen(tenantId));
+
+        // Circuit open: no lookup at all, the payment goes through
+        Assert.assertFalse(priorCall().isAborted());
+        Assert.assertEquals(getCount(Decision.CIRCUIT_OPEN), 1);
+        Mockito.verify(paymentRetriesApi, Mockito.times(2)).getAuthorizationDeclineCodeAsync(Matchers.<UUID>any(), Matchers.<UUID>any(), Matchers.<UUID>any(), Matchers.anyLong(), Matchers.<TimeUnit>any());
+        Mockito.verify(paymentRetriesApi, Mockito.never()).getAuthorizationDeclineCode(Matchers.<UUID>any(), Matchers.<UUID>any(), Matchers.<UUID>any());
+    }
+
+    @Test(groups = "fast")
+    public void testAdaptiveAbort() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("adaptiveAbortThresholdPct", "5");
+        final PaymentRetriesPolicy policy = PaymentRetriesPolicy.compile(properties);
+        // Blocking lookups
+        final PaymentRetriesConfiguration experimentConfiguration = new PaymentRetriesConfiguration(100, 0L, 2, 30L, policy);
+        final PaymentRetriesConfiguration controlConfiguration = new PaymentRetriesConfiguration(0, 0L, 2, 30L, policy);
+
+        // Not aborted by the rules, but retries of that code never succeed
+        final AuthorizationDeclineCode hopelessCode = AdyenAuthorizationDeclineCode.STOLEN_CARD;
+        Assert.assertFalse(policy.getProcessorPolicy(hopelessCode.getProcessor()).isRetryable(hopelessCode));
+        for (int i = 0; i < 100; i++) {
+            paymentRetriesStatsRegistry.get(tenantId).markRetriedPaymentAsFailed(hopelessCode);
+        }
+        Mockito.when(paymentRetriesApi.getAuthorizationDeclineCode(accountId, paymentMethodId, tenantId)).thenReturn(hopelessCode);
+
+        // Experiment group: aborted
+        Mockito.when(paymentRetriesConfigurationHandler.getConfigurable(tenantId)).thenReturn(experimentConfiguration);
+        Assert.assertTrue(priorCall().isAborted());
+        Assert.assertEquals(getCount(hopelessCode.getProcessor(), Decision.ADAPTIVE_ABORTED), 1);
+        Assert.assertEquals(paymentRetriesStatsRegistry.get(tenantId).getNbOfAbortedRetries(hopelessCode), 1);
+
+        // Control group: still retried, so that the success rate keeps being measured
+        Mockito.when(paymentRetriesConfigurationHandler.getConfigurable(tenantId)).thenReturn(controlConfiguration);
+        Assert.assertFalse(priorCall().isAborted());
+        Assert.assertEquals(getCount(hopelessCode.getProcessor(), Decision.CONTROL), 1);
+        Assert.assertEquals(getCount(hopelessCode.getProcessor(), Decision.ADAPTIVE_ABORTED), 1);
+        Assert.assertEquals(controlGroupTracker.size(), 1);
+
+        // Experiment group, code without any data: allowed
+        final AuthorizationDeclineCode unknownCode = AdyenAuthorizationDeclineCode.LOST_CARD;
+        Mockito.when(paymentRetriesApi.getAuthorizationDeclineCode(accountId, paymentMethodId, tenantId)).thenReturn(unknownCode);
+        Mockito.when(paymentRetriesConfigurationHandler.getConfigurable(tenantId)).thenReturn(experimentConfiguration);
+        Assert.assertFalse(policy.getProcessorPolicy(unknownCode.getProcessor()).isRetryable(unknownCode));
+        Assert.assertFalse(priorCall().isAborted());
+        Assert.assertEquals(getCount(unknownCode.getProcessor(), Decision.ALLOWED), 1);
+    }
+
+    private PriorPaymentControlResult priorCall() throws Exception {
+        final PaymentControlContext context = Mockito.mock(PaymentControlContext.class);
+        Mockito.when(context.getTenantId()).thenReturn(tenantId);
+        Mockito.when(context.getAccountId()).thenReturn(accountId);
+        Mockito.when(context.getPaymentMethodId()).thenReturn(paymentMethodId);
+        Mockito.when(context.getAttemptPaymentId()).thenReturn(UUID.randomUUID());
+        return paymentControlPluginApi.priorCall(context, ImmutableList.<PluginProperty>of());
+    }
+
+    // Decisions taken before the decline code (hence the processor) is known
+    private long getCount(final Decision decision) {
+        return getCount(PaymentRetriesMetrics.NO_PROCESSOR, decision);
+    }
+
+    private long getCount(final String processor, final Decision decision) {
+        return paymentRetriesMetrics.getMetrics(tenantId).get(processor).getCount(decision);
+    }
+}
@@ -17,11 +17,29 @@
 
 package org.killbill.billing.plugin.payment.retries;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.CodeCountsVisitor;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Outcome;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Window;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
 import org.killbill.billing.plugin.payment.retries.rules.BraintreeAuthorizationDeclineCode;
 import org.killbill.billing.plugin.payment.retries.rules.ChasePaymentechAuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
+import org.killbill.clock.Clock;
+import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+
 public class TestPaymentRetriesStats {
 
     @Test(groups = "fast")
@@ -37,4 +55,184 @@ public class TestPaymentRetriesStats {
 
         Assert.assertEquals(stats.getNbOfRetries(ChasePaymentechAuthorizationDeclineCode.INVALID_INSTITUTION), 0);
     }
+
+    @Test(groups = "fast")
+    public void testAbortedRetries() throws Exception {
+        final PaymentRetriesStats stats = new PaymentRetriesStats();
+
+        Assert.assertEquals(stats.incrementNbOfRetries(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE), 1);
+        Assert.assertEquals(stats.markRetryAsAborted(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE), 1);
+        Assert.assertEquals(stats.getNbOfAbortedRetries(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE), 1);
+        Assert.assertEquals(stats.getNbOfRetries(), 1);
+        Assert.assertEquals(stats.getNbOfAbortedRetries(), 1);
+
+        // Aborted retries don't have an outcome
+        Assert.assertEquals(stats.getNbOfRetries(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownCodes() throws Exception {
+        final PaymentRetriesStats stats = new PaymentRetriesStats();
+
+        final AuthorizationDeclineCode unknownCode = Mockito.mock(AuthorizationDeclineCode.class);
+        Mockito.when(unknownCode.getProcessor()).thenReturn(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE.getProcessor());
+        Mockito.when(unknownCode.getCode()).thenReturn(0);
+        Assert.assertEquals(stats.markRetriedPaymentAsFailed(unknownCode), 1);
+        Assert.assertEquals(stats.markRetriedPaymentAsFailed(unknownCode), 2);
+        Assert.assertEquals(stats.getNbOfRetries(unknownCode), 2);
+
+        final AuthorizationDeclineCode unknownProcessor = Mockito.mock(AuthorizationDeclineCode.class);
+        Mockito.when(unknownProcessor.getCode()).thenReturn(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE.getCode());
+        Assert.assertEquals(stats.markRetriedPaymentAsSuccessful(unknownProcessor), 1);
+        Assert.assertEquals(stats.getNbOfRetries(unknownProcessor), 1);
+
+        Assert.assertEquals(stats.getNbOfRetries(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentUpdates() throws Exception {
+        final PaymentRetriesStats stats = new PaymentRetriesStats();
+
+        final int nbThreads = 8;
+        final int nbUpdatesPerThread = 10000;
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            final Future<?>[] futures = new Future<?>[nbThreads];
+            for (int i = 0; i < nbThreads; i++) {
+                futures[i] = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < nbUpdatesPerThread; j++) {
+                            stats.incrementNbOfRetries(ChasePaymentechAuthorizationDeclineCode.INVALID_INSTITUTION);
+                            stats.markRetriedPaymentAsSuccessful(ChasePaymentechAuthorizationDeclineCode.INVALID_INSTITUTION);
+                            stats.markRetriedPaymentAsFailed(ChasePaymentechAuthorizationDeclineCode.INVALID_INSTITUTION);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(stats.getNbOfRetries(), nbThreads * nbUpdatesPerThread);
+        Assert.assertEquals(stats.getNbOfRetries(ChasePaymentechAuthorizationDeclineCode.INVALID_INSTITUTION), 2 * nbThreads * nbUpdatesPerThread);
+    }
+
+    @Test(groups = "fast")
+    public void testUnpersistedCounts() throws Exception {
+        final PaymentRetriesStats stats = new PaymentRetriesStats();
+        stats.rehydrate(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE.getProcessor(),
+                        BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE.getCode(),
+                        PaymentRetriesStats.Outcome.ATTEMPTED,
+                        10);
+        Assert.assertEquals(stats.getNbOfRetries(), 10);
+        Assert.assertTrue(stats.getUnpersistedCounts().isEmpty());
+
+        stats.incrementNbOfRetries(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE);
+        stats.markRetriedPaymentAsFailed(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE);
+        stats.markRetriedPaymentAsFailed(BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE);
+        Assert.assertEquals(stats.getNbOfRetries(), 11);
+
+        final List<PaymentRetriesStats.CountDelta> deltas = stats.getUnpersistedCounts();
+        Assert.assertEquals(deltas.size(), 2);
+        Assert.assertEquals(deltas.get(0).getOutcome(), PaymentRetriesStats.Outcome.ATTEMPTED);
+        Assert.assertEquals(deltas.get(0).getDelta(), 1);
+        Assert.assertEquals(deltas.get(1).getOutcome(), PaymentRetriesStats.Outcome.FAILURE);
+        Assert.assertEquals(deltas.get(1).getDelta(), 2);
+
+        // Not persisted yet
+        Assert.assertEquals(stats.getUnpersistedCounts().size(), 2);
+
+        for (final PaymentRetriesStats.CountDelta delta : deltas) {
+            delta.markAsPersisted();
+        }
+        Assert.assertTrue(stats.getUnpersistedCounts().isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testSuccessRateUpperBound() throws Exception {
+        final PaymentRetriesStats stats = new PaymentRetriesStats();
+        final AuthorizationDeclineCode code = BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE;
+        Assert.assertEquals(stats.getSuccessRateUpperBound(code), 1.0);
+
+        for (int i = 0; i < 100; i++) {
+            stats.markRetriedPaymentAsFailed(code);
+        }
+        final double upperBoundAfterFailures = stats.getSuccessRateUpperBound(code);
+        Assert.assertTrue(upperBoundAfterFailures < 0.05, String.valueOf(upperBoundAfterFailures));
+
+        stats.markRetriedPaymentAsSuccessful(code);
+        Assert.assertTrue(stats.getSuccessRateUpperBound(code) > upperBoundAfterFailures);
+        // Other outcomes don't matter
+        stats.markRetryOutcomeAsUnknown(code);
+        Assert.assertEquals(stats.getSuccessRateUpperBound(code), PaymentRetriesStats.computeSuccessRateUpperBound(1, 100));
+
+        // Rehydrated counts are taken into account
+        final PaymentRetriesStats rehydratedStats = new PaymentRetriesStats();
+        rehydratedStats.rehydrate(code.getProcessor(), code.getCode(), Outcome.SUCCESS, 1);
+        rehydratedStats.rehydrate(code.getProcessor(), code.getCode(), Outcome.FAILURE, 100);
+        Assert.assertEquals(rehydratedStats.getSuccessRateUpperBound(code), stats.getSuccessRateUpperBound(code));
+
+        // The bound is wide with few samples
+        Assert.assertTrue(PaymentRetriesStats.computeSuccessRateUpperBound(0, 3) > 0.4);
+        Assert.assertTrue(PaymentRetriesStats.computeSuccessRateUpperBound(900, 100) < 0.93);
+    }
+
+    @Test(groups = "fast")
+    public void testWindowedCounts() throws Exception {
+        final PaymentRetriesStats stats = new PaymentRetriesStats();
+        final AuthorizationDeclineCode code = BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE;
+
+        // Persisted counts aren't windowed
+        stats.rehydrate(code.getProcessor(), code.getCode(), Outcome.ATTEMPTED, 10);
+        Assert.assertEquals(stats.getNbOfRetries(Window.LAST_HOUR), 0);
+
+        stats.incrementNbOfRetries(code);
+        stats.markRetryAsAborted(code);
+        stats.markRetriedPaymentAsSuccessful(code);
+        Assert.assertEquals(stats.getNbOfRetries(), 11);
+        for (final Window window : Window.values()) {
+            Assert.assertEquals(stats.getNbOfRetries(window), 1);
+            Assert.assertEquals(stats.getNbOfAbortedRetries(window), 1);
+            Assert.assertEquals(stats.get(code, Outcome.SUCCESS, window), 1);
+            Assert.assertEquals(stats.get(code, Outcome.FAILURE, window), 0);
+        }
+
+        final List<Integer> visitedCodes = new ArrayList<Integer>();
+        stats.visitCodeCounts(Window.LAST_DAY, new CodeCountsVisitor() {
+            @Override
+            public void visit(final String processor, final int visitedCode, final long[] counts) {
+                visitedCodes.add(visitedCode);
+                Assert.assertEquals(counts[Outcome.ATTEMPTED.ordinal()], 1);
+            }
+        });
+        Assert.assertEquals(visitedCodes, ImmutableList.<Integer>of(code.getCode()));
+
+        Assert.assertEquals(Window.fromName("7d"), Window.LAST_WEEK);
+    }
+
+    @Test(groups = "fast")
+    public void testWindowsFollowTheClock() throws Exception {
+        final Clock clock = Mockito.mock(Clock.class);
+        final DateTime start = new DateTime(2017, 6, 1, 12, 0, DateTimeZone.UTC);
+        Mockito.when(clock.getUTCNow()).thenReturn(start);
+        final PaymentRetriesStats stats = new PaymentRetriesStats(new RulesComputer(), clock);
+        final AuthorizationDeclineCode code = BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE;
+
+        stats.incrementNbOfRetries(code);
+        stats.markRetriedPaymentAsFailed(code);
+        Assert.assertEquals(stats.getNbOfRetries(Window.LAST_HOUR), 1);
+
+        Mockito.when(clock.getUTCNow()).thenReturn(start.plusHours(2));
+        Assert.assertEquals(stats.getNbOfRetries(Window.LAST_HOUR), 0);
+        Assert.assertEquals(stats.getNbOfRetries(Window.LAST_DAY), 1);
+        Assert.assertEquals(stats.get(code, Outcome.FAILURE, Window.LAST_HOUR), 0);
+        Assert.assertEquals(stats.get(code, Outcome.FAILURE, Window.LAST_DAY), 1);
+        // Lifetime counts
+        Assert.assertEquals(stats.getNbOfRetries(), 1);
+    }
 }
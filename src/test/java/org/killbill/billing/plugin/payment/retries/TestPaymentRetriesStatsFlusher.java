@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsDao;
+import org.killbill.billing.plugin.payment.retries.dao.PaymentRetriesStatsRecord;
+import org.killbill.billing.plugin.payment.retries.rules.BraintreeAuthorizationDeclineCode;
+import org.killbill.clock.DefaultClock;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+public class TestPaymentRetriesStatsFlusher {
+
+    @Captor
+    private ArgumentCaptor<Iterable<PaymentRetriesStatsRecord>> deltasCaptor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test(groups = "fast")
+    public void testRehydrateAndFlush() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final BraintreeAuthorizationDeclineCode declineCode = BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE;
+
+        final PaymentRetriesStatsDao dao = Mockito.mock(PaymentRetriesStatsDao.class);
+        Mockito.when(dao.getCounts("node-1")).thenReturn(ImmutableList.<PaymentRetriesStatsRecord>of(new PaymentRetriesStatsRecord(tenantId, declineCode.getProcessor(), declineCode.getCode(), "SUCCESS", 5),
+                                                                                            new PaymentRetriesStatsRecord(tenantId, declineCode.getProcessor(), declineCode.getCode(), "NOT_AN_OUTCOME", 7)));
+
+        final PaymentRetriesStatsRegistry registry = new PaymentRetriesStatsRegistry();
+        final PaymentRetriesStatsFlusher flusher = new PaymentRetriesStatsFlusher(registry, new PaymentRetriesClusterStats("node-1", registry, dao), dao, new DefaultClock(), 60);
+        flusher.rehydrate();
+        Assert.assertEquals(registry.get(tenantId).getNbOfRetries(declineCode), 5);
+
+        // Nothing to flush
+        flusher.flush();
+        Mockito.verify(dao, Mockito.never()).addCounts(Matchers.eq("node-1"), Matchers.<Iterable<PaymentRetriesStatsRecord>>any(), Matchers.<DateTime>any());
+
+        registry.get(tenantId).markRetriedPaymentAsFailed(declineCode);
+        flusher.flush();
+
+        Mockito.verify(dao, Mockito.times(1)).addCounts(Matchers.eq("node-1"), deltasCaptor.capture(), Matchers.<DateTime>any());
+        final PaymentRetriesStatsRecord delta = Iterables.getOnlyElement(deltasCaptor.getValue());
+        Assert.assertEquals(delta.getTenantId(), tenantId);
+        Assert.assertEquals(delta.getCode(), declineCode.getCode());
+        Assert.assertEquals(delta.getOutcome(), "FAILURE");
+        Assert.assertEquals(delta.getCount(), 1);
+
+        // Already persisted
+        flusher.flush();
+        Mockito.verify(dao, Mockito.times(1)).addCounts(Matchers.eq("node-1"), Matchers.<Iterable<PaymentRetriesStatsRecord>>any(), Matchers.<DateTime>any());
+    }
+
+    @Test(groups = "fast")
+    public void testFailedFlushIsRetried() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final BraintreeAuthorizationDeclineCode declineCode = BraintreeAuthorizationDeclineCode.INVALID_AUTHORIZATION_CODE;
+
+        final PaymentRetriesStatsDao dao = Mockito.mock(PaymentRetriesStatsDao.class);
+        Mockito.doThrow(new SQLException("Database is down"))
+               .doNothing()
+               .when(dao).addCounts(Matchers.eq("node-1"), Matchers.<Iterable<PaymentRetriesStatsRecord>>any(), Matchers.<DateTime>any());
+
+        final PaymentRetriesStatsRegistry registry = new PaymentRetriesStatsRegistry();
+        final PaymentRetriesStatsFlusher flusher = new PaymentRetriesStatsFlusher(registry, new PaymentRetriesClusterStats("node-1", registry, dao), dao, new DefaultClock(), 60);
+
+        registry.get(tenantId).markRetriedPaymentAsFailed(declineCode);
+        flusher.flush();
+        registry.get(tenantId).markRetriedPaymentAsFailed(declineCode);
+        flusher.flush();
+
+        Mockito.verify(dao, Mockito.times(2)).addCounts(Matchers.eq("node-1"), deltasCaptor.capture(), Matchers.<DateTime>any());
+        final List<Iterable<PaymentRetriesStatsRecord>> allDeltas = deltasCaptor.getAllValues();
+        Assert.assertEquals(Iterables.getOnlyElement(allDeltas.get(0)).getCount(), 1);
+        Assert.assertEquals(Iterables.getOnlyElement(allDeltas.get(1)).getCount(), 2);
+        Assert.assertTrue(registry.get(tenantId).getUnpersistedCounts().isEmpty());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+public class TestRulesFileReloader {
+
+    @Test(groups = "fast")
+    public void testReloadInvalidatesCachedDeclineCodes() throws Exception {
+        final RulesComputer rulesComputer = new RulesComputer();
+        final AuthorizationDeclineCodeCache cache = new AuthorizationDeclineCodeCache();
+        final File rulesFile = File.createTempFile("payment-retries-rules", ".txt");
+        rulesFile.deleteOnExit();
+        Files.write("killbill-adyen|Adyen|62|false|GENERAL_DECLINE|Restricted card", rulesFile, StandardCharsets.UTF_8);
+        final RulesFileReloader reloader = new RulesFileReloader(rulesComputer, cache, rulesFile, RulesFileReloader.DEFAULT_POLL_INTERVAL_SECONDS);
+
+        final UUID tenantId = UUID.randomUUID();
+        final UUID accountId = UUID.randomUUID();
+        final UUID paymentMethodId = UUID.randomUUID();
+        final AtomicInteger nbLookups = new AtomicInteger();
+        final Callable<AuthorizationDeclineCode> loader = new Callable<AuthorizationDeclineCode>() {
+            @Override
+            public AuthorizationDeclineCode call() {
+                nbLookups.incrementAndGet();
+                return rulesComputer.lookupAuthorizationDeclineCode("killbill-adyen", "62", null, ImmutableList.<PluginProperty>of());
+            }
+        };
+
+        // Built-in rules
+        Assert.assertTrue(cache.get(accountId, paymentMethodId, tenantId, loader).isRetryable());
+        Assert.assertTrue(cache.get(accountId, paymentMethodId, tenantId, loader).isRetryable());
+        Assert.assertEquals(nbLookups.get(), 1);
+
+        // The next lookup uses the new rule, not the cached decline code
+        Assert.assertTrue(reloader.reloadIfModified());
+        Assert.assertFalse(cache.get(accountId, paymentMethodId, tenantId, loader).isRetryable());
+        Assert.assertEquals(nbLookups.get(), 2);
+
+        // Invalid rules are ignored: the cache is kept
+        Files.write("killbill-adyen|Adyen|62", rulesFile, StandardCharsets.UTF_8);
+        Assert.assertTrue(rulesFile.setLastModified(rulesFile.lastModified() + 10000L));
+        Assert.assertFalse(reloader.reloadIfModified());
+        Assert.assertFalse(cache.get(accountId, paymentMethodId, tenantId, loader).isRetryable());
+        Assert.assertEquals(nbLookups.get(), 2);
+    }
+}
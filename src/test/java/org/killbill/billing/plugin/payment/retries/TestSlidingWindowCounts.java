@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStats.Window;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSlidingWindowCounts {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    @Test(groups = "fast")
+    public void testWindows() throws Exception {
+        final SlidingWindowCounts counts = new SlidingWindowCounts(2);
+        final long start = 1500000000000L;
+
+        counts.increment(0, start);
+        counts.increment(0, start + 1);
+        counts.increment(1, start + 30 * MINUTE);
+        assertSums(counts, 0, start + 30 * MINUTE, 2, 2, 2);
+        assertSums(counts, 1, start + 30 * MINUTE, 1, 1, 1);
+
+        // The first increments fall out of the last hour, but the last one is still there
+        assertSums(counts, 0, start + 61 * MINUTE, 0, 2, 2);
+        assertSums(counts, 1, start + 61 * MINUTE, 1, 1, 1);
+
+        // Out of the last day
+        assertSums(counts, 0, start + 26 * HOUR, 0, 0, 2);
+
+        // Buckets from the previous rotations of the rings are ignored
+        counts.increment(0, start + 8 * 24 * HOUR);
+        assertSums(counts, 0, start + 8 * 24 * HOUR, 1, 1, 1);
+        assertSums(counts, 1, start + 8 * 24 * HOUR, 0, 0, 0);
+
+        // Idle for a long time
+        assertSums(counts, 0, start + 365 * 24 * HOUR, 0, 0, 0);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentIncrements() throws Exception {
+        final SlidingWindowCounts counts = new SlidingWindowCounts(1);
+        final long start = 1500000000000L;
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        // Cross a minute boundary half-way
+                        counts.increment(0, start + (j < 5000 ? 0 : MINUTE));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertSums(counts, 0, start + MINUTE, 40000, 40000, 40000);
+    }
+
+    private void assertSums(final SlidingWindowCounts counts, final int slot, final long nowMillis, final long lastHour, final long lastDay, final long lastWeek) {
+        Assert.assertEquals(counts.sum(slot, Window.LAST_HOUR, nowMillis), lastHour);
+        Assert.assertEquals(counts.sum(slot, Window.LAST_DAY, nowMillis), lastDay);
+        Assert.assertEquals(counts.sum(slot, Window.LAST_WEEK, nowMillis), lastWeek);
+    }
+}
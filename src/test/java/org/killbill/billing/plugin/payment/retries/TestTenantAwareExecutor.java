@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.plugin.payment.retries.TenantAwareExecutor.ResultHandler;
+import org.killbill.billing.plugin.payment.retries.TenantAwareExecutor.Task;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+
+public class TestTenantAwareExecutor {
+
+    @Test(groups = "fast")
+    public void testConcurrencyIsBoundedPerTenant() throws Exception {
+        final TenantAwareExecutor executor = new TenantAwareExecutor(8, 2, 4);
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            final Map<Integer, Integer> results = new HashMap<Integer, Integer>();
+            executor.forEach(UUID.randomUUID(),
+                             ContiguousSet.create(Range.closed(1, 50), DiscreteDomain.integers()),
+                             new Task<Integer, Integer>() {
+                                 @Override
+                                 public Integer call(final Integer key) throws Exception {
+                                     final int nowRunning = running.incrementAndGet();
+                                     int previousMax;
+                                     while (nowRunning > (previousMax = maxRunning.get()) && !maxRunning.compareAndSet(previousMax, nowRunning)) {
+                                         // Retry
+                                     }
+                                     Thread.sleep(2);
+                                     running.decrementAndGet();
+                                     if (key % 10 == 0) {
+                                         throw new IllegalArgumentException("Key " + key);
+                                     }
+                                     return key * 2;
+                                 }
+                             },
+                             new ResultHandler<Integer, Integer, RuntimeException>() {
+                                 @Override
+                                 public void handle(final Integer key, final Integer result, final Exception error) {
+                                     // Always invoked on the calling thread
+                                     results.put(key, error == null ? result : -1);
+                                 }
+                             });
+
+            Assert.assertEquals(results.size(), 50);
+            Assert.assertEquals((int) results.get(7), 14);
+            Assert.assertEquals((int) results.get(20), -1);
+            Assert.assertTrue(maxRunning.get() <= 2, "maxRunning=" + maxRunning.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRunsOnCallingThreadWhenShutdown() throws Exception {
+        final TenantAwareExecutor executor = new TenantAwareExecutor(1, 1, 1);
+        executor.shutdown();
+
+        final Thread callingThread = Thread.currentThread();
+        final AtomicInteger nbHandled = new AtomicInteger();
+        executor.forEach(null,
+                         ContiguousSet.create(Range.closed(1, 3), DiscreteDomain.integers()),
+                         new Task<Integer, Thread>() {
+                             @Override
+                             public Thread call(final Integer key) {
+                                 return Thread.currentThread();
+                             }
+                         },
+                         new ResultHandler<Integer, Thread, RuntimeException>() {
+                             @Override
+                             public void handle(final Integer key, final Thread result, final Exception error) {
+                                 Assert.assertSame(result, callingThread);
+                                 nbHandled.incrementAndGet();
+                             }
+                         });
+        Assert.assertEquals(nbHandled.get(), 3);
+    }
+}
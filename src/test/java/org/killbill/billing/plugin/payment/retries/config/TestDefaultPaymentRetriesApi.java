@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.config;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionStatus;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.payment.retries.AsyncLookupExecutor;
+import org.killbill.billing.plugin.payment.retries.AuthorizationDeclineCodeCache;
+import org.killbill.billing.plugin.payment.retries.DecisionLogger;
+import org.killbill.billing.plugin.payment.retries.OSGIKillbillAPIWrapper;
+import org.killbill.billing.plugin.payment.retries.PaymentMethodPluginNameCache;
+import org.killbill.billing.plugin.payment.retries.PaymentRetriesStatsRegistry;
+import org.killbill.billing.plugin.payment.retries.TenantAwareExecutor;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.api.ErrorMessage;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Decision;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.ProcessorMetrics;
+import org.killbill.billing.plugin.payment.retries.metrics.PaymentRetriesMetrics.Stage;
+import org.killbill.billing.plugin.payment.retries.rules.AdyenAuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.rules.RulesComputer;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestDefaultPaymentRetriesApi {
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final UUID accountId = UUID.randomUUID();
+    private final UUID paymentMethodId = UUID.randomUUID();
+
+    private PaymentApi paymentApi;
+    private PaymentTransaction failedAuthorization;
+    private PaymentRetriesMetrics paymentRetriesMetrics;
+    private DefaultPaymentRetriesApi paymentRetriesApi;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        paymentApi = Mockito.mock(PaymentApi.class);
+        final OSGIKillbillAPI killbillAPI = Mockito.mock(OSGIKillbillAPI.class);
+        Mockito.when(killbillAPI.getPaymentApi()).thenReturn(paymentApi);
+
+        final PaymentMethod paymentMethod = TestUtils.buildPaymentMethod(accountId, paymentMethodId, "killbill-adyen");
+        Mockito.when(paymentApi.getPaymentMethodById(Matchers.eq(paymentMethodId), Matchers.anyBoolean(), Matchers.anyBoolean(), Matchers.<Iterable<PluginProperty>>any(), Matchers.<TenantContext>any()))
+               .thenReturn(paymentMethod);
+
+        final Payment failedPayment = TestUtils.buildPayment(accountId, paymentMethodId, Currency.USD);
+        failedAuthorization = TestUtils.buildPaymentTransaction(failedPayment, TransactionType.AUTHORIZE, TransactionStatus.PAYMENT_FAILURE, BigDecimal.TEN, Currency.USD);
+        Mockito.when(paymentApi.getAccountPayments(Matchers.eq(accountId), Matchers.eq(false), Matchers.anyBoolean(), Matchers.<Iterable<PluginProperty>>any(), Matchers.<TenantContext>any()))
+               .thenReturn(ImmutableList.<Payment>of(failedPayment));
+        Mockito.when(paymentApi.getPayment(Matchers.eq(failedPayment.getId()), Matchers.eq(true), Matchers.anyBoolean(), Matchers.<Iterable<PluginProperty>>any(), Matchers.<TenantContext>any()))
+               .thenReturn(failedPayment);
+
+        final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper = new OSGIKillbillAPIWrapper(killbillAPI);
+        paymentRetriesMetrics = new PaymentRetriesMetrics();
+        paymentRetriesApi = new DefaultPaymentRetriesApi(osgiKillbillAPIWrapper,
+                                                         new AuthorizationDeclineCodeCache(),
+                                                         new PaymentMethodPluginNameCache(osgiKillbillAPIWrapper),
+                                                         paymentRetriesMetrics);
+    }
+
+    @Test(groups = "fast")
+    public void testPluginInfoNotFetchedWithIntegerGatewayErrorCode() throws Exception {
+        Mockito.when(failedAuthorization.getGatewayErrorCode()).thenReturn("62");
+
+        final AuthorizationDeclineCode authorizationDeclineCode = paymentRetriesApi.getAuthorizationDeclineCode(accountId, paymentMethodId, tenantId);
+        Assert.assertEquals(authorizationDeclineCode.getMessage(), "Restricted card");
+        Assert.assertSame(paymentRetriesApi.getAuthorizationDeclineCodeAsync(accountId, paymentMethodId, tenantId, 5, TimeUnit.SECONDS).get(), authorizationDeclineCode);
+
+        Mockito.verify(paymentApi, Mockito.never()).getPayment(Matchers.<UUID>any(), Matchers.eq(true), Matchers.anyBoolean(), Matchers.<Iterable<PluginProperty>>any(), Matchers.<TenantContext>any());
+
+        final ProcessorMetrics processorMetrics = paymentRetriesMetrics.getMetrics(tenantId).get(authorizationDeclineCode.getProcessor());
+        Assert.assertEquals(processorMetrics.getLatencyHistogram(Stage.GET_PAYMENT_METHOD).getCount(), 1);
+        Assert.assertEquals(processorMetrics.getLatencyHistogram(Stage.RULES_LOOKUP).getCount(), 1);
+        Assert.assertEquals(processorMetrics.getLatencyHistogram(Stage.GET_PAYMENT_TRANSACTION_INFO).getCount(), 0);
+        Assert.assertEquals(processorMetrics.getLatencyHistogram(Stage.FUZZY_MATCH).getCount(), 0);
+        Assert.assertEquals(paymentRetriesMetrics.getMetrics(tenantId).get(PaymentRetriesMetrics.NO_PROCESSOR).getLatencyHistogram(Stage.GET_ACCOUNT_PAYMENTS).getCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testPluginInfoFetchedForFuzzyMatch() throws Exception {
+        final PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = Mockito.mock(PaymentTransactionInfoPlugin.class);
+        Mockito.when(paymentTransactionInfoPlugin.getGatewayError()).thenReturn("CVC Declined");
+        // Only set on the transaction returned with plugin info
+        Mockito.when(failedAuthorization.getPaymentInfoPlugin()).thenReturn(null, paymentTransactionInfoPlugin);
+
+        final AuthorizationDeclineCode authorizationDeclineCode = paymentRetriesApi.getAuthorizationDeclineCode(accountId, paymentMethodId, tenantId);
+        Assert.assertEquals(authorizationDeclineCode.getErrorMessage(), ErrorMessage.CVV_MISMATCH);
+
+        Mockito.verify(paymentApi, Mockito.times(1)).getPayment(Matchers.eq(failedAuthorization.getPaymentId()), Matchers.eq(true), Matchers.anyBoolean(), Matchers.<Iterable<PluginProperty>>any(), Matchers.<TenantContext>any());
+
+        final ProcessorMetrics processorMetrics = paymentRetriesMetrics.getMetrics(tenantId).get(authorizationDeclineCode.getProcessor());
+        Assert.assertEquals(processorMetrics.getLatencyHistogram(Stage.GET_PAYMENT_TRANSACTION_INFO).getCount(), 1);
+        Assert.assertEquals(processorMetrics.getLatencyHistogram(Stage.FUZZY_MATCH).getCount(), 1);
+        Assert.assertEquals(processorMetrics.getCount(Decision.FUZZY_MATCHED), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testBulkLookupsShareAccountPayments() throws Exception {
+        Mockito.when(failedAuthorization.getGatewayErrorCode()).thenReturn("62");
+        // No payment yet for that payment method
+        final UUID otherPaymentMethodId = UUID.randomUUID();
+
+        final Map<UUID, AuthorizationDeclineCode> authorizationDeclineCodes = paymentRetriesApi.getAuthorizationDeclineCodes(ImmutableMap.<UUID, List<UUID>>of(accountId, ImmutableList.<UUID>of(paymentMethodId, otherPaymentMethodId)),
+                                                                                                                             tenantId);
+        Assert.assertEquals(authorizationDeclineCodes.size(), 2);
+        Assert.assertEquals(authorizationDeclineCodes.get(paymentMethodId).getMessage(), "Restricted card");
+        Assert.assertTrue(authorizationDeclineCodes.containsKey(otherPaymentMethodId));
+        Assert.assertNull(authorizationDeclineCodes.get(otherPaymentMethodId));
+
+        Mockito.verify(paymentApi, Mockito.times(1)).getAccountPayments(Matchers.eq(accountId), Matchers.eq(false), Matchers.anyBoolean(), Matchers.<Iterable<PluginProperty>>any(), Matchers.<TenantContext>any());
+
+        // Served from the cache
+        Assert.assertEquals(paymentRetriesApi.getAuthorizationDeclineCode(accountId, paymentMethodId, tenantId).getMessage(), "Restricted card");
+        Mockito.verify(paymentApi, Mockito.times(1)).getAccountPayments(Matchers.eq(accountId), Matchers.eq(false), Matchers.anyBoolean(), Matchers.<Iterable<PluginProperty>>any(), Matchers.<TenantContext>any());
+
+        final Map<String, AuthorizationDeclineCode> perExternalKey = paymentRetriesApi.getAuthorizationDeclineCodes(ImmutableList.<String>of("unknown-1", "unknown-2", "unknown-1"), tenantId);
+        Assert.assertEquals(perExternalKey.size(), 2);
+        Assert.assertNull(perExternalKey.get("unknown-1"));
+    }
+
+    @Test(groups = "fast")
+    public void testBulkLookupWithoutPaymentMethods() throws Exception {
+        final UUID otherAccountId = UUID.randomUUID();
+        final Map<UUID, List<UUID>> paymentMethodIdsPerAccountId = new HashMap<UUID, List<UUID>>();
+        paymentMethodIdsPerAccountId.put(accountId, ImmutableList.<UUID>of());
+        paymentMethodIdsPerAccountId.put(otherAccountId, null);
+
+        Assert.assertTrue(paymentRetriesApi.getAuthorizationDeclineCodes(paymentMethodIdsPerAccountId, tenantId).isEmpty());
+        Mockito.verify(paymentApi, Mockito.never()).getAccountPayments(Matchers.<UUID>any(), Matchers.eq(false), Matchers.anyBoolean(), Matchers.<Iterable<PluginProperty>>any(), Matchers.<TenantContext>any());
+    }
+
+    @Test(groups = "fast")
+    public void testWindowedStats() throws Exception {
+        final OSGIKillbillAPI killbillAPI = Mockito.mock(OSGIKillbillAPI.class);
+        final OSGIKillbillAPIWrapper osgiKillbillAPIWrapper = new OSGIKillbillAPIWrapper(killbillAPI);
+        final PaymentRetriesStatsRegistry paymentRetriesStatsRegistry = new PaymentRetriesStatsRegistry();
+        final DefaultPaymentRetriesApi api = new DefaultPaymentRetriesApi(osgiKillbillAPIWrapper,
+                                                                          new AuthorizationDeclineCodeCache(),
+                                                                          new PaymentMethodPluginNameCache(osgiKillbillAPIWrapper),
+                                                                          new RulesComputer(),
+                                                                          new PaymentRetriesMetrics(),
+                                                                          new TenantAwareExecutor(),
+                                                                          new AsyncLookupExecutor(),
+                                                                          DecisionLogger.synchronous(),
+                                                                          paymentRetriesStatsRegistry);
+
+        final AuthorizationDeclineCode code = AdyenAuthorizationDeclineCode.DO_NOT_HONOR;
+        paymentRetriesStatsRegistry.get(tenantId).incrementNbOfRetries(code);
+        paymentRetriesStatsRegistry.get(tenantId).incrementNbOfRetries(code);
+        paymentRetriesStatsRegistry.get(tenantId).markRetryAsAborted(code);
+
+        Assert.assertEquals(api.getNbOfRetries(tenantId, "1h"), 2);
+        Assert.assertEquals(api.getNbOfAbortedRetries(tenantId, "7d"), 1);
+        Assert.assertEquals(api.getNbOfRetries(UUID.randomUUID(), "24h"), 0);
+        try {
+            api.getNbOfRetries(tenantId, "1y");
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries.config;
+
+import java.util.Locale;
+import java.util.Properties;
+
+import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesPolicy.Bucketing;
+import org.killbill.billing.plugin.payment.retries.config.PaymentRetriesPolicy.ProcessorPolicy;
+import org.killbill.billing.plugin.payment.retries.rules.AdyenAuthorizationDeclineCode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPaymentRetriesPolicy {
+
+    @Test(groups = "fast")
+    public void testCompile() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("experimentTrafficPct", "10");
+        properties.put("forcedRetryableCodes.Adyen", "14, 41");
+        properties.put("forcedNonRetryableCodes.Adyen", "5");
+        properties.put("experimentTrafficPct.Adyen", "50");
+        properties.put("disabledProcessors", "Braintree");
+
+        final PaymentRetriesPolicy policy = PaymentRetriesPolicy.compile(properties);
+
+        final ProcessorPolicy adyenPolicy = policy.getProcessorPolicy("Adyen");
+        Assert.assertFalse(adyenPolicy.isDisabled());
+        Assert.assertTrue(adyenPolicy.isRetryable(AdyenAuthorizationDeclineCode.INVALID_CARD_NUMBER));
+        Assert.assertTrue(adyenPolicy.isRetryable(AdyenAuthorizationDeclineCode.LOST_CARD));
+        Assert.assertFalse(adyenPolicy.isRetryable(AdyenAuthorizationDeclineCode.DO_NOT_HONOR));
+        // Not overridden
+        Assert.assertFalse(adyenPolicy.isRetryable(AdyenAuthorizationDeclineCode.STOLEN_CARD));
+        Assert.assertTrue(adyenPolicy.isRetryable(AdyenAuthorizationDeclineCode.INSUFFICIENT_FUNDS));
+        Assert.assertEquals(adyenPolicy.getExperimentTrafficPct(10), 50);
+
+        Assert.assertTrue(policy.getProcessorPolicy("Braintree").isDisabled());
+        Assert.assertEquals(policy.getProcessorPolicy("Braintree").getExperimentTrafficPct(10), 10);
+
+        Assert.assertSame(policy.getProcessorPolicy("Paymentech"), ProcessorPolicy.DEFAULT);
+        Assert.assertSame(policy.getProcessorPolicy(null), ProcessorPolicy.DEFAULT);
+        Assert.assertSame(PaymentRetriesPolicy.compile(new Properties()), PaymentRetriesPolicy.EMPTY);
+        Assert.assertFalse(policy.isAdaptiveAbortEnabled());
+        Assert.assertEquals(policy.getDecisionLogSamplingPct(), 100.0);
+
+        final Properties sampledProperties = new Properties();
+        sampledProperties.put("decisionLogSamplingPct", "2.5");
+        Assert.assertEquals(PaymentRetriesPolicy.compile(sampledProperties).getDecisionLogSamplingPct(), 2.5);
+        Assert.assertFalse(PaymentRetriesPolicy.compile(sampledProperties).isEmpty());
+        Assert.assertTrue(PaymentRetriesPolicy.compile(new Properties()).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testAdaptiveAbort() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("adaptiveAbortThresholdPct", "5");
+
+        final PaymentRetriesPolicy policy = PaymentRetriesPolicy.compile(properties);
+        Assert.assertTrue(policy.isAdaptiveAbortEnabled());
+        Assert.assertFalse(policy.isEmpty());
+        Assert.assertTrue(policy.isHopeless(0.04));
+        Assert.assertFalse(policy.isHopeless(0.05));
+        Assert.assertFalse(policy.isHopeless(1.0));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidPolicies() throws Exception {
+        final Properties conflictingCodes = new Properties();
+        conflictingCodes.put("forcedRetryableCodes.Adyen", "5,14");
+        conflictingCodes.put("forcedNonRetryableCodes.Adyen", "14");
+        final Properties invalidPct = new Properties();
+        invalidPct.put("experimentTrafficPct.Adyen", "101");
+        final Properties invalidCode = new Properties();
+        invalidCode.put("forcedRetryableCodes.Adyen", "-1");
+        final Properties tooLargeCode = new Properties();
+        tooLargeCode.put("forcedNonRetryableCodes.Adyen", "14," + Integer.MAX_VALUE);
+        final Properties invalidThreshold = new Properties();
+        invalidThreshold.put("adaptiveAbortThresholdPct", "-5");
+
+        for (final Properties properties : new Properties[]{conflictingCodes, invalidPct, invalidCode, tooLargeCode, invalidThreshold}) {
+            try {
+                PaymentRetriesPolicy.compile(properties);
+                Assert.fail(properties.toString());
+            } catch (final IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testExperimentBucketing() throws Exception {
+        Assert.assertEquals(PaymentRetriesPolicy.EMPTY.getExperimentBucketing(), Bucketing.RANDOM);
+
+        final Properties properties = new Properties();
+        properties.put("experimentBucketing", "account");
+        properties.put("experimentSalt", "ramp-1");
+        properties.put("experimentSalt.Adyen", "adyen-ramp-1");
+
+        final PaymentRetriesPolicy policy = PaymentRetriesPolicy.compile(properties);
+        Assert.assertEquals(policy.getExperimentBucketing(), Bucketing.ACCOUNT);
+        Assert.assertFalse(policy.isEmpty());
+        Assert.assertNotEquals(policy.getExperimentSalt(), 0L);
+        Assert.assertEquals(policy.getExperimentSalt(), PaymentRetriesPolicy.compile(properties).getExperimentSalt());
+        final long adyenSalt = policy.getProcessorPolicy("Adyen").getExperimentSalt(policy.getExperimentSalt());
+        Assert.assertNotEquals(adyenSalt, policy.getExperimentSalt());
+        Assert.assertEquals(policy.getProcessorPolicy("Braintree").getExperimentSalt(policy.getExperimentSalt()), policy.getExperimentSalt());
+    }
+
+    @Test(groups = "fast")
+    public void testExperimentBucketingIgnoresDefaultLocale() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("experimentBucketing", "payment_method");
+
+        final Locale defaultLocale = Locale.getDefault();
+        // "i".toUpperCase() is a dotted capital I in Turkish
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            Assert.assertEquals(PaymentRetriesPolicy.compile(properties).getExperimentBucketing(), Bucketing.PAYMENT_METHOD);
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.dao;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.TestWithEmbeddedDBBase;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+public class TestPaymentRetriesStatsDao extends TestWithEmbeddedDBBase {
+
+    private PaymentRetriesStatsDao dao;
+
+    @BeforeMethod(groups = "slow")
+    public void setUpBeforeMethod() throws Exception {
+        super.setUpBeforeMethod();
+        dao = new PaymentRetriesStatsDao(embeddedDB.getDataSource());
+    }
+
+    @Test(groups = "slow")
+    public void testAddCounts() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final DateTime utcNow = new DateTime(DateTimeZone.UTC);
+        Assert.assertTrue(dao.getCounts("node-1").isEmpty());
+
+        dao.addCounts("node-1", ImmutableList.<PaymentRetriesStatsRecord>of(new PaymentRetriesStatsRecord(tenantId, "Braintree", 2004, "FAILURE", 2),
+                                                                            new PaymentRetriesStatsRecord(tenantId, "Braintree", 2004, "SUCCESS", 1)),
+                      utcNow);
+        dao.addCounts("node-1", ImmutableList.<PaymentRetriesStatsRecord>of(new PaymentRetriesStatsRecord(tenantId, "Braintree", 2004, "FAILURE", 3)),
+                      utcNow);
+
+        // Other nodes
+        dao.addCounts("node-2", ImmutableList.<PaymentRetriesStatsRecord>of(new PaymentRetriesStatsRecord(tenantId, "Braintree", 2004, "FAILURE", 10)),
+                      utcNow);
+        dao.addCounts("node-3", ImmutableList.<PaymentRetriesStatsRecord>of(new PaymentRetriesStatsRecord(tenantId, "Braintree", 2004, "FAILURE", 20)),
+                      utcNow);
+        final PaymentRetriesStatsRecord otherNodesCount = Iterables.getOnlyElement(dao.getCountsFromOtherNodes("node-1"));
+        Assert.assertEquals(otherNodesCount.getOutcome(), "FAILURE");
+        Assert.assertEquals(otherNodesCount.getCount(), 30);
+        Assert.assertEquals(dao.getCountsFromOtherNodes("node-2").size(), 2);
+
+        final List<PaymentRetriesStatsRecord> counts = dao.getCounts("node-1");
+        Assert.assertEquals(counts.size(), 2);
+        for (final PaymentRetriesStatsRecord count : counts) {
+            Assert.assertEquals(count.getTenantId(), tenantId);
+            Assert.assertEquals(count.getProcessor(), "Braintree");
+            Assert.assertEquals(count.getCode(), 2004);
+            if ("FAILURE".equals(count.getOutcome())) {
+                Assert.assertEquals(count.getCount(), 5);
+            } else {
+                Assert.assertEquals(count.getOutcome(), "SUCCESS");
+                Assert.assertEquals(count.getCount(), 1);
+            }
+        }
+    }
+}
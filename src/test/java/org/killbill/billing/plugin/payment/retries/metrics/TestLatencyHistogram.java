@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.metrics;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLatencyHistogram {
+
+    @Test(groups = "fast")
+    public void testBuckets() throws Exception {
+        long previousUpperBound = -1;
+        for (int i = 0; i <= LatencyHistogram.bucketIndex(Long.MAX_VALUE); i++) {
+            // Buckets are contiguous
+            final long upperBound = LatencyHistogram.bucketUpperBound(i);
+            Assert.assertEquals(LatencyHistogram.bucketIndex(previousUpperBound + 1), i);
+            Assert.assertEquals(LatencyHistogram.bucketIndex(upperBound), i);
+            // Relative error bounded by 1/8
+            Assert.assertTrue(upperBound - previousUpperBound - 1 <= Math.max(1L, (previousUpperBound + 1) / 8));
+            previousUpperBound = upperBound;
+        }
+        Assert.assertEquals(previousUpperBound, Long.MAX_VALUE);
+    }
+
+    @Test(groups = "fast")
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram latencyHistogram = new LatencyHistogram();
+        Assert.assertEquals(latencyHistogram.getValueAtPercentile(99), 0);
+
+        for (long value = 1; value <= 1000; value++) {
+            latencyHistogram.record(value * 1000);
+        }
+        Assert.assertEquals(latencyHistogram.getCount(), 1000);
+        Assert.assertEquals(latencyHistogram.getMax(), 1000000);
+        Assert.assertEquals(latencyHistogram.getMean(), 500500.0, 0.001);
+
+        final long p50 = latencyHistogram.getValueAtPercentile(50);
+        Assert.assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125, String.valueOf(p50));
+        final long p99 = latencyHistogram.getValueAtPercentile(99);
+        Assert.assertTrue(p99 >= 990000 && p99 <= 1000000, String.valueOf(p99));
+        Assert.assertEquals(latencyHistogram.getValueAtPercentile(100), 1000000);
+    }
+}
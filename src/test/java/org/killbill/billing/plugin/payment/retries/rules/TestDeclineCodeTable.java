@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.api.ErrorMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestDeclineCodeTable {
+
+    @Test(groups = "fast")
+    public void testDirectMappedTable() throws Exception {
+        checkTable(BraintreeAuthorizationDeclineCode.values());
+        checkTable(ChasePaymentechAuthorizationDeclineCode.values());
+
+        final DeclineCodeTable declineCodeTable = new DeclineCodeTable(AdyenAuthorizationDeclineCode.values());
+        Assert.assertEquals(declineCodeTable.get(62), AdyenAuthorizationDeclineCode.RESTRICTED_CARD);
+        Assert.assertNull(declineCodeTable.get(0));
+        Assert.assertNull(declineCodeTable.get(-62));
+        Assert.assertNull(declineCodeTable.get(Integer.MAX_VALUE));
+        Assert.assertNull(declineCodeTable.get(Integer.MIN_VALUE));
+    }
+
+    @Test(groups = "fast")
+    public void testOpenAddressingTable() throws Exception {
+        final AuthorizationDeclineCode[] sparseDeclineCodes = new AuthorizationDeclineCode[]{
+                new DefaultAuthorizationDeclineCode("Test", -5, "Negative", ErrorMessage.GENERAL_DECLINE, true),
+                new DefaultAuthorizationDeclineCode("Test", 12, "Small", ErrorMessage.GENERAL_DECLINE, true),
+                new DefaultAuthorizationDeclineCode("Test", 1000000, "Large", ErrorMessage.FRAUD, false),
+                new DefaultAuthorizationDeclineCode("Test", Integer.MAX_VALUE, "Max", ErrorMessage.EXPIRED_CARD, false)
+        };
+        checkTable(sparseDeclineCodes);
+
+        final DeclineCodeTable declineCodeTable = new DeclineCodeTable(sparseDeclineCodes);
+        Assert.assertNull(declineCodeTable.get(13));
+        Assert.assertNull(declineCodeTable.get(0));
+        Assert.assertEquals(new DeclineCodeTable(new AuthorizationDeclineCode[0]).indexOf(12), DeclineCodeTable.NOT_FOUND);
+    }
+
+    private void checkTable(final AuthorizationDeclineCode[] authorizationDeclineCodes) {
+        final DeclineCodeTable declineCodeTable = new DeclineCodeTable(authorizationDeclineCodes);
+        Assert.assertEquals(declineCodeTable.size(), authorizationDeclineCodes.length);
+        for (final AuthorizationDeclineCode authorizationDeclineCode : authorizationDeclineCodes) {
+            Assert.assertEquals(declineCodeTable.get(authorizationDeclineCode.getCode()), authorizationDeclineCode);
+            Assert.assertEquals(declineCodeTable.getById(declineCodeTable.indexOf(authorizationDeclineCode.getCode())), authorizationDeclineCode);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.killbill.billing.plugin.payment.retries.api.ErrorMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+public class TestErrorMessageMatcher {
+
+    private static final List<String> GATEWAY_ERRORS = ImmutableList.<String>of("CVC Declined",
+                                                                                "Card blocked.",
+                                                                                "Invalid Card Number",
+                                                                                "Expired Card",
+                                                                                "Not enough balance",
+                                                                                "Withdrawal amount exceeded",
+                                                                                "FRAUD-RESULT: suspected fraud, expired card, wrong address",
+                                                                                "Refused: expiration date invalid",
+                                                                                "AVS: Address does not match",
+                                                                                "Transaction declined by issuer",
+                                                                                "invalid card numbe",
+                                                                                "\u00C9XPIRED card",
+                                                                                "");
+
+    @Test(groups = "fast")
+    public void testMatchesLegacyImplementation() throws Exception {
+        final ErrorMessageMatcher errorMessageMatcher = new ErrorMessageMatcher();
+        for (final String gatewayError : GATEWAY_ERRORS) {
+            Assert.assertEquals(errorMessageMatcher.match(gatewayError), legacyMatch(gatewayError), gatewayError);
+        }
+        Assert.assertNull(errorMessageMatcher.match(null));
+
+        // Random strings over the alphabet of the keywords
+        final Random random = new Random(42);
+        final char[] alphabet = "adEXPirEdcvnoUghbalncfrmtsw ".toCharArray();
+        for (int i = 0; i < 10000; i++) {
+            final char[] chars = new char[random.nextInt(40)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            final String gatewayError = new String(chars) + GATEWAY_ERRORS.get(random.nextInt(GATEWAY_ERRORS.size()));
+            Assert.assertEquals(errorMessageMatcher.match(gatewayError), legacyMatch(gatewayError), gatewayError);
+        }
+    }
+
+    @Test(groups = "stress")
+    public void benchmarkAgainstLegacyImplementation() throws Exception {
+        final ErrorMessageMatcher errorMessageMatcher = new ErrorMessageMatcher();
+        final int nbIterations = 2000000;
+
+        // Warm-up
+        runMatcher(errorMessageMatcher, nbIterations);
+        runLegacy(nbIterations / 10);
+
+        long start = System.nanoTime();
+        runLegacy(nbIterations);
+        final long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runMatcher(errorMessageMatcher, nbIterations);
+        final long matcherNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("ErrorMessage fuzzy match: legacy=%dns/op, automaton=%dns/op",
+                                         legacyNanos / nbIterations, matcherNanos / nbIterations));
+        Assert.assertTrue(matcherNanos < legacyNanos);
+    }
+
+    private int runMatcher(final ErrorMessageMatcher errorMessageMatcher, final int nbIterations) {
+        int nbMatches = 0;
+        for (int i = 0; i < nbIterations; i++) {
+            if (errorMessageMatcher.match(GATEWAY_ERRORS.get(i % GATEWAY_ERRORS.size())) != null) {
+                nbMatches++;
+            }
+        }
+        return nbMatches;
+    }
+
+    private int runLegacy(final int nbIterations) {
+        int nbMatches = 0;
+        for (int i = 0; i < nbIterations; i++) {
+            if (legacyMatch(GATEWAY_ERRORS.get(i % GATEWAY_ERRORS.size())) != null) {
+                nbMatches++;
+            }
+        }
+        return nbMatches;
+    }
+
+    // Implementation prior to ErrorMessageMatcher
+    private static ErrorMessage legacyMatch(final String gatewayError) {
+        return Arrays.stream(ErrorMessage.values())
+                     .filter(error -> !Strings.isNullOrEmpty(gatewayError) && Arrays.stream(error.getKeywords()).parallel().anyMatch(gatewayError.toLowerCase()::contains))
+                     .findFirst()
+                     .orElse(null);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import org.killbill.billing.payment.api.PluginProperty;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestPluginPropertyProcessorResponseExtractor {
+
+    @Test(groups = "fast")
+    public void testParseCode() throws Exception {
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("62"), 62);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("+62"), 62);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("-62"), -62);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("0062"), 62);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("2147483647"), Integer.MAX_VALUE);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("2147483648"), ProcessorResponseExtractor.NO_CODE);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("99999999999"), ProcessorResponseExtractor.NO_CODE);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode(null), ProcessorResponseExtractor.NO_CODE);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode(""), ProcessorResponseExtractor.NO_CODE);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("-"), ProcessorResponseExtractor.NO_CODE);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("62 "), ProcessorResponseExtractor.NO_CODE);
+        Assert.assertEquals(ProcessorResponseExtractor.parseCode("CVC Declined"), ProcessorResponseExtractor.NO_CODE);
+    }
+
+    @Test(groups = "fast")
+    public void testExtractCode() throws Exception {
+        final ProcessorResponseExtractor extractor = new PluginPropertyProcessorResponseExtractor("processorResponse", "responseCode");
+
+        Assert.assertEquals(extractor.extractCode("62", null), 62);
+        Assert.assertEquals(extractor.extractCode("62", ImmutableList.<PluginProperty>of()), 62);
+        Assert.assertEquals(extractor.extractCode(null, ImmutableList.<PluginProperty>of()), ProcessorResponseExtractor.NO_CODE);
+        // Empty property: no code (the gateway error code is only used when the property is missing)
+        Assert.assertEquals(extractor.extractCode("62", ImmutableList.<PluginProperty>of(new PluginProperty("processorResponse", "", false))), ProcessorResponseExtractor.NO_CODE);
+        Assert.assertEquals(extractor.extractCode("62", ImmutableList.<PluginProperty>of(new PluginProperty("processorResponse", null, false))), 62);
+        Assert.assertEquals(extractor.extractCode("62", ImmutableList.<PluginProperty>of(new PluginProperty("processorResponse", 51, false))), 51);
+        Assert.assertEquals(extractor.extractCode("62", ImmutableList.<PluginProperty>of(new PluginProperty("responseCode", "14", false))), 14);
+        // Preferred key wins, whatever the order
+        Assert.assertEquals(extractor.extractCode("62", ImmutableList.<PluginProperty>of(new PluginProperty("responseCode", "14", false),
+                                                                                         new PluginProperty("other", "1", false),
+                                                                                         new PluginProperty("processorResponse", "51", false))), 51);
+        Assert.assertEquals(extractor.extractCode("62", ImmutableList.<PluginProperty>of(new PluginProperty("processorResponse", "Declined", false))), ProcessorResponseExtractor.NO_CODE);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.payment.retries.rules;
+
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
+import org.killbill.billing.plugin.payment.retries.api.ErrorMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestRuleTables {
+
+    @Test(groups = "fast")
+    public void testExternalRulesOnTopOfBuiltInOnes() throws Exception {
+        final RuleTables ruleTables = RuleTables.compile("# Reclassified\n" +
+                                                         "killbill-adyen | Adyen | 5 | false | INSUFFICIENT_FUNDS | Do not honor\n" +
+                                                         "\n" +
+                                                         "killbill-adyen|Adyen|999|true||New code\n" +
+                                                         "killbill-stripe|Stripe|42|false|FRAUD|Fraudulent",
+                                                         10);
+
+        final int adyenIndex = ruleTables.getPluginIndex("killbill-adyen");
+        final AuthorizationDeclineCode reclassified = ruleTables.getDeclineCodeTable(adyenIndex).get(5);
+        Assert.assertFalse(reclassified.isRetryable());
+        Assert.assertEquals(reclassified.getErrorMessage(), ErrorMessage.INSUFFICIENT_FUNDS);
+        Assert.assertEquals(ruleTables.getDeclineCodeTable(adyenIndex).get(999).getErrorMessage(), ErrorMessage.GENERAL_DECLINE);
+        // Untouched built-in rule
+        Assert.assertSame(ruleTables.getDeclineCodeTable(adyenIndex).get(62), AdyenAuthorizationDeclineCode.RESTRICTED_CARD);
+
+        Assert.assertTrue(ruleTables.isConfigured("killbill-stripe"));
+        Assert.assertEquals(ruleTables.getProcessor("killbill-stripe"), "Stripe");
+        Assert.assertEquals(ruleTables.getDeclineCodeTable(ruleTables.getPluginIndex("killbill-stripe")).get(42).getMessage(), "Fraudulent");
+        Assert.assertEquals(ruleTables.getPerPluginDeclineCodes().get("killbill-stripe").size(), 1);
+
+        // The built-in snapshot isn't impacted
+        Assert.assertFalse(RuleTables.builtIn(10).isConfigured("killbill-stripe"));
+    }
+
+    @Test(groups = "fast")
+    public void testProcessorSpecificResponseCodes() throws Exception {
+        final RuleTables ruleTables = RuleTables.compile("killbill-stripe|Stripe|42|false|FRAUD|Fraudulent", 10);
+
+        assertProcessorResponseCode(ruleTables, "killbill-adyen", "refusalReasonCode");
+        assertProcessorResponseCode(ruleTables, "killbill-braintree_blue", "processorResponseCode");
+        assertProcessorResponseCode(ruleTables, "killbill-orbital", "respCode");
+        assertProcessorResponseCode(ruleTables, "killbill-cybersource", PluginPropertyProcessorResponseExtractor.PROCESSOR_RESPONSE);
+        assertProcessorResponseCode(ruleTables, "killbill-stripe", PluginPropertyProcessorResponseExtractor.PROCESSOR_RESPONSE);
+
+        // The processor specific key is preferred over the legacy one
+        final int braintreeIndex = ruleTables.getPluginIndex("killbill-braintree_blue");
+        Assert.assertEquals(ruleTables.extractProcessorResponseCode(braintreeIndex,
+                                                                    "62",
+                                                                    ImmutableList.<PluginProperty>of(new PluginProperty(PluginPropertyProcessorResponseExtractor.PROCESSOR_RESPONSE, "51", false),
+                                                                                                     new PluginProperty("processorResponseCode", "2001", false))),
+                            2001);
+        // Only the legacy key is read for plugins without their own
+        Assert.assertEquals(ruleTables.extractProcessorResponseCode(ruleTables.getPluginIndex("killbill-cybersource"),
+                                                                    "62",
+                                                                    ImmutableList.<PluginProperty>of(new PluginProperty("processorResponseCode", "2001", false))),
+                            62);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidRules() throws Exception {
+        for (final String invalidRule : new String[]{"killbill-adyen|Adyen|5|false|INSUFFICIENT_FUNDS",
+                                                     "killbill-adyen|Adyen|five|false||Do not honor",
+                                                     "killbill-adyen|Adyen|5|maybe||Do not honor",
+                                                     "killbill-adyen|Adyen|5|false|NOT_A_CATEGORY|Do not honor",
+                                                     "killbill-adyen|Braintree|5|false||Do not honor"}) {
+            try {
+                RuleTables.compile("# Comment\n" + invalidRule, 10);
+                Assert.fail(invalidRule);
+            } catch (final IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().startsWith("Invalid rule at line 2"), e.getMessage());
+            }
+        }
+    }
+
+    private static void assertProcessorResponseCode(final RuleTables ruleTables, final String pluginName, final String propertyKey) {
+        final int pluginIndex = ruleTables.getPluginIndex(pluginName);
+        Assert.assertEquals(ruleTables.extractProcessorResponseCode(pluginIndex, "62", ImmutableList.<PluginProperty>of(new PluginProperty(propertyKey, "51", false))), 51, pluginName);
+        // Falls back to the gateway error code
+        Assert.assertEquals(ruleTables.extractProcessorResponseCode(pluginIndex, "62", ImmutableList.<PluginProperty>of()), 62, pluginName);
+    }
+}
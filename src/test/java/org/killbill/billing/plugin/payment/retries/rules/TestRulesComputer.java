@@ -20,6 +20,7 @@ package org.killbill.billing.plugin.payment.retries.rules;
 import java.util.UUID;
 
 import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.TestUtils;
 import org.killbill.billing.plugin.payment.retries.api.AuthorizationDeclineCode;
@@ -28,6 +29,8 @@ import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+
 public class TestRulesComputer {
 
     @Test(groups = "fast")
@@ -78,4 +81,65 @@ public class TestRulesComputer {
         Mockito.when(paymentTransactionInfoPlugin.getGatewayError()).thenReturn("Card blocked.");
         Assert.assertNull(rulesComputer.lookupAuthorizationDeclineCode(pm, paymentTransactionInfoPlugin));
     }
+
+    @Test(groups = "fast")
+    public void testLookupAuthorizationDeclineCodeWithEmptyProcessorResponse() throws Exception {
+        final RulesComputer rulesComputer = new RulesComputer();
+        final PaymentMethod pm = TestUtils.buildPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), "killbill-adyen");
+
+        // An empty processorResponse isn't replaced by the gateway error code: we go straight to the fuzzy match
+        final PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = Mockito.mock(PaymentTransactionInfoPlugin.class);
+        Mockito.when(paymentTransactionInfoPlugin.getGatewayErrorCode()).thenReturn("62");
+        Mockito.when(paymentTransactionInfoPlugin.getGatewayError()).thenReturn("CVC Declined");
+        Mockito.when(paymentTransactionInfoPlugin.getProperties()).thenReturn(ImmutableList.<PluginProperty>of(new PluginProperty(PluginPropertyProcessorResponseExtractor.PROCESSOR_RESPONSE, "", false)));
+        final AuthorizationDeclineCode code = rulesComputer.lookupAuthorizationDeclineCode(pm, paymentTransactionInfoPlugin);
+        Assert.assertEquals(code.getErrorMessage(), ErrorMessage.CVV_MISMATCH);
+        Assert.assertEquals(code.getCode(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFuzzyMatchedDeclineCodesAreShared() throws Exception {
+        final RulesComputer rulesComputer = new RulesComputer();
+        final PaymentMethod pm = TestUtils.buildPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), "killbill-adyen");
+
+        final PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = Mockito.mock(PaymentTransactionInfoPlugin.class);
+        Mockito.when(paymentTransactionInfoPlugin.getGatewayError()).thenReturn("CVC Declined");
+        final AuthorizationDeclineCode code = rulesComputer.lookupAuthorizationDeclineCode(pm, paymentTransactionInfoPlugin);
+        Assert.assertSame(rulesComputer.lookupAuthorizationDeclineCode(pm, paymentTransactionInfoPlugin), code);
+
+        final PaymentTransactionInfoPlugin unknownErrorPaymentTransactionInfoPlugin = Mockito.mock(PaymentTransactionInfoPlugin.class);
+        Mockito.when(unknownErrorPaymentTransactionInfoPlugin.getGatewayError()).thenReturn("Card blocked.");
+        Assert.assertNull(rulesComputer.lookupAuthorizationDeclineCode(pm, unknownErrorPaymentTransactionInfoPlugin));
+        Assert.assertNull(rulesComputer.lookupAuthorizationDeclineCode(pm, unknownErrorPaymentTransactionInfoPlugin));
+
+        Assert.assertEquals(rulesComputer.getFuzzyMatchCacheSize(), 2);
+        Assert.assertEquals(rulesComputer.getFuzzyMatchCacheStats().hitCount(), 2);
+        Assert.assertEquals(rulesComputer.getFuzzyMatchCacheStats().missCount(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testReload() throws Exception {
+        final RulesComputer rulesComputer = new RulesComputer();
+        final PaymentMethod pm = TestUtils.buildPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), "killbill-adyen");
+        final PaymentTransactionInfoPlugin paymentTransactionInfoPlugin = Mockito.mock(PaymentTransactionInfoPlugin.class);
+        Mockito.when(paymentTransactionInfoPlugin.getGatewayErrorCode()).thenReturn("62");
+        Assert.assertTrue(rulesComputer.lookupAuthorizationDeclineCode(pm, paymentTransactionInfoPlugin).isRetryable());
+
+        final RuleTables builtInRuleTables = rulesComputer.getRuleTables();
+        rulesComputer.reload("killbill-adyen|Adyen|62|false|GENERAL_DECLINE|Restricted card");
+        Assert.assertNotSame(rulesComputer.getRuleTables(), builtInRuleTables);
+        Assert.assertFalse(rulesComputer.lookupAuthorizationDeclineCode(pm, paymentTransactionInfoPlugin).isRetryable());
+
+        // Invalid definitions don't replace the current rules
+        final RuleTables reloadedRuleTables = rulesComputer.getRuleTables();
+        try {
+            rulesComputer.reload("killbill-adyen|Adyen|62");
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertSame(rulesComputer.getRuleTables(), reloadedRuleTables);
+        }
+
+        rulesComputer.reload(null);
+        Assert.assertTrue(rulesComputer.lookupAuthorizationDeclineCode(pm, paymentTransactionInfoPlugin).isRetryable());
+    }
 }